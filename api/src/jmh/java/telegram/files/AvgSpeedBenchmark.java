@@ -0,0 +1,55 @@
+package telegram.files;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress updates of one download, the interval holds 300 points at one update per second and 3000 at ten.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvgSpeedBenchmark {
+
+    @Param({"1000", "100"})
+    public long stepMillis;
+
+    private AvgSpeed avgSpeed;
+
+    private long timestamp;
+
+    private long downloadedSize;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        avgSpeed = new AvgSpeed();
+        timestamp = System.currentTimeMillis();
+        downloadedSize = 0;
+        // fill the interval
+        for (int i = 0; i < 5 * 60 * 1000 / stepMillis; i++) {
+            next();
+        }
+    }
+
+    private void next() {
+        timestamp += stepMillis;
+        // 1 MB/s with some jitter
+        downloadedSize += stepMillis * (800 + timestamp % 400);
+        avgSpeed.update(downloadedSize, timestamp);
+    }
+
+    @Benchmark
+    public AvgSpeed update() {
+        next();
+        return avgSpeed;
+    }
+
+    @Benchmark
+    public AvgSpeed.SpeedStats getSpeedStats() {
+        return avgSpeed.getSpeedStats();
+    }
+}
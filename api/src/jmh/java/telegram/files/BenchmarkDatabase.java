@@ -0,0 +1,153 @@
+package telegram.files;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Vertx;
+import io.vertx.jdbcclient.JDBCConnectOptions;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.PoolOptions;
+import telegram.files.repository.Definition;
+import telegram.files.repository.FileRecord;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+/**
+ * SQLite file with synthetic file records for the repository benchmarks.
+ * <p>
+ * The file is generated once under {@code APP_ROOT} and reused by later runs, its size is set with
+ * {@code -Dbenchmark.rows=<rows>} (default 1M). Records are spread over {@link #CHATS} chats, one in ten is a
+ * thumbnail.
+ */
+public class BenchmarkDatabase {
+
+    private static final Log log = LogFactory.get();
+
+    public static final int ROWS = Convert.toInt(System.getProperty("benchmark.rows"), 1_000_000);
+
+    public static final int CHATS = 50;
+
+    public static final long FIRST_CHAT_ID = -1001000000000L;
+
+    private static final String[] TYPES = {"photo", "video", "audio", "file"};
+
+    private static final String[] MIME_TYPES = {"image/jpeg", "video/mp4", "audio/mpeg", "application/pdf"};
+
+    private static final String[] EXTENSIONS = {"jpg", "mp4", "mp3", "pdf"};
+
+    private static final String[] DOWNLOAD_STATUSES = {"completed", "idle", "completed", "idle", "downloading", "paused", "error"};
+
+    public static Pool open(Vertx vertx) {
+        File file = FileUtil.file(Config.APP_ROOT, "benchmark-%d.db".formatted(ROWS));
+        if (!file.exists()) {
+            File tmp = FileUtil.file(Config.APP_ROOT, file.getName() + ".tmp");
+            FileUtil.del(tmp);
+            try {
+                populate(tmp);
+            } catch (SQLException e) {
+                throw new IllegalStateException("Failed to generate " + tmp, e);
+            }
+            FileUtil.rename(tmp, file.getName(), true);
+        }
+        return DataVerticle.createPool(vertx,
+                new JDBCConnectOptions().setJdbcUrl("jdbc:sqlite:%s".formatted(file.getPath())),
+                new PoolOptions().setMaxSize(1));
+    }
+
+    public static long chatId(int chat) {
+        return FIRST_CHAT_ID - chat;
+    }
+
+    /**
+     * TDLib message ids are multiples of 2^20.
+     */
+    public static long messageId(int row) {
+        return (long) (row / CHATS + 1) << 20;
+    }
+
+    public static String uniqueId(int row) {
+        return "AgADBAAD%08d".formatted(row);
+    }
+
+    private static void populate(File file) throws SQLException {
+        long start = System.currentTimeMillis();
+        log.info("Generate %d file records in %s".formatted(ROWS, file));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+             Statement statement = connection.createStatement()) {
+            for (Definition definition : DataVerticle.definitions) {
+                statement.execute(definition.getScheme());
+            }
+            connection.setAutoCommit(false);
+            try (PreparedStatement insert = connection.prepareStatement("""
+                    INSERT INTO file_record(id, unique_id, telegram_id, chat_id, message_id, media_album_id, date,
+                                            has_sensitive_content, size, downloaded_size, type, mime_type, file_name,
+                                            thumbnail, thumbnail_unique_id, caption, extra, local_path, download_status,
+                                            transfer_status, start_date, completion_date, tags, thread_chat_id,
+                                            message_thread_id, reaction_count)
+                    VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+                    """)) {
+                for (int row = 0; row < ROWS; row++) {
+                    bind(insert, row);
+                    insert.addBatch();
+                    if (row % 10_000 == 9_999) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+            connection.commit();
+            connection.setAutoCommit(true);
+            for (Definition.Index index : FileRecord.INDEXES) {
+                statement.execute(index.sql());
+            }
+            statement.execute("ANALYZE");
+        }
+        log.info("Generated %d file records in %d ms".formatted(ROWS, System.currentTimeMillis() - start));
+    }
+
+    private static void bind(PreparedStatement insert, int row) throws SQLException {
+        boolean thumbnail = row % 10 == 9;
+        int kind = row % TYPES.length;
+        String downloadStatus = DOWNLOAD_STATUSES[row % DOWNLOAD_STATUSES.length];
+        long date = 1_600_000_000L + row * 30L;
+
+        insert.setInt(1, row + 1);
+        insert.setString(2, uniqueId(row));
+        insert.setLong(3, 1000L);
+        insert.setLong(4, chatId(row % CHATS));
+        insert.setLong(5, messageId(row));
+        insert.setLong(6, row % 25 == 0 ? row / 25 + 1 : 0);
+        insert.setLong(7, date);
+        insert.setBoolean(8, false);
+        insert.setLong(9, thumbnail ? 4_000 + row % 1_000 : 100_000 + row * 7_919L % 50_000_000);
+        insert.setLong(10, 0);
+        insert.setString(11, thumbnail ? "thumbnail" : TYPES[kind]);
+        insert.setString(12, thumbnail ? "image/jpeg" : MIME_TYPES[kind]);
+        insert.setString(13, thumbnail || kind == 0 ? null : "file-%d.%s".formatted(row, EXTENSIONS[kind]));
+        insert.setString(14, null);
+        // videos point to the thumbnail record of their group of ten
+        insert.setString(15, !thumbnail && kind == 1 ? uniqueId(row - row % 10 + 9) : null);
+        insert.setString(16, row % 3 == 0 ? "Caption of message %d".formatted(row) : null);
+        insert.setString(17, kind < 2 || thumbnail ? "{\"width\":1280,\"height\":720}" : null);
+        insert.setString(18, "completed".equals(downloadStatus) ? "/data/downloads/%s".formatted(uniqueId(row)) : null);
+        insert.setString(19, downloadStatus);
+        insert.setString(20, "idle");
+        insert.setLong(21, "idle".equals(downloadStatus) ? 0 : date * 1000);
+        if ("completed".equals(downloadStatus)) {
+            insert.setLong(22, date * 1000 + 60_000);
+        } else {
+            insert.setNull(22, Types.BIGINT);
+        }
+        insert.setString(23, row % 20 == 0 ? "favorite" : null);
+        insert.setLong(24, 0);
+        insert.setLong(25, 0);
+        insert.setLong(26, row % 7);
+    }
+}
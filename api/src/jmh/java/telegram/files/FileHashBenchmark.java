@@ -0,0 +1,43 @@
+package telegram.files;
+
+import cn.hutool.core.io.FileUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MessyUtils#calculateFileMD5(File)} of a photo sized and a video sized file, the file is usually in the page
+ * cache, so this measures the hashing rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileHashBenchmark {
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    private File file;
+
+    @Setup
+    public void setUp() {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        file = FileUtil.writeBytes(data, FileUtil.file(Config.APP_ROOT, "hash-%d.bin".formatted(size)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtil.del(file);
+    }
+
+    @Benchmark
+    public String calculateFileMD5() {
+        return MessyUtils.calculateFileMD5(file);
+    }
+}
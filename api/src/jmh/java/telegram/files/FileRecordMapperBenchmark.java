@@ -0,0 +1,63 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.Tuple;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import telegram.files.repository.FileRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping a page of 100 rows to records and records to insert parameters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileRecordMapperBenchmark {
+
+    private static final String[] COLUMNS = {"id", "unique_id", "telegram_id", "chat_id", "message_id",
+            "media_album_id", "date", "has_sensitive_content", "size", "downloaded_size", "type", "mime_type",
+            "file_name", "thumbnail", "thumbnail_unique_id", "caption", "extra", "local_path", "download_status",
+            "start_date", "transfer_status", "tags", "thread_chat_id", "message_thread_id", "reaction_count"};
+
+    private final List<Row> rows = new ArrayList<>();
+
+    private final List<FileRecord> records = new ArrayList<>();
+
+    @Setup
+    public void setUp() {
+        Vertx vertx = Vertx.vertx();
+        Pool pool = BenchmarkDatabase.open(vertx);
+        try {
+            MessyUtils.await(pool.query("SELECT * FROM file_record ORDER BY message_id DESC LIMIT 100").execute())
+                    .forEach(rows::add);
+        } finally {
+            MessyUtils.await(pool.close());
+            MessyUtils.await(vertx.close());
+        }
+        rows.forEach(row -> records.add(FileRecord.ROW_MAPPER.map(row)));
+    }
+
+    @Benchmark
+    public void rowMapper(Blackhole blackhole) {
+        for (Row row : rows) {
+            blackhole.consume(FileRecord.ROW_MAPPER.map(row));
+        }
+    }
+
+    @Benchmark
+    public void paramMapper(Blackhole blackhole) {
+        for (FileRecord record : records) {
+            Tuple tuple = FileRecord.PARAM_MAPPER.map(i -> COLUMNS[i], COLUMNS.length, record);
+            blackhole.consume(tuple);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.sqlclient.Pool;
+import org.jooq.lambda.tuple.Tuple3;
+import org.openjdk.jmh.annotations.*;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.impl.FileRepositoryImpl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The file list queries of the web page against {@link BenchmarkDatabase}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileRepositoryBenchmark {
+
+    private Vertx vertx;
+
+    private Pool pool;
+
+    private FileRepositoryImpl fileRepository;
+
+    private long chatId;
+
+    private long middleMessageId;
+
+    @Setup
+    public void setUp() {
+        vertx = Vertx.vertx();
+        pool = BenchmarkDatabase.open(vertx);
+        fileRepository = new FileRepositoryImpl(pool);
+        chatId = BenchmarkDatabase.chatId(7);
+        middleMessageId = BenchmarkDatabase.messageId(BenchmarkDatabase.ROWS / 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        MessyUtils.await(pool.close());
+        MessyUtils.await(vertx.close());
+    }
+
+    private Tuple3<List<FileRecord>, Long, Long> getFiles(long chatId, Map<String, String> filter) {
+        return MessyUtils.await(fileRepository.getFiles(chatId, filter));
+    }
+
+    @Benchmark
+    public Tuple3<List<FileRecord>, Long, Long> chatFirstPage() {
+        return getFiles(chatId, Map.of("limit", "20"));
+    }
+
+    @Benchmark
+    public Tuple3<List<FileRecord>, Long, Long> chatNextPage() {
+        return getFiles(chatId, Map.of("limit", "20", "fromMessageId", String.valueOf(middleMessageId)));
+    }
+
+    @Benchmark
+    public Tuple3<List<FileRecord>, Long, Long> chatFiltered() {
+        return getFiles(chatId, Map.of("limit", "20", "type", "video", "downloadStatus", "completed"));
+    }
+
+    @Benchmark
+    public Tuple3<List<FileRecord>, Long, Long> chatSearch() {
+        return getFiles(chatId, Map.of("limit", "20", "search", "message 12"));
+    }
+
+    @Benchmark
+    public Tuple3<List<FileRecord>, Long, Long> allChatsFirstPage() {
+        return getFiles(0, Map.of("limit", "20"));
+    }
+
+    @Benchmark
+    public Tuple3<List<FileRecord>, Long, Long> allChatsSortedBySize() {
+        return getFiles(0, Map.of("limit", "20", "sort", "size", "order", "desc"));
+    }
+}
@@ -0,0 +1,275 @@
+package telegram.files;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.drinkless.tdlib.TdApi;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.SettingAutoRecords;
+import telegram.files.repository.SettingKey;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end run of the download and transfer pipeline against the TDLib simulator.
+ * <p>
+ * Every simulated chat of every account is an auto chat that downloads and transfers its history, new messages arrive
+ * at the simulator's message interval. {@link DataVerticle}, the automation verticles and {@link TransferVerticle} run
+ * as in production on the configured database. The run ends when the history of all chats is transferred, or after
+ * {@code scenario.duration} seconds, and reports the files per minute, the SQL statements per file, the time the
+ * event loops were blocked, the peak heap and the p50/p99 latencies of each stage of a file:
+ * <pre>
+ * message seen -> download started -> download completed -> transferred
+ * </pre>
+ * Only new messages have a "seen" time, history files start at "download started". The files include the thumbnails
+ * of videos, they go through the same stages.
+ * <p>
+ * Run it with {@code gradle scenario}, see the task for the parameters.
+ */
+public class PipelineScenario {
+
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private final Vertx vertx;
+
+    private final ScenarioMetrics metrics;
+
+    private final int accounts;
+
+    private final long duration;
+
+    // uniqueId -> time of the stage
+    private final Map<String, Long> seen = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> started = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> downloaded = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> transferred = new ConcurrentHashMap<>();
+
+    private PipelineScenario(Vertx vertx, ScenarioMetrics metrics, int accounts, long duration) {
+        this.vertx = vertx;
+        this.metrics = metrics;
+        this.accounts = accounts;
+        this.duration = duration;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LogFactory.setCurrentLogFactory(new Config.JDKLogFactory());
+        if (!Config.isTelegramSimulated()) {
+            throw new IllegalStateException("The scenario runs against the simulator, set TELEGRAM_CLIENT=simulator");
+        }
+        ScenarioMetrics metrics = new ScenarioMetrics();
+        Vertx vertx = metrics.vertx();
+        PipelineScenario scenario = new PipelineScenario(vertx, metrics,
+                Integer.getInteger("scenario.accounts", 2),
+                TimeUnit.SECONDS.toMillis(Long.getLong("scenario.duration", 300)));
+        JsonObject report = scenario.run();
+
+        File reportFile = FileUtil.file(System.getProperty("scenario.report", "build/reports/scenario"),
+                "scenario-%s.json".formatted(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"))));
+        FileUtil.writeUtf8String(report.encodePrettily(), reportFile);
+        System.out.println(report.encodePrettily());
+        System.out.println("Report written to " + reportFile.getAbsolutePath());
+
+        MessyUtils.await(vertx.close());
+        System.exit(0);
+    }
+
+    private JsonObject run() throws InterruptedException {
+        LocalCodec.register(vertx, TelegramEvent.class);
+        LocalCodec.register(vertx, FileStatusEvent.class);
+        MessyUtils.await(vertx.deployVerticle(new DataVerticle()));
+        if (!MessyUtils.await(DataVerticle.telegramRepository.getAll()).isEmpty()) {
+            throw new IllegalStateException("The scenario needs an empty database, %s has accounts".formatted(Config.DB_TYPE));
+        }
+
+        List<SettingAutoRecords.Automation> automations = new ArrayList<>();
+        for (int i = 0; i < accounts; i++) {
+            automations.addAll(createAccount());
+        }
+        MessyUtils.await(DataVerticle.settingRepository.createOrUpdate(SettingKey.automation.name(),
+                Json.encode(new SettingAutoRecords(automations))));
+        initEventConsumer();
+
+        long queriesBefore = metrics.queries();
+        metrics.startProbes(vertx);
+        long startTime = System.currentTimeMillis();
+        MessyUtils.await(AutomationsHolder.INSTANCE.init()
+                .compose(r -> vertx.deployVerticle(new AutoDownloadVerticle(), Config.VIRTUAL_THREAD_DEPLOYMENT_OPTIONS))
+                .compose(r -> vertx.deployVerticle(new TransferVerticle(), Config.VIRTUAL_THREAD_DEPLOYMENT_OPTIONS))
+                .compose(r -> vertx.deployVerticle(new PreloadMessageVerticle(), Config.VIRTUAL_THREAD_DEPLOYMENT_OPTIONS)));
+
+        long historyMessages = (long) automations.size() * Config.TELEGRAM_SIMULATOR_MESSAGES;
+        long endTime = startTime + duration;
+        long lastProgress = startTime;
+        while (System.currentTimeMillis() < endTime && !isDone()) {
+            TimeUnit.MILLISECONDS.sleep(200);
+            if (System.currentTimeMillis() - lastProgress >= PROGRESS_INTERVAL) {
+                lastProgress = System.currentTimeMillis();
+                System.out.printf("%4ds started: %d downloaded: %d transferred: %d, history messages: %d%n",
+                        (lastProgress - startTime) / 1000, started.size(), countFinished(downloaded),
+                        countFinished(transferred), historyMessages);
+            }
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        long queries = metrics.queries() - queriesBefore;
+        return report(automations.size(), historyMessages, startTime, elapsed, queries);
+    }
+
+    /**
+     * The history of every auto chat is downloaded and every download is transferred. With new messages arriving
+     * the run only ends after the duration.
+     */
+    private boolean isDone() {
+        if (Config.TELEGRAM_SIMULATOR_MESSAGE_INTERVAL > 0 || started.isEmpty()) {
+            return false;
+        }
+        return AutomationsHolder.INSTANCE.autoRecords().automations.stream()
+                       .allMatch(automation -> automation.isComplete(SettingAutoRecords.HISTORY_DOWNLOAD_STATE))
+               && countFinished(transferred) == started.size();
+    }
+
+    /**
+     * Log in a simulated account and make each of its chats an auto chat.
+     */
+    private List<SettingAutoRecords.Automation> createAccount() throws InterruptedException {
+        TelegramVerticle telegramVerticle = new TelegramVerticle(DataVerticle.telegramRepository.getRootPath());
+        TelegramVerticles.add(telegramVerticle);
+        MessyUtils.await(vertx.deployVerticle(telegramVerticle));
+
+        JsonArray chats = new JsonArray();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (telegramVerticle.telegramRecord == null || chats.size() < Config.TELEGRAM_SIMULATOR_CHATS) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Simulated account %s did not log in".formatted(telegramVerticle.getRootId()));
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+            if (telegramVerticle.telegramRecord != null) {
+                chats = MessyUtils.await(telegramVerticle.getChats(null, null, false));
+            }
+        }
+
+        String destination = Config.APP_ROOT + File.separator + "transferred";
+        List<SettingAutoRecords.Automation> automations = new ArrayList<>();
+        for (int i = 0; i < chats.size(); i++) {
+            SettingAutoRecords.Automation automation = new SettingAutoRecords.Automation();
+            automation.telegramId = telegramVerticle.telegramRecord.id();
+            automation.chatId = Convert.toLong(chats.getJsonObject(i).getString("id"));
+            automation.preload = new SettingAutoRecords.PreloadConfig();
+            automation.download = new SettingAutoRecords.DownloadConfig();
+            automation.download.enabled = true;
+            automation.download.rule = new SettingAutoRecords.DownloadRule();
+            automation.download.rule.downloadHistory = true;
+            automation.transfer = new SettingAutoRecords.TransferConfig();
+            automation.transfer.enabled = true;
+            automation.transfer.rule = new SettingAutoRecords.TransferRule();
+            automation.transfer.rule.transferHistory = true;
+            automation.transfer.rule.destination = destination;
+            automation.transfer.rule.transferPolicy = Transfer.TransferPolicy.GROUP_BY_CHAT;
+            automation.transfer.rule.duplicationPolicy = Transfer.DuplicationPolicy.OVERWRITE;
+            automations.add(automation);
+        }
+        return automations;
+    }
+
+    private void initEventConsumer() {
+        vertx.eventBus().<JsonObject>consumer(EventEnum.MESSAGE_RECEIVED.address(), message -> {
+            long time = System.currentTimeMillis();
+            JsonObject body = message.body();
+            TelegramVerticles.get(body.getLong("telegramId")).ifPresent(telegramVerticle ->
+                    // the auto download asks for the same message, the lookups are shared
+                    telegramVerticle.client.execute(new TdApi.GetMessage(body.getLong("chatId"), body.getLong("messageId")))
+                            .onSuccess(received -> {
+                                String uniqueId = TdApiHelp.getFileUniqueId(received);
+                                if (uniqueId != null) {
+                                    seen.putIfAbsent(uniqueId, time);
+                                }
+                            }));
+        });
+        vertx.eventBus().<FileStatusEvent>consumer(EventEnum.FILE_STATUS_CHANGED.address(), message -> {
+            if (message.body().downloadStatus() == FileRecord.DownloadStatus.downloading) {
+                started.putIfAbsent(message.body().uniqueId(), System.currentTimeMillis());
+            }
+        });
+        vertx.eventBus().<FileStatusEvent>consumer(EventEnum.FILE_DOWNLOAD_COMPLETED.address(), message ->
+                downloaded.putIfAbsent(message.body().uniqueId(), System.currentTimeMillis()));
+        vertx.eventBus().<FileStatusEvent>consumer(EventEnum.FILE_TRANSFER_COMPLETED.address(), message ->
+                transferred.putIfAbsent(message.body().uniqueId(), System.currentTimeMillis()));
+    }
+
+    /**
+     * Files that were started and reached the stage.
+     */
+    private long countFinished(Map<String, Long> stage) {
+        return stage.keySet().stream().filter(started::containsKey).count();
+    }
+
+    private JsonObject report(int autoChats, long historyMessages, long startTime, long elapsed, long queries) {
+        ScenarioMetrics.Latencies seenToStarted = new ScenarioMetrics.Latencies();
+        ScenarioMetrics.Latencies startedToDownloaded = new ScenarioMetrics.Latencies();
+        ScenarioMetrics.Latencies downloadedToTransferred = new ScenarioMetrics.Latencies();
+        ScenarioMetrics.Latencies seenToTransferred = new ScenarioMetrics.Latencies();
+        started.forEach((uniqueId, startedTime) -> {
+            Long seenTime = seen.get(uniqueId);
+            Long downloadedTime = downloaded.get(uniqueId);
+            Long transferredTime = transferred.get(uniqueId);
+            if (seenTime != null) {
+                seenToStarted.add(startedTime - seenTime);
+            }
+            if (downloadedTime != null) {
+                startedToDownloaded.add(downloadedTime - startedTime);
+                if (transferredTime != null) {
+                    downloadedToTransferred.add(transferredTime - downloadedTime);
+                }
+            }
+            if (seenTime != null && transferredTime != null) {
+                seenToTransferred.add(transferredTime - seenTime);
+            }
+        });
+
+        long transferredFiles = countFinished(transferred);
+        long downloadedFiles = countFinished(downloaded);
+        // up to the last file, not the idle time until the run noticed that it is done
+        long lastTransfer = transferred.values().stream().mapToLong(Long::longValue).max().orElse(startTime + elapsed);
+        double minutes = Math.max(1, lastTransfer - startTime) / 60_000.0;
+        return JsonObject.of(
+                "scenario", JsonObject.of(
+                        "accounts", accounts,
+                        "autoChats", autoChats,
+                        "historyMessages", historyMessages,
+                        "downloadSpeed", Config.TELEGRAM_SIMULATOR_DOWNLOAD_SPEED,
+                        "maxFileSize", Config.TELEGRAM_SIMULATOR_MAX_FILE_SIZE,
+                        "messageInterval", Config.TELEGRAM_SIMULATOR_MESSAGE_INTERVAL,
+                        "database", Config.DB_TYPE),
+                "elapsedSeconds", elapsed / 1000,
+                "files", JsonObject.of(
+                        "started", started.size(),
+                        "downloaded", downloadedFiles,
+                        "transferred", transferredFiles,
+                        "downloadedPerMinute", Math.round(downloadedFiles / minutes),
+                        "transferredPerMinute", Math.round(transferredFiles / minutes)),
+                "queries", JsonObject.of(
+                        "total", queries,
+                        "perFile", transferredFiles == 0 ? 0 : Math.round(queries * 10.0 / transferredFiles) / 10.0),
+                "eventLoop", metrics.eventLoop(),
+                "peakHeapMB", metrics.peakHeap() / 1024 / 1024,
+                "latencyMillis", JsonObject.of(
+                        "seenToStarted", seenToStarted.toJson(),
+                        "startedToDownloaded", startedToDownloaded.toJson(),
+                        "downloadedToTransferred", downloadedToTransferred.toJson(),
+                        "seenToTransferred", seenToTransferred.toJson())
+        );
+    }
+}
@@ -0,0 +1,128 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.metrics.MetricsOptions;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.core.spi.metrics.ClientMetrics;
+import io.vertx.core.spi.metrics.VertxMetrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What {@link PipelineScenario} measures besides the file timings: the SQL statements of all pools, through the
+ * Vert.x metrics SPI, how long the event loops were kept from running their timers, and the peak heap.
+ */
+class ScenarioMetrics {
+
+    // a probe timer firing later than this counts as a blocked event loop
+    private static final long PROBE_INTERVAL_MILLIS = 10;
+
+    private final LongAdder queries = new LongAdder();
+
+    private final LongAdder blockedNanos = new LongAdder();
+
+    private final LongAccumulator maxBlockedNanos = new LongAccumulator(Math::max, 0);
+
+    private final AtomicLong peakHeap = new AtomicLong();
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    /**
+     * A Vert.x instance that reports its SQL statements here.
+     */
+    Vertx vertx() {
+        return Vertx.builder()
+                .with(new VertxOptions().setMetricsOptions(new MetricsOptions().setEnabled(true)))
+                .withMetrics(options -> new VertxMetrics() {
+                    @Override
+                    public ClientMetrics<?, ?, ?> createClientMetrics(SocketAddress remoteAddress, String type, String namespace) {
+                        if (!"sql".equals(type)) {
+                            return null;
+                        }
+                        return new ClientMetrics<Object, Object, Object>() {
+                            @Override
+                            public Object requestBegin(String uri, Object request) {
+                                queries.increment();
+                                return null;
+                            }
+                        };
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Run a timer on every event loop, the time it fires late is time the loop was busy with something else.
+     */
+    void startProbes(Vertx vertx) {
+        for (int i = 0; i < VertxOptions.DEFAULT_EVENT_LOOP_POOL_SIZE; i++) {
+            // contexts created outside of Vert.x are spread over the event loops
+            vertx.getOrCreateContext().runOnContext(v -> probe(vertx, System.nanoTime()));
+        }
+    }
+
+    private void probe(Vertx vertx, long scheduled) {
+        vertx.setTimer(PROBE_INTERVAL_MILLIS, id -> {
+            long now = System.nanoTime();
+            long late = now - scheduled - PROBE_INTERVAL_MILLIS * 1_000_000;
+            // the timer wheel itself is a few milliseconds off
+            if (late > PROBE_INTERVAL_MILLIS * 1_000_000) {
+                blockedNanos.add(late);
+                maxBlockedNanos.accumulate(late);
+            }
+            peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+            probe(vertx, now);
+        });
+    }
+
+    long queries() {
+        return queries.sum();
+    }
+
+    JsonObject eventLoop() {
+        return JsonObject.of("blockedMillis", blockedNanos.sum() / 1_000_000,
+                "maxBlockedMillis", maxBlockedNanos.get() / 1_000_000);
+    }
+
+    long peakHeap() {
+        return peakHeap.get();
+    }
+
+    /**
+     * Durations of one stage of the pipeline, in milliseconds.
+     */
+    static class Latencies {
+
+        private final List<Long> values = new ArrayList<>();
+
+        synchronized void add(long millis) {
+            values.add(millis);
+        }
+
+        synchronized JsonObject toJson() {
+            long[] sorted = values.stream().mapToLong(Long::longValue).sorted().toArray();
+            return JsonObject.of("count", sorted.length,
+                    "p50", percentile(sorted, 50),
+                    "p99", percentile(sorted, 99),
+                    "max", sorted.length == 0 ? 0 : sorted[sorted.length - 1],
+                    "mean", (long) Arrays.stream(sorted).average().orElse(0));
+        }
+
+        private static long percentile(long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package telegram.files;
+
+import io.vertx.core.json.JsonObject;
+import org.drinkless.tdlib.TdApi;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of the JSON body of the {@code POST /telegram/api/:method} route to the TDLib function.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TdApiHelpBenchmark {
+
+    private Map<String, Object> getChatHistory;
+
+    private Map<String, Object> searchChatMessages;
+
+    @Setup
+    public void setUp() {
+        getChatHistory = JsonObject.of(
+                "chatId", -1001234567890L,
+                "fromMessageId", 123456789L,
+                "offset", 0,
+                "limit", 100,
+                "onlyLocal", false
+        ).getMap();
+        searchChatMessages = JsonObject.of(
+                "chatId", -1001234567890L,
+                "query", "holiday",
+                "fromMessageId", 0L,
+                "offset", 0,
+                "limit", 100,
+                "filter", JsonObject.of("@type", TdApi.SearchMessagesFilterVideo.CONSTRUCTOR).getMap(),
+                "messageThreadId", 0L
+        ).getMap();
+    }
+
+    @Benchmark
+    public TdApi.Function<?> withoutParams() {
+        return TdApiHelp.getFunction("GetMe", null);
+    }
+
+    @Benchmark
+    public TdApi.Function<?> flatParams() {
+        return TdApiHelp.getFunction("GetChatHistory", getChatHistory);
+    }
+
+    @Benchmark
+    public TdApi.Function<?> nestedParams() {
+        return TdApiHelp.getFunction("SearchChatMessages", searchChatMessages);
+    }
+}
@@ -0,0 +1,120 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Pool;
+import org.drinkless.tdlib.TdApi;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.impl.FileRepositoryImpl;
+import telegram.files.repository.impl.SettingRepositoryImpl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting a page of 100 chat messages for the web page, half of them already have a file record in
+ * {@link BenchmarkDatabase}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TelegramConverterBenchmark {
+
+    private static final long TELEGRAM_ID = 1000L;
+
+    private static final int PAGE = 100;
+
+    private Vertx vertx;
+
+    private Pool pool;
+
+    private final TdApi.Message[] messages = new TdApi.Message[PAGE];
+
+    private final FileRecord[] records = new FileRecord[PAGE];
+
+    @Setup
+    public void setUp() {
+        vertx = Vertx.vertx();
+        pool = BenchmarkDatabase.open(vertx);
+        DataVerticle.fileRepository = new FileRepositoryImpl(pool);
+        DataVerticle.settingRepository = new SettingRepositoryImpl(pool);
+
+        for (int i = 0; i < PAGE; i++) {
+            // even messages are known, alternately a photo and a video row
+            int row = i % 2 == 0 ? i / 2 * 20 + i / 2 % 2 : BenchmarkDatabase.ROWS + i;
+            messages[i] = row % 4 == 1 ? videoMessage(row) : photoMessage(row);
+            records[i] = TdApiHelp.getFileHandler(messages[i]).orElseThrow().convertFileRecord(TELEGRAM_ID);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        MessyUtils.await(pool.close());
+        MessyUtils.await(vertx.close());
+    }
+
+    @Benchmark
+    public JsonArray convertFiles() {
+        return MessyUtils.await(TelegramConverter.convertFiles(TELEGRAM_ID, messages));
+    }
+
+    @Benchmark
+    public void withSource(Blackhole blackhole) {
+        for (int i = 0; i < PAGE; i++) {
+            JsonObject fileObject = TelegramConverter.withSource(TELEGRAM_ID, records[i], null, messages[i]);
+            blackhole.consume(fileObject);
+        }
+    }
+
+    private static TdApi.Message message(int row, TdApi.MessageContent content) {
+        TdApi.Message message = new TdApi.Message();
+        message.id = BenchmarkDatabase.messageId(row);
+        message.chatId = BenchmarkDatabase.chatId(row % BenchmarkDatabase.CHATS);
+        message.date = 1_600_000_000 + row * 30;
+        message.content = content;
+        return message;
+    }
+
+    private static TdApi.Message photoMessage(int row) {
+        TdApi.MessagePhoto content = new TdApi.MessagePhoto();
+        content.photo = new TdApi.Photo();
+        content.photo.minithumbnail = new TdApi.Minithumbnail(40, 22, new byte[512]);
+        content.photo.sizes = new TdApi.PhotoSize[]{
+                new TdApi.PhotoSize("m", file(row * 2 + 1, "thumb-" + row, 20_000), 320, 180, new int[0]),
+                new TdApi.PhotoSize("y", file(row * 2, BenchmarkDatabase.uniqueId(row), 400_000), 1280, 720, new int[0])
+        };
+        content.caption = new TdApi.FormattedText("Caption of message %d".formatted(row), new TdApi.TextEntity[0]);
+        return message(row, content);
+    }
+
+    private static TdApi.Message videoMessage(int row) {
+        TdApi.MessageVideo content = new TdApi.MessageVideo();
+        content.video = new TdApi.Video();
+        content.video.video = file(row * 2, BenchmarkDatabase.uniqueId(row), 50_000_000);
+        content.video.fileName = "file-%d.mp4".formatted(row);
+        content.video.mimeType = "video/mp4";
+        content.video.width = 1280;
+        content.video.height = 720;
+        content.video.duration = 120;
+        content.video.minithumbnail = new TdApi.Minithumbnail(40, 22, new byte[512]);
+        content.video.thumbnail = new TdApi.Thumbnail(new TdApi.ThumbnailFormatJpeg(), 320, 180,
+                file(row * 2 + 1, BenchmarkDatabase.uniqueId(row - row % 10 + 9), 20_000));
+        content.caption = new TdApi.FormattedText("", new TdApi.TextEntity[0]);
+        return message(row, content);
+    }
+
+    private static TdApi.File file(int id, String uniqueId, long size) {
+        TdApi.File file = new TdApi.File();
+        file.id = id;
+        file.size = size;
+        file.local = new TdApi.LocalFile();
+        file.remote = new TdApi.RemoteFile();
+        file.remote.uniqueId = uniqueId;
+        return file;
+    }
+}
@@ -23,8 +23,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
-import java.util.stream.IntStream;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class AutoDownloadVerticle extends AbstractVerticle {
@@ -41,16 +44,27 @@ public class AutoDownloadVerticle extends AbstractVerticle {
 
     private static final int DOWNLOAD_INTERVAL = 10 * 1000;
 
+    private static final int SLOT_RECONCILE_INTERVAL = 60 * 1000;
+
     private static final List<String> DEFAULT_FILE_TYPE_ORDER = List.of("photo", "video", "audio", "file");
 
-    // telegramId -> messages
-    private final Map<Long, LinkedList<MessageWrapper>> waitingDownloadMessages = new ConcurrentHashMap<>();
+    private final DownloadQueue downloadQueue = DownloadQueue.INSTANCE;
+
+    private final HistoryScanner historyScanner = new HistoryScanner("auto-download", Config.HISTORY_SCAN_CONCURRENCY, MAX_HISTORY_SCAN_TIME);
+
+    // telegramId -> downloads dispatched but not yet holding a slot
+    private final Map<Long, Integer> startingDownloads = new ConcurrentHashMap<>();
 
     // telegramId -> waiting scan threads
     private final Map<Long, LinkedList<WaitingScanThread>> waitingScanThreads = new ConcurrentHashMap<>();
 
     private final SettingAutoRecords autoRecords;
 
+    // download runs on virtual threads, where waiting for a monitor would pin the carrier thread
+    private final ReentrantLock downloadLock = new ReentrantLock();
+
+    private Consumer<Long> onSlotReleased;
+
     private int limit = DEFAULT_LIMIT;
 
     private SettingTimeLimitedDownload timeLimited;
@@ -58,14 +72,21 @@ public class AutoDownloadVerticle extends AbstractVerticle {
     public AutoDownloadVerticle() {
         this.autoRecords = AutomationsHolder.INSTANCE.autoRecords();
         AutomationsHolder.INSTANCE.registerOnRemoveListener(removedItems -> removedItems.forEach(item ->
-                waitingDownloadMessages.getOrDefault(item.telegramId, new LinkedList<>())
-                        .removeIf(m -> m.message.chatId == item.chatId)));
+                downloadQueue.removeChat(item.telegramId, item.chatId)));
     }
 
     @Override
     public void start(Promise<Void> startPromise) {
+        // dispatch the next file as soon as a download completes or fails, instead of waiting for the next tick
+        onSlotReleased = telegramId -> context.runOnContext(v -> download(telegramId));
+        DownloadSlots.INSTANCE.registerOnReleaseListener(onSlotReleased);
+        Metrics.INSTANCE.gauge("auto_download_queue_depth", "Messages waiting for an auto download.", "telegram_id",
+                () -> perAccount(downloadQueue::size));
+        Metrics.INSTANCE.gauge("auto_download_free_slots", "Free auto download slots.", "telegram_id",
+                () -> perAccount(this::getSurplusSize));
         initAutoDownload()
                 .compose(v -> this.initEventConsumer())
+                .compose(v -> this.reconcileDownloadSlots())
                 .onSuccess(v -> {
                     vertx.setPeriodic(0, HISTORY_SCAN_INTERVAL,
                             id -> {
@@ -85,34 +106,35 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                                             } else {
                                                 if (auto.isNotComplete(SettingAutoRecords.HISTORY_DOWNLOAD_SCAN_STATE)) {
                                                     addHistoryMessage(auto);
-                                                } else {
-                                                    LinkedList<MessageWrapper> messageWrappers = waitingDownloadMessages.get(auto.telegramId);
-                                                    if (CollUtil.isEmpty(messageWrappers) ||
-                                                        messageWrappers.stream().noneMatch(w -> w.isHistorical)) {
-                                                        auto.complete(SettingAutoRecords.HISTORY_DOWNLOAD_STATE);
-                                                    }
+                                                } else if (!downloadQueue.hasHistorical(auto.telegramId)) {
+                                                    auto.complete(SettingAutoRecords.HISTORY_DOWNLOAD_STATE);
                                                 }
                                             }
                                         });
                             });
+                    // downloads are dispatched when messages are queued and when slots free up, this only catches up
+                    // after time limits, limit changes and failed starts
                     vertx.setPeriodic(0, DOWNLOAD_INTERVAL,
                             id -> {
                                 if (!isDownloadTime()) {
                                     log.debug("Auto download time limited! Skip download.");
                                     return;
                                 }
-                                waitingDownloadMessages.keySet().forEach(this::download);
+                                downloadQueue.telegramIds().forEach(this::download);
                             });
+                    vertx.setPeriodic(SLOT_RECONCILE_INTERVAL, id -> reconcileDownloadSlots());
 
                     log.info("""
                             Auto download verticle started!
                             |History scan interval: %s ms
                             |Download interval: %s ms
+                            |History scan concurrency: %s per telegram account
                             |Download limit: %s per telegram account!
                             |Time limit: %s
                             |Auto chats: %s
                             """.formatted(HISTORY_SCAN_INTERVAL,
                             DOWNLOAD_INTERVAL,
+                            Config.HISTORY_SCAN_CONCURRENCY,
                             limit,
                             timeLimited == null ? "" : Json.encode(timeLimited),
                             autoRecords.getDownloadEnabledItems().size()));
@@ -124,6 +146,9 @@ public class AutoDownloadVerticle extends AbstractVerticle {
 
     @Override
     public void stop() {
+        if (onSlotReleased != null) {
+            DownloadSlots.INSTANCE.removeOnReleaseListener(onSlotReleased);
+        }
         log.info("Auto download verticle stopped!");
     }
 
@@ -142,10 +167,27 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                 .mapEmpty();
     }
 
+    private Map<Long, Integer> perAccount(ToIntFunction<Long> value) {
+        return TelegramVerticles.getAll().stream()
+                .filter(telegramVerticle -> telegramVerticle.telegramRecord != null)
+                .map(telegramVerticle -> telegramVerticle.telegramRecord.id())
+                .collect(Collectors.toMap(Function.identity(), value::applyAsInt, (a, b) -> a));
+    }
+
+    private Future<Void> reconcileDownloadSlots() {
+        return Future.join(TelegramVerticles.getAll().stream()
+                        .filter(telegramVerticle -> telegramVerticle.telegramRecord != null)
+                        .map(telegramVerticle -> DownloadSlots.INSTANCE.reconcile(telegramVerticle.telegramRecord.id()))
+                        .toList())
+                .<Void>mapEmpty()
+                .otherwiseEmpty();
+    }
+
     private Future<Void> initEventConsumer() {
         vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.autoDownloadLimit.name()), message -> {
             log.debug("Auto download limit update: %s".formatted(message.body()));
             this.limit = Convert.toInt(message.body(), DEFAULT_LIMIT);
+            downloadQueue.telegramIds().forEach(this::download);
         });
         vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.autoDownloadTimeLimited.name()), message -> {
             log.debug("Auto download time limit update: %s".formatted(message.body()));
@@ -179,8 +221,7 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                         if (result.isComplete) {
                             scanThread.isComplete = true;
                         }
-                    },
-                    System.currentTimeMillis()
+                    }
             );
         });
     }
@@ -198,86 +239,80 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                     if (result.isComplete) {
                         auto.complete(SettingAutoRecords.HISTORY_DOWNLOAD_SCAN_STATE);
                     }
-                },
-                System.currentTimeMillis()
+                }
         );
     }
 
-    private void addHistoryMessage(ScanParams params,
-                                   Consumer<ScanResult> callback,
-                                   long currentTimeMillis) {
+    private void addHistoryMessage(ScanParams params, Consumer<ScanResult> callback) {
+        historyScanner.submit(new HistoryScanner.Task(params.uniqueKey,
+                params.telegramId,
+                () -> scanHistoryPage(params, callback)));
+    }
+
+    /**
+     * Scan one page of the history and move the cursor, the callback receives the cursor after every page.
+     */
+    private Future<HistoryScanner.Step> scanHistoryPage(ScanParams params, Consumer<ScanResult> callback) {
         String uniqueKey = params.uniqueKey;
         long telegramId = params.telegramId;
         long chatId = params.chatId;
-        long nextFromMessageId = params.nextFromMessageId;
-        String nextFileType = params.nextFileType;
         Tuple2<String, List<String>> rule = handleRule(params.rule);
-        if (StrUtil.isBlank(nextFileType)) {
-            nextFileType = rule.v2.getFirst();
+        if (StrUtil.isBlank(params.nextFileType)) {
+            params.nextFileType = rule.v2.getFirst();
         }
+        String nextFileType = params.nextFileType;
 
         log.debug("Start scan history! TelegramId: %d ChatId: %d FileType: %s".formatted(telegramId, chatId, nextFileType));
-        if (System.currentTimeMillis() - currentTimeMillis > MAX_HISTORY_SCAN_TIME) {
-            log.debug("Scan history timeout! TelegramId: %d ChatId: %d".formatted(telegramId, chatId));
-            callback.accept(new ScanResult(nextFileType, nextFromMessageId, false));
-            return;
-        }
         if (isExceedLimit(telegramId)) {
             log.debug("Scan history exceed per telegram account limit! TelegramId: %d ChatId: %d".formatted(telegramId, chatId));
-            callback.accept(new ScanResult(nextFileType, nextFromMessageId, false));
-            return;
+            return Future.succeededFuture(HistoryScanner.Step.YIELD);
         }
 
         TelegramVerticle telegramVerticle = TelegramVerticles.getOrElseThrow(telegramId);
         TdApi.SearchChatMessages searchChatMessages = new TdApi.SearchChatMessages();
         searchChatMessages.query = rule.v1;
         searchChatMessages.chatId = chatId;
-        searchChatMessages.fromMessageId = nextFromMessageId;
+        searchChatMessages.fromMessageId = params.nextFromMessageId;
         searchChatMessages.limit = Math.min(MAX_WAITING_LENGTH, 100);
         searchChatMessages.filter = TdApiHelp.getSearchMessagesFilter(nextFileType);
         searchChatMessages.messageThreadId = params.messageThreadId;
-        TdApi.FoundChatMessages foundChatMessages = Future.await(telegramVerticle.client.execute(searchChatMessages)
-                .onFailure(r -> log.error("Search chat messages failed! TelegramId: %d ChatId: %d".formatted(telegramId, chatId), r))
-        );
-        if (foundChatMessages == null) {
-            callback.accept(new ScanResult(nextFileType, nextFromMessageId, false));
-            return;
-        }
-        if (foundChatMessages.messages.length == 0) {
-            List<String> fileTypes = rule.v2;
-            int nextTypeIndex = fileTypes.indexOf(nextFileType) + 1;
-            if (nextTypeIndex < fileTypes.size()) {
-                params.nextFileType = fileTypes.get(nextTypeIndex);
-                params.nextFromMessageId = 0;
-                log.debug("%s No more %s files found! Switch to %s".formatted(uniqueKey, nextFileType, params.nextFileType));
-                addHistoryMessage(params, callback, currentTimeMillis);
-            } else {
-                log.debug("%s No more history files found! TelegramId: %d ChatId: %d".formatted(uniqueKey, telegramId, chatId));
-                callback.accept(new ScanResult(nextFileType, nextFromMessageId, true));
-            }
-        } else {
-            DataVerticle.fileRepository.getFilesByUniqueId(TdApiHelp.getFileUniqueIds(Arrays.asList(foundChatMessages.messages)))
-                    .onSuccess(existFiles -> {
-                        List<TdApi.Message> messages = Stream.of(foundChatMessages.messages)
-                                .filter(message -> {
-                                    String uniqueId = TdApiHelp.getFileUniqueId(message);
-                                    if (!existFiles.containsKey(uniqueId)) {
-                                        return true;
-                                    } else {
-                                        FileRecord fileRecord = existFiles.get(uniqueId);
-                                        return fileRecord.isDownloadStatus(FileRecord.DownloadStatus.idle);
-                                    }
-                                })
-                                .toList();
-                        if (CollUtil.isEmpty(messages)) {
-                            params.nextFromMessageId = foundChatMessages.nextFromMessageId;
-                            addHistoryMessage(params, callback, currentTimeMillis);
-                        } else if (addWaitingDownloadMessages(telegramId, messages, false, true)) {
-                            params.nextFromMessageId = foundChatMessages.nextFromMessageId;
-                            addHistoryMessage(params, callback, currentTimeMillis);
+        return telegramVerticle.client.executeInBackground(searchChatMessages)
+                .compose(foundChatMessages -> {
+                    if (foundChatMessages.messages.length == 0) {
+                        List<String> fileTypes = rule.v2;
+                        int nextTypeIndex = fileTypes.indexOf(nextFileType) + 1;
+                        if (nextTypeIndex < fileTypes.size()) {
+                            params.nextFileType = fileTypes.get(nextTypeIndex);
+                            params.nextFromMessageId = 0;
+                            log.debug("%s No more %s files found! Switch to %s".formatted(uniqueKey, nextFileType, params.nextFileType));
+                            callback.accept(new ScanResult(params.nextFileType, params.nextFromMessageId, false));
+                            return Future.succeededFuture(HistoryScanner.Step.NEXT);
                         }
-                    });
-        }
+                        log.debug("%s No more history files found! TelegramId: %d ChatId: %d".formatted(uniqueKey, telegramId, chatId));
+                        callback.accept(new ScanResult(nextFileType, params.nextFromMessageId, true));
+                        return Future.succeededFuture(HistoryScanner.Step.DONE);
+                    }
+                    return DataVerticle.fileRepository.getFilesByUniqueId(TdApiHelp.getFileUniqueIds(Arrays.asList(foundChatMessages.messages)))
+                            .map(existFiles -> {
+                                List<TdApi.Message> messages = Stream.of(foundChatMessages.messages)
+                                        .filter(message -> {
+                                            String uniqueId = TdApiHelp.getFileUniqueId(message);
+                                            if (!existFiles.containsKey(uniqueId)) {
+                                                return true;
+                                            } else {
+                                                FileRecord fileRecord = existFiles.get(uniqueId);
+                                                return fileRecord.isDownloadStatus(FileRecord.DownloadStatus.idle);
+                                            }
+                                        })
+                                        .toList();
+                                if (CollUtil.isNotEmpty(messages) && !addWaitingDownloadMessages(telegramId, messages, false, true)) {
+                                    return HistoryScanner.Step.YIELD;
+                                }
+                                params.nextFromMessageId = foundChatMessages.nextFromMessageId;
+                                callback.accept(new ScanResult(params.nextFileType, params.nextFromMessageId, false));
+                                return HistoryScanner.Step.NEXT;
+                            });
+                });
     }
 
     private Tuple2<String, List<String>> handleRule(SettingAutoRecords.DownloadRule rule) {
@@ -314,13 +349,13 @@ public class AutoDownloadVerticle extends AbstractVerticle {
     }
 
     private boolean isExceedLimit(long telegramId) {
-        List<MessageWrapper> waitingMessages = this.waitingDownloadMessages.get(telegramId);
-        return getSurplusSize(telegramId) <= 0 || (waitingMessages != null && waitingMessages.size() > limit);
+        return getSurplusSize(telegramId) <= 0 || downloadQueue.size(telegramId) > limit;
     }
 
     private int getSurplusSize(long telegramId) {
-        Integer downloading = Future.await(DataVerticle.fileRepository.countByStatus(telegramId, FileRecord.DownloadStatus.downloading));
-        return downloading == null ? limit : Math.max(0, limit - downloading);
+        return Math.max(0, limit
+                           - DownloadSlots.INSTANCE.downloading(telegramId)
+                           - startingDownloads.getOrDefault(telegramId, 0));
     }
 
     private boolean isDownloadCommentEnabled(SettingAutoRecords.Automation auto) {
@@ -341,61 +376,66 @@ public class AutoDownloadVerticle extends AbstractVerticle {
         if (CollUtil.isEmpty(messages)) {
             return false;
         }
-        LinkedList<MessageWrapper> waitingMessages = this.waitingDownloadMessages.get(telegramId);
-        if (waitingMessages == null) {
-            waitingMessages = new LinkedList<>();
-        }
-        if (!force && waitingMessages.size() > MAX_WAITING_LENGTH) {
+        if (!force && downloadQueue.size(telegramId) > MAX_WAITING_LENGTH) {
             return false;
-        } else {
-            log.debug("Add waiting download messages: %d".formatted(messages.size()));
-            waitingMessages.addAll(TdApiHelp.filterUniqueMessages(messages)
-                    .stream()
-                    .map(message -> new MessageWrapper(message, isHistorical))
-                    .toList()
-            );
         }
-        this.waitingDownloadMessages.put(telegramId, waitingMessages);
+        log.debug("Add waiting download messages: %d".formatted(messages.size()));
+        TdApiHelp.filterUniqueMessages(messages)
+                .forEach(message -> downloadQueue.add(telegramId, message, isHistorical));
+        if (isDownloadTime()) {
+            download(telegramId);
+        }
         return true;
     }
 
     private void download(long telegramId) {
-        if (CollUtil.isEmpty(waitingDownloadMessages)) {
-            return;
-        }
-        LinkedList<MessageWrapper> messages = waitingDownloadMessages.get(telegramId);
-        if (CollUtil.isEmpty(messages)) {
-            return;
-        }
-        log.debug("Download start! TelegramId: %d size: %d".formatted(telegramId, messages.size()));
-        TelegramVerticle telegramVerticle = TelegramVerticles.getOrElseThrow(telegramId);
-        int surplusSize = getSurplusSize(telegramId);
-        if (surplusSize <= 0) {
-            return;
+        downloadLock.lock();
+        try {
+            if (downloadQueue.size(telegramId) == 0 || !isDownloadTime()) {
+                return;
+            }
+            int surplusSize = getSurplusSize(telegramId);
+            if (surplusSize <= 0) {
+                return;
+            }
+            TelegramVerticle telegramVerticle = TelegramVerticles.getOrElseThrow(telegramId);
+            log.debug("Download start! TelegramId: %d size: %d".formatted(telegramId, downloadQueue.size(telegramId)));
+
+            List<DownloadQueue.Item> downloadMessages = downloadQueue.poll(telegramId, surplusSize);
+            startingDownloads.merge(telegramId, downloadMessages.size(), Integer::sum);
+            downloadMessages.forEach(item -> {
+                TdApi.Message message = item.message();
+                Integer fileId = TdApiHelp.getFileId(message);
+                log.debug("Start download file: %s".formatted(fileId));
+                telegramVerticle.startDownload(message.chatId, message.id, fileId)
+                        .onComplete(r -> {
+                            startingDownloads.merge(telegramId, -1, Integer::sum);
+                            if (r.failed() || r.result() == null
+                                || r.result().isDownloadStatus(FileRecord.DownloadStatus.completed)) {
+                                // the slot was not taken, give it to the next message
+                                download(telegramId);
+                            }
+                        })
+                        .onSuccess(fileRecord -> {
+                            if (fileRecord == null) {
+                                return;
+                            }
+                            log.info("Start download file success! ChatId: %d MessageId:%d FileId:%d"
+                                    .formatted(message.chatId, message.id, fileId));
+                            if (fileRecord.threadChatId() != 0
+                                && fileRecord.messageThreadId() != 0
+                                && fileRecord.threadChatId() != fileRecord.chatId()) {
+                                waitingScanThreads.computeIfAbsent(telegramId, k -> new LinkedList<>())
+                                        .add(new WaitingScanThread(telegramId, fileRecord.threadChatId(), fileRecord.messageThreadId()));
+                            }
+                        })
+                        .onFailure(e -> log.error("Download file failed! ChatId: %d MessageId:%d FileId:%d"
+                                .formatted(message.chatId, message.id, fileId), e));
+            });
+            log.debug("Remaining download messages: %d".formatted(downloadQueue.size(telegramId)));
+        } finally {
+            downloadLock.unlock();
         }
-
-        List<MessageWrapper> downloadMessages = IntStream.range(0, Math.min(surplusSize, messages.size()))
-                .mapToObj(i -> messages.poll())
-                .toList();
-        downloadMessages.forEach(messageWrapper -> {
-            TdApi.Message message = messageWrapper.message;
-            Integer fileId = TdApiHelp.getFileId(message);
-            log.debug("Start download file: %s".formatted(fileId));
-            telegramVerticle.startDownload(message.chatId, message.id, fileId)
-                    .onSuccess(fileRecord -> {
-                        log.info("Start download file success! ChatId: %d MessageId:%d FileId:%d"
-                                .formatted(message.chatId, message.id, fileId));
-                        if (fileRecord.threadChatId() != 0
-                            && fileRecord.messageThreadId() != 0
-                            && fileRecord.threadChatId() != fileRecord.chatId()) {
-                            waitingScanThreads.computeIfAbsent(telegramId, k -> new LinkedList<>())
-                                    .add(new WaitingScanThread(telegramId, fileRecord.threadChatId(), fileRecord.messageThreadId()));
-                        }
-                    })
-                    .onFailure(e -> log.error("Download file failed! ChatId: %d MessageId:%d FileId:%d"
-                            .formatted(message.chatId, message.id, fileId), e));
-        });
-        log.debug("Remaining download messages: %d".formatted(messages.size()));
     }
 
     private void onNewMessage(JsonObject jsonObject) {
@@ -408,7 +448,7 @@ public class AutoDownloadVerticle extends AbstractVerticle {
                 .flatMap(item -> TelegramVerticles.get(telegramId))
                 .ifPresent(telegramVerticle -> {
                     if (telegramVerticle.authorized) {
-                        telegramVerticle.client.execute(new TdApi.GetMessage(chatId, messageId))
+                        telegramVerticle.client.executeInBackground(new TdApi.GetMessage(chatId, messageId))
                                 .onSuccess(message -> addWaitingDownloadMessages(telegramId, List.of(message), true, false))
                                 .onFailure(e -> log.error("Auto download fail. Get message failed: %s".formatted(e.getMessage())));
                     }
@@ -478,7 +518,4 @@ public class AutoDownloadVerticle extends AbstractVerticle {
             this.messageThreadId = messageThreadId;
         }
     }
-
-    private record MessageWrapper(TdApi.Message message, boolean isHistorical) {
-    }
 }
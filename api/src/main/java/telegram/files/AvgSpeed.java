@@ -1,23 +1,38 @@
 package telegram.files;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.stream.Collectors;
-
+/**
+ * Download speed over the last interval, from the total downloaded size reported over time.
+ * <p>
+ * Points are kept in a ring of primitive arrays ordered by time, which only grows while the interval holds more
+ * points than ever before, so an update allocates nothing. The sum and the sum of squares of the speeds in the
+ * smoothing window are kept up to date as points enter and leave it, which makes the mean and the variance used for
+ * smoothing O(1).
+ */
 public class AvgSpeed {
-    private final int interval;
+    private static final int INITIAL_CAPACITY = 64;
 
-    private final TreeMap<Long, SpeedPoint> speedPoints;
+    private final int interval;
 
     private final int smoothingWindowSize;
 
-    /**
-     * @param speed Speed since last point
-     */
-    record SpeedPoint(long downloadedSize, long speed, long timestamp) {
-    }
+    private long[] downloadedSizes = new long[INITIAL_CAPACITY];
+
+    // speed since the point before, smoothed
+    private long[] speeds = new long[INITIAL_CAPACITY];
+
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+
+    // reused to select the median
+    private long[] scratch = new long[INITIAL_CAPACITY];
+
+    private int head;
+
+    private int size;
+
+    // sum and sum of squares of the speeds of the last smoothingWindowSize points
+    private long windowSum;
+
+    private double windowSquareSum;
 
     public AvgSpeed() {
         this(5 * 60); // Default interval is 5 minutes
@@ -29,14 +44,13 @@ public class AvgSpeed {
 
     public AvgSpeed(int interval, int smoothingWindowSize) {
         this.interval = interval;
-        this.speedPoints = new TreeMap<>();
-        this.smoothingWindowSize = smoothingWindowSize;
+        this.smoothingWindowSize = Math.max(0, smoothingWindowSize);
     }
 
     /**
-     * Update download progress
+     * Update download progress. A point at the time of the last point, or before it, replaces the last point.
      */
-    public void update(long downloadedSize, long timestamp) {
+    public synchronized void update(long downloadedSize, long timestamp) {
         if (downloadedSize <= 0) {
             removeOldPoints(timestamp);
             return;
@@ -45,40 +59,103 @@ public class AvgSpeed {
         long speed = calculateInstantSpeed(downloadedSize, timestamp);
 
         // Apply smoothing if we have enough points
-        if (speedPoints.size() >= smoothingWindowSize) {
+        if (size >= smoothingWindowSize) {
             speed = smoothSpeed(speed);
         }
 
-        // Add new speed point
-        speedPoints.put(timestamp, new SpeedPoint(downloadedSize, speed, timestamp));
+        if (size > 0 && timestamp <= timestamps[index(size - 1)]) {
+            int last = index(size - 1);
+            if (smoothingWindowSize > 0) {
+                leaveWindow(speeds[last]);
+                enterWindow(speed);
+            }
+            downloadedSizes[last] = downloadedSize;
+            speeds[last] = speed;
+        } else {
+            append(downloadedSize, speed, timestamp);
+        }
 
         removeOldPoints(timestamp);
     }
 
+    private int index(int i) {
+        return (head + i) & (timestamps.length - 1);
+    }
+
+    private void append(long downloadedSize, long speed, long timestamp) {
+        if (size == timestamps.length) {
+            grow();
+        }
+        int i = index(size);
+        downloadedSizes[i] = downloadedSize;
+        speeds[i] = speed;
+        timestamps[i] = timestamp;
+        size++;
+        if (smoothingWindowSize > 0) {
+            enterWindow(speed);
+            if (size > smoothingWindowSize) {
+                leaveWindow(speeds[index(size - 1 - smoothingWindowSize)]);
+            }
+        }
+    }
+
+    private void grow() {
+        int capacity = timestamps.length * 2;
+        downloadedSizes = copy(downloadedSizes, capacity);
+        speeds = copy(speeds, capacity);
+        timestamps = copy(timestamps, capacity);
+        scratch = new long[capacity];
+        head = 0;
+    }
+
+    private long[] copy(long[] ring, int capacity) {
+        long[] copy = new long[capacity];
+        for (int i = 0; i < size; i++) {
+            copy[i] = ring[index(i)];
+        }
+        return copy;
+    }
+
+    private void enterWindow(long speed) {
+        windowSum += speed;
+        windowSquareSum += (double) speed * speed;
+    }
+
+    private void leaveWindow(long speed) {
+        windowSum -= speed;
+        windowSquareSum -= (double) speed * speed;
+    }
+
     private void removeOldPoints(long timestamp) {
         long cutoffTime = timestamp - interval * 1000L; // Convert interval to milliseconds
-        speedPoints.headMap(cutoffTime).clear();
+        while (size > 0 && timestamps[head] < cutoffTime) {
+            if (size <= smoothingWindowSize) {
+                leaveWindow(speeds[head]);
+            }
+            head = (head + 1) & (timestamps.length - 1);
+            size--;
+        }
+        if (size == 0) {
+            windowSum = 0;
+            windowSquareSum = 0;
+        }
     }
 
     private long calculateInstantSpeed(long currentSize, long currentTime) {
-        if (speedPoints.isEmpty()) {
+        if (size == 0) {
             return 0;
         }
 
         // Find the earliest point within our smoothing window
-        int pointsToConsider = Math.min(smoothingWindowSize, speedPoints.size());
-        List<SpeedPoint> recentPoints = speedPoints.values().stream()
-                .skip(speedPoints.size() - pointsToConsider)
-                .toList();
+        int pointsToConsider = Math.min(smoothingWindowSize, size);
+        int earliest = index(size - Math.max(1, pointsToConsider));
 
-        SpeedPoint earliestPoint = recentPoints.getFirst();
-
-        long timeDiff = currentTime - earliestPoint.timestamp;
+        long timeDiff = currentTime - timestamps[earliest];
         if (timeDiff <= 0) {
             return 0;
         }
 
-        long bytesDiff = currentSize - earliestPoint.downloadedSize;
+        long bytesDiff = currentSize - downloadedSizes[earliest];
         if (bytesDiff < 0) {
             // Handle download restart
             bytesDiff = currentSize;
@@ -87,79 +164,60 @@ public class AvgSpeed {
         return (bytesDiff * 1000L) / timeDiff; // Speed in bytes per second
     }
 
+    /**
+     * Drop the speeds more than 3 standard deviations away from the mean of the window and the current speed, then
+     * weight the rest by recency.
+     */
     private long smoothSpeed(long currentSpeed) {
-        if (speedPoints.isEmpty()) {
+        int windowSize = Math.min(smoothingWindowSize, size);
+        int count = windowSize + 1;
+        if (count < 2) {
             return currentSpeed;
         }
 
-        List<Long> recentSpeeds = speedPoints.values().stream()
-                .skip(Math.max(0, speedPoints.size() - smoothingWindowSize))
-                .map(point -> point.speed)
-                .collect(Collectors.toList());
-        recentSpeeds.add(currentSpeed);
-
-        if (recentSpeeds.size() < 2) {
-            return currentSpeed;
-        }
-
-        double mean = recentSpeeds.stream()
-                .mapToLong(Long::longValue)
-                .average()
-                .orElse(currentSpeed);
-
-        double standardDeviation = Math.sqrt(
-                recentSpeeds.stream()
-                        .mapToDouble(speed -> {
-                            double diff = speed - mean;
-                            return diff * diff;
-                        })
-                        .average()
-                        .orElse(0.0)
-        );
+        double mean = (double) (windowSum + currentSpeed) / count;
+        double variance = Math.max(0, (windowSquareSum + (double) currentSpeed * currentSpeed) / count - mean * mean);
+        double standardDeviation = Math.sqrt(variance);
 
         double upperThreshold = mean + (3 * standardDeviation);
         double lowerThreshold = mean - (3 * standardDeviation);
 
-        List<Long> filteredSpeeds = recentSpeeds.stream()
-                .filter(speed -> speed >= lowerThreshold && speed <= upperThreshold)
-                .toList();
-
-        if (filteredSpeeds.isEmpty()) {
-            return currentSpeed;
-        }
-
-        double totalWeight = 0;
+        // weights (i + 1) / n of the kept speeds, the common 1 / n cancels out
         double weightedSum = 0;
-        int size = filteredSpeeds.size();
-
-        for (int i = 0; i < size; i++) {
-            double weight = (i + 1.0) / size;
-            weightedSum += filteredSpeeds.get(i) * weight;
-            totalWeight += weight;
+        long totalWeight = 0;
+        for (int i = 0; i < count; i++) {
+            long speed = i < windowSize ? speeds[index(size - windowSize + i)] : currentSpeed;
+            if (speed >= lowerThreshold && speed <= upperThreshold) {
+                totalWeight++;
+                weightedSum += (double) speed * totalWeight;
+            }
+        }
+        if (totalWeight == 0) {
+            return currentSpeed;
         }
 
-        return (long) (weightedSum / totalWeight);
+        return (long) (weightedSum / (totalWeight * (totalWeight + 1) / 2.0));
     }
 
     /**
      * Get average speed in bytes per second for last interval
      */
-    public long getSpeed() {
-        if (speedPoints.size() < 2) {
+    public synchronized long getSpeed() {
+        if (size < 2) {
             return 0;
         }
 
-        Map.Entry<Long, SpeedPoint> firstEntry = speedPoints.firstEntry();
-        Map.Entry<Long, SpeedPoint> lastEntry = speedPoints.lastEntry();
+        int first = index(0);
+        int last = index(size - 1);
 
-        long timeDiff = lastEntry.getKey() - firstEntry.getKey();
+        long timeDiff = timestamps[last] - timestamps[first];
         if (timeDiff <= 0) {
             return 0;
         }
 
-        long bytesDownloaded = lastEntry.getValue().downloadedSize - firstEntry.getValue().downloadedSize;
+        long bytesDownloaded = downloadedSizes[last] - downloadedSizes[first];
         if (bytesDownloaded < 0) {
-            bytesDownloaded = lastEntry.getValue().downloadedSize;
+            bytesDownloaded = downloadedSizes[last];
         }
 
         return (bytesDownloaded * 1000L) / timeDiff;
@@ -168,49 +226,87 @@ public class AvgSpeed {
     /**
      * Get median speed from all recorded points
      */
-    public long getMedianSpeed() {
-        if (speedPoints.size() < 2) {
+    public synchronized long getMedianSpeed() {
+        if (size < 2) {
             return 0;
         }
 
-        List<Long> speeds = new ArrayList<>(speedPoints.values()).stream()
-                .map(point -> point.speed)
-                .filter(speed -> speed > 0)
-                .sorted()
-                .toList();
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            long speed = speeds[index(i)];
+            if (speed > 0) {
+                scratch[count++] = speed;
+            }
+        }
 
-        if (speeds.isEmpty()) {
+        if (count == 0) {
             return 0;
         }
 
-        return speeds.get(speeds.size() / 2);
+        return select(scratch, count, count / 2);
+    }
+
+    /**
+     * The k-th smallest of the first n values, partially reordering them.
+     */
+    private static long select(long[] values, int n, int k) {
+        int left = 0;
+        int right = n - 1;
+        while (left < right) {
+            long pivot = values[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) i++;
+                while (values[j] > pivot) j--;
+                if (i <= j) {
+                    long tmp = values[i];
+                    values[i] = values[j];
+                    values[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return values[k];
+            }
+        }
+        return values[k];
     }
 
     /**
      * Get maximum recorded speed
      */
-    public long getMaxSpeed() {
-        return speedPoints.values().stream()
-                .map(point -> point.speed)
-                .max(Long::compare)
-                .orElse(0L);
+    public synchronized long getMaxSpeed() {
+        long max = 0;
+        for (int i = 0; i < size; i++) {
+            max = Math.max(max, speeds[index(i)]);
+        }
+        return max;
     }
 
     /**
      * Get minimum recorded speed
      */
-    public long getMinSpeed() {
-        return speedPoints.values().stream()
-                .map(point -> point.speed)
-                .filter(speed -> speed > 0)
-                .min(Long::compare)
-                .orElse(0L);
+    public synchronized long getMinSpeed() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            long speed = speeds[index(i)];
+            if (speed > 0) {
+                min = Math.min(min, speed);
+            }
+        }
+        return min == Long.MAX_VALUE ? 0 : min;
     }
 
     /**
      * Get speed statistics summary
      */
-    public SpeedStats getSpeedStats() {
+    public synchronized SpeedStats getSpeedStats() {
         return new SpeedStats(
                 interval,
                 getSpeed(),
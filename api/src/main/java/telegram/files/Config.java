@@ -36,6 +36,48 @@ public class Config {
 
     public static final boolean DB_NEED_CREATE = Convert.toBool(System.getenv("DB_NEED_CREATE"), false);
 
+    public static final int FILE_RECORD_CACHE_SIZE = Convert.toInt(System.getenv("FILE_RECORD_CACHE_SIZE"), 2000);
+
+    // statements slower than this are logged with their query plan, 0 logs all of them
+    public static final long SQL_SLOW_QUERY_MS = Convert.toLong(System.getenv("SQL_SLOW_QUERY_MS"), 500L);
+
+    // the number of recent slow statements kept for /sql/slow-queries
+    public static final int SQL_SLOW_QUERY_BUFFER = Convert.toInt(System.getenv("SQL_SLOW_QUERY_BUFFER"), 100);
+
+    public static final String AUTO_DOWNLOAD_TYPE_WEIGHTS = System.getenv("AUTO_DOWNLOAD_TYPE_WEIGHTS");
+
+    public static final double AUTO_DOWNLOAD_SIZE_WEIGHT = Convert.toDouble(System.getenv("AUTO_DOWNLOAD_SIZE_WEIGHT"), 0.0);
+
+    public static final int HISTORY_SCAN_CONCURRENCY = Convert.toInt(System.getenv("HISTORY_SCAN_CONCURRENCY"), 3);
+
+    public static final int TRANSFER_PARALLELISM = Convert.toInt(System.getenv("TRANSFER_PARALLELISM"), 2);
+
+    public static final int HASH_THREADS = Convert.toInt(System.getenv("HASH_THREADS"), 2);
+
+    // link files with the same size, head and tail instead of downloading them, see ContentIndex
+    public static final boolean CONTENT_DEDUP = Convert.toBool(System.getenv("CONTENT_DEDUP"), false);
+
+    public static final long CONTENT_DEDUP_MIN_SIZE = Convert.toLong(System.getenv("CONTENT_DEDUP_MIN_SIZE"), 1024 * 1024L);
+
+    public static final double TELEGRAM_REQUEST_RATE = Convert.toDouble(System.getenv("TELEGRAM_REQUEST_RATE"), 20.0);
+
+    public static final long TELEGRAM_REQUEST_CACHE_TTL = Convert.toLong(System.getenv("TELEGRAM_REQUEST_CACHE_TTL"), 2000L);
+
+    // tdlib | simulator, the simulator answers from synthetic chats and needs neither an account nor libtdjni
+    public static final String TELEGRAM_CLIENT = StrUtil.blankToDefault(System.getenv("TELEGRAM_CLIENT"), "tdlib");
+
+    public static final int TELEGRAM_SIMULATOR_CHATS = Convert.toInt(System.getenv("TELEGRAM_SIMULATOR_CHATS"), 5);
+
+    public static final int TELEGRAM_SIMULATOR_MESSAGES = Convert.toInt(System.getenv("TELEGRAM_SIMULATOR_MESSAGES"), 2000);
+
+    // bytes per second of one account, shared by its active downloads
+    public static final long TELEGRAM_SIMULATOR_DOWNLOAD_SPEED = Convert.toLong(System.getenv("TELEGRAM_SIMULATOR_DOWNLOAD_SPEED"), 10 * 1024 * 1024L);
+
+    public static final long TELEGRAM_SIMULATOR_MAX_FILE_SIZE = Convert.toLong(System.getenv("TELEGRAM_SIMULATOR_MAX_FILE_SIZE"), 20 * 1024 * 1024L);
+
+    // milliseconds between new messages, 0 for none
+    public static final long TELEGRAM_SIMULATOR_MESSAGE_INTERVAL = Convert.toLong(System.getenv("TELEGRAM_SIMULATOR_MESSAGE_INTERVAL"), 0L);
+
     public static final String LOG_PATH = APP_ROOT + File.separator + "logs";
 
     public static final String TELEGRAM_ROOT = APP_ROOT + File.separator + "account";
@@ -58,10 +100,10 @@ public class Config {
         if (APP_ROOT == null) {
             throw new RuntimeException("APP_ROOT is not set");
         }
-        if (TELEGRAM_API_ID == 0) {
+        if (TELEGRAM_API_ID == 0 && !isTelegramSimulated()) {
             throw new RuntimeException("TELEGRAM_API_ID is not set");
         }
-        if (TELEGRAM_API_HASH == null) {
+        if (TELEGRAM_API_HASH == null && !isTelegramSimulated()) {
             throw new RuntimeException("TELEGRAM_API_HASH is not set");
         }
 
@@ -124,6 +166,10 @@ public class Config {
         Logger.getLogger("telegram.files").setLevel(logLevel);
     }
 
+    public static boolean isTelegramSimulated() {
+        return Objects.equals(TELEGRAM_CLIENT, "simulator");
+    }
+
     public static boolean isSqlite() {
         return Objects.equals(DB_TYPE, "sqlite");
     }
@@ -0,0 +1,281 @@
+package telegram.files;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import org.drinkless.tdlib.TdApi;
+import org.jooq.lambda.tuple.Tuple2;
+import telegram.files.repository.FileContentRecord;
+import telegram.files.repository.FileRecord;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Finds files that were already downloaded under another unique id, typically the same video reposted in many chats,
+ * so they can be linked instead of downloaded again.
+ * <p>
+ * Every completed download of at least {@link Config#CONTENT_DEDUP_MIN_SIZE} bytes records its size and the hash of
+ * its first {@link #HEAD_SIZE} bytes. Before a download starts, completed files of exactly the same size are
+ * candidates; if there is one, only the head of the new file is downloaded. A matching head hash is not enough, the
+ * duplicate replaces the download, so the tail is downloaded too and the {@link FileHasher} sample hash of the size,
+ * head and tail must match the existing file.
+ * <p>
+ * The match is sampled: the bytes between the head and the tail are never compared, so a file of the same size that
+ * only differs in the middle, like an edited archive, is taken for the existing one. That is why it is off unless
+ * {@link Config#CONTENT_DEDUP} is set.
+ */
+public class ContentIndex {
+
+    private static final Log log = LogFactory.get();
+
+    public static final ContentIndex INSTANCE = new ContentIndex(Config.CONTENT_DEDUP, Config.CONTENT_DEDUP_MIN_SIZE);
+
+    public static final int HEAD_SIZE = 64 * 1024;
+
+    private final boolean enabled;
+
+    private final long minSize;
+
+    // telegramId:fileId of files whose head is being downloaded, their file updates are not download progress
+    private final Set<String> probing = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong lookups = new AtomicLong();
+
+    private final AtomicLong probes = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    // same head, different tail
+    private final AtomicLong sampleMismatches = new AtomicLong();
+
+    private final AtomicLong linked = new AtomicLong();
+
+    private final AtomicLong copied = new AtomicLong();
+
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    /**
+     * @param existing  the completed file with the same content
+     * @param headHash  head hash shared by both files
+     * @param probePath where TDLib downloaded the head of the new file
+     */
+    public record Duplicate(FileRecord existing, String headHash, String probePath) {
+    }
+
+    public ContentIndex(boolean enabled, long minSize) {
+        this.enabled = enabled;
+        this.minSize = minSize;
+    }
+
+    public boolean isEnabled(long size) {
+        return enabled && size >= minSize;
+    }
+
+    public boolean isProbing(long telegramId, int fileId) {
+        return !probing.isEmpty() && probing.contains(telegramId + ":" + fileId);
+    }
+
+    /**
+     * Record the content of a completed download.
+     */
+    public Future<Void> add(FileRecord fileRecord, String localPath) {
+        if (fileRecord == null
+            || "thumbnail".equals(fileRecord.type())
+            || StrUtil.isBlank(localPath)
+            || !isEnabled(fileRecord.size())) {
+            return Future.succeededFuture();
+        }
+        long length = Math.min(fileRecord.size(), HEAD_SIZE);
+        return Future.fromCompletionStage(FileHasher.INSTANCE.headHashAsync(Path.of(localPath), length))
+                .compose(headHash -> DataVerticle.fileRepository.createContent(
+                        new FileContentRecord(fileRecord.uniqueId(), fileRecord.size(), headHash)))
+                .onFailure(e -> log.warn("Add file content failed: %s %s".formatted(fileRecord.uniqueId(), e.getMessage())));
+    }
+
+    /**
+     * A completed file with the same content as the file, or null.
+     */
+    public Future<Duplicate> findDuplicate(long telegramId, TelegramClient client, TdApi.File file) {
+        if (file.remote == null || !isEnabled(file.size)) {
+            return Future.succeededFuture();
+        }
+        lookups.incrementAndGet();
+        return DataVerticle.fileRepository.getContentCandidates(file.size)
+                .compose(candidates -> {
+                    List<Tuple2<FileRecord, String>> others = candidates.stream()
+                            .filter(candidate -> !candidate.v1.uniqueId().equals(file.remote.uniqueId)
+                                                 && StrUtil.isNotBlank(candidate.v1.localPath()))
+                            .toList();
+                    if (others.isEmpty()) {
+                        return Future.succeededFuture();
+                    }
+                    return Future.fromCompletionStage(FileHasher.INSTANCE.lengthsAsync(others.stream()
+                                    .map(candidate -> Path.of(candidate.v1.localPath()))
+                                    .toList()))
+                            .compose(lengths -> {
+                                // the file may have been moved or removed since it was recorded
+                                List<Tuple2<FileRecord, String>> existing = IntStream.range(0, others.size())
+                                        .filter(i -> lengths.get(i) == file.size)
+                                        .mapToObj(others::get)
+                                        .toList();
+                                return existing.isEmpty()
+                                        ? Future.succeededFuture()
+                                        : probe(telegramId, client, file, existing);
+                            });
+                })
+                .otherwise(e -> {
+                    // the file is downloaded as usual
+                    log.warn("Find duplicate of %s failed: %s".formatted(file.remote.uniqueId, e.getMessage()));
+                    return null;
+                })
+                .onSuccess(duplicate -> {
+                    if (duplicate != null) {
+                        hits.incrementAndGet();
+                        savedBytes.addAndGet(file.size);
+                        log.info("Found duplicate of %s: %s %s".formatted(file.remote.uniqueId,
+                                duplicate.existing().uniqueId(), duplicate.existing().localPath()));
+                    }
+                });
+    }
+
+    private Future<Duplicate> probe(long telegramId, TelegramClient client, TdApi.File file, List<Tuple2<FileRecord, String>> candidates) {
+        probes.incrementAndGet();
+        String key = telegramId + ":" + file.id;
+        long length = Math.min(file.size, HEAD_SIZE);
+        probing.add(key);
+        return downloadPart(client, file, 0, length)
+                .compose(partial -> {
+                    if (partial == null) {
+                        return Future.succeededFuture();
+                    }
+                    return Future.fromCompletionStage(FileHasher.INSTANCE.headHashAsync(Path.of(partial.local.path), length))
+                            .compose(headHash -> {
+                                List<FileRecord> sameHead = candidates.stream()
+                                        .filter(candidate -> headHash.equals(candidate.v2))
+                                        .map(candidate -> candidate.v1)
+                                        .toList();
+                                if (sameHead.isEmpty()) {
+                                    return Future.succeededFuture();
+                                }
+                                return probeTail(client, file)
+                                        .compose(downloaded -> downloaded
+                                                ? findSameSample(sameHead, Path.of(partial.local.path), file.size)
+                                                : Future.succeededFuture())
+                                        .map(existing -> existing == null
+                                                ? null
+                                                : new Duplicate(existing, headHash, partial.local.path));
+                            });
+                })
+                .onComplete(r -> {
+                    if (r.failed() || r.result() == null) {
+                        // updates of the probe may still be queued, they are not download progress either
+                        client.afterUpdates(() -> probing.remove(key));
+                    }
+                });
+    }
+
+    private static Future<Boolean> probeTail(TelegramClient client, TdApi.File file) {
+        long offset = FileHasher.sampleTailOffset(file.size);
+        if (offset >= file.size) {
+            // the head is the whole file
+            return Future.succeededFuture(true);
+        }
+        return downloadPart(client, file, offset, file.size - offset).map(Objects::nonNull);
+    }
+
+    /**
+     * Download a part of the file, null if TDLib did not download all of it.
+     */
+    private static Future<TdApi.File> downloadPart(TelegramClient client, TdApi.File file, long offset, long length) {
+        return client.execute(new TdApi.DownloadFile(file.id, 1, offset, length, true))
+                .map(partial -> partial.local != null
+                                && partial.local.downloadOffset <= offset
+                                && partial.local.downloadOffset + partial.local.downloadedPrefixSize >= offset + length
+                        ? partial
+                        : null);
+    }
+
+    /**
+     * The first candidate with the same sample hash as the probe, whose head and tail are downloaded, or null.
+     */
+    Future<FileRecord> findSameSample(List<FileRecord> candidates, Path probe, long size) {
+        return Future.fromCompletionStage(FileHasher.INSTANCE.sampleHashAsync(probe, size))
+                .compose(sampleHash -> findSameSample(candidates, 0, size, sampleHash));
+    }
+
+    private Future<FileRecord> findSameSample(List<FileRecord> candidates, int index, long size, String sampleHash) {
+        if (index >= candidates.size()) {
+            sampleMismatches.incrementAndGet();
+            return Future.succeededFuture();
+        }
+        FileRecord candidate = candidates.get(index);
+        return Future.fromCompletionStage(FileHasher.INSTANCE.sampleHashAsync(Path.of(candidate.localPath()), size))
+                // the candidate changed since it was recorded
+                .otherwiseEmpty()
+                .compose(candidateHash -> sampleHash.equals(candidateHash)
+                        ? Future.succeededFuture(candidate)
+                        : findSameSample(candidates, index + 1, size, sampleHash));
+    }
+
+    /**
+     * Called once a duplicate has been resolved, file updates of the file count as download progress again after the
+     * updates received so far, like the one of deleting the probe, have been handled.
+     */
+    public void resolved(TelegramClient client, long telegramId, int fileId) {
+        String key = telegramId + ":" + fileId;
+        client.afterUpdates(() -> probing.remove(key));
+    }
+
+    /**
+     * Make the content of the duplicate available under the file name, next to where the probe was downloaded.
+     * Hard linked when the file system allows it, otherwise copied.
+     */
+    public Path link(Duplicate duplicate, String fileName) throws IOException {
+        Path source = Path.of(duplicate.existing().localPath());
+        Path directory = Path.of(duplicate.probePath()).toAbsolutePath().getParent();
+        String name = StrUtil.blankToDefault(fileName, source.getFileName().toString());
+        Path target = directory.resolve(name);
+        String extension = FileUtil.extName(name);
+        for (int i = 1; Files.exists(target); i++) {
+            target = directory.resolve(StrUtil.isEmpty(extension)
+                    ? "%s-%d".formatted(FileUtil.mainName(name), i)
+                    : "%s-%d.%s".formatted(FileUtil.mainName(name), i, extension));
+        }
+        try {
+            Files.createLink(target, source);
+            linked.incrementAndGet();
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Can't link %s, copy it: %s".formatted(source, e.getMessage()));
+            FileMover.copy(source, target);
+            copied.incrementAndGet();
+        }
+        return target;
+    }
+
+    public JsonObject getStatistics() {
+        long lookups = this.lookups.get();
+        return JsonObject.of(
+                "enabled", enabled,
+                "minSize", minSize,
+                "lookups", lookups,
+                "probes", probes.get(),
+                "hits", hits.get(),
+                "hitRate", lookups == 0 ? 0 : (double) hits.get() / lookups,
+                "sampleMismatches", sampleMismatches.get(),
+                "linked", linked.get(),
+                "copied", copied.get(),
+                "savedBytes", savedBytes.get()
+        );
+    }
+}
@@ -17,6 +17,10 @@ import io.vertx.sqlclient.SqlClient;
 import io.vertx.sqlclient.SqlConnectOptions;
 import org.jooq.lambda.tuple.Tuple;
 import telegram.files.repository.*;
+import telegram.files.repository.impl.DownloadStatusBatcher;
+import telegram.files.repository.impl.FileHashRepositoryImpl;
+import telegram.files.repository.impl.FileRecordCache;
+import telegram.files.repository.impl.QueryPlanInspector;
 import telegram.files.repository.impl.FileRepositoryImpl;
 import telegram.files.repository.impl.SettingRepositoryImpl;
 import telegram.files.repository.impl.StatisticRepositoryImpl;
@@ -39,8 +43,14 @@ public class DataVerticle extends AbstractVerticle {
 
     public static StatisticRepository statisticRepository;
 
+    public static FileHashRepository fileHashRepository;
+
+    public static FileRecordCache fileRecordCache;
+
     private static SqlConnectOptions sqlConnectOptions;
 
+    private DownloadStatusBatcher downloadStatusBatcher;
+
     public static final List<Definition> definitions;
 
     static {
@@ -58,7 +68,9 @@ public class DataVerticle extends AbstractVerticle {
                 new SettingRecord.SettingRecordDefinition(),
                 new TelegramRecord.TelegramRecordDefinition(),
                 new FileRecord.FileRecordDefinition(),
-                new StatisticRecord.StatisticRecordDefinition()
+                new StatisticRecord.StatisticRecordDefinition(),
+                new FileHashRecord.FileHashRecordDefinition(),
+                new FileContentRecord.FileContentRecordDefinition()
         );
     }
 
@@ -66,8 +78,11 @@ public class DataVerticle extends AbstractVerticle {
         pool = buildSqlClient();
         settingRepository = new SettingRepositoryImpl(pool);
         telegramRepository = new TelegramRepositoryImpl(pool);
-        fileRepository = new FileRepositoryImpl(pool);
+        downloadStatusBatcher = new DownloadStatusBatcher(vertx, pool);
+        fileRecordCache = new FileRecordCache(Config.FILE_RECORD_CACHE_SIZE);
+        fileRepository = new FileRepositoryImpl(pool, downloadStatusBatcher, fileRecordCache);
         statisticRepository = new StatisticRepositoryImpl(pool);
+        fileHashRepository = new FileHashRepositoryImpl(pool);
         isCompletelyNewInitialization()
                 .compose(isNew -> Future.all(definitions.stream().map(d -> d.createTable(pool)).toList()).map(isNew))
                 .compose(isNew -> settingRepository.<Version>getByKey(SettingKey.version).map(version -> Tuple.tuple(isNew, version)))
@@ -77,10 +92,13 @@ public class DataVerticle extends AbstractVerticle {
                     Version version = tuple.v2 == null ? new Version("0.0.0") : tuple.v2;
                     return Future.all(definitions.stream().map(d -> d.migrate(pool, version, new Version(Start.VERSION))).toList());
                 })
+                // on every startup, so that existing databases get the indexes added since their version
+                .compose(r -> Future.all(definitions.stream().map(d -> d.createIndexes(pool)).toList()))
                 .compose(r ->
                         settingRepository.createOrUpdate(SettingKey.version.name(), Start.VERSION))
                 .onSuccess(r -> {
                     log.info("Database {} initialized.", Config.DB_TYPE);
+                    QueryPlanInspector.inspect(pool);
                     stopPromise.complete();
                 })
                 .onFailure(err -> {
@@ -92,7 +110,8 @@ public class DataVerticle extends AbstractVerticle {
     @Override
     public void stop(Promise<Void> stopPromise) throws Exception {
         if (pool != null) {
-            pool.close().onComplete(r -> {
+            Future<Void> flushFuture = downloadStatusBatcher == null ? Future.succeededFuture() : downloadStatusBatcher.close();
+            flushFuture.eventually(() -> pool.close()).onComplete(r -> {
                 if (r.succeeded()) {
                     log.debug("Data verticle stopped!");
                 } else {
@@ -0,0 +1,227 @@
+package telegram.files;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.util.StrUtil;
+import io.vertx.core.json.JsonObject;
+import org.drinkless.tdlib.TdApi;
+
+import java.util.*;
+
+/**
+ * Per telegram account queue of messages waiting for an auto download slot.
+ * <p>
+ * Ordering, from strongest to weakest:
+ * <ol>
+ *     <li>live messages before history messages</li>
+ *     <li>per-chat fairness: the chat with the fewest dispatched files goes next, so one big history chat can not
+ *     starve the others</li>
+ *     <li>within a chat, the highest score goes first: the configured weight of the file type, minus the size weight
+ *     times {@code log10(size)}, so a positive size weight prefers small files</li>
+ *     <li>enqueue order</li>
+ * </ol>
+ */
+public class DownloadQueue {
+
+    public static final DownloadQueue INSTANCE = new DownloadQueue(
+            parseWeights(Config.AUTO_DOWNLOAD_TYPE_WEIGHTS),
+            Config.AUTO_DOWNLOAD_SIZE_WEIGHT);
+
+    private static final Comparator<Item> ITEM_ORDER = Comparator.comparing(Item::isHistorical)
+            .thenComparing(Comparator.comparingDouble(Item::score).reversed())
+            .thenComparingLong(Item::seq);
+
+    private final Map<String, Double> typeWeights;
+
+    private final double sizeWeight;
+
+    // telegramId -> queue
+    private final Map<Long, AccountQueue> queues = new HashMap<>();
+
+    private long seq;
+
+    public DownloadQueue(Map<String, Double> typeWeights, double sizeWeight) {
+        this.typeWeights = typeWeights;
+        this.sizeWeight = sizeWeight;
+    }
+
+    public synchronized void add(long telegramId, TdApi.Message message, boolean isHistorical) {
+        Item item = new Item(message, isHistorical, score(message), seq++, System.currentTimeMillis());
+        queues.computeIfAbsent(telegramId, k -> new AccountQueue()).add(item);
+    }
+
+    public synchronized List<Item> poll(long telegramId, int count) {
+        AccountQueue queue = queues.get(telegramId);
+        if (queue == null) {
+            return List.of();
+        }
+        List<Item> items = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        while (items.size() < count && queue.size > 0) {
+            Item item = queue.poll();
+            queue.dispatched++;
+            long waitTime = now - item.enqueuedAt;
+            queue.totalWaitTime += waitTime;
+            queue.maxWaitTime = Math.max(queue.maxWaitTime, waitTime);
+            items.add(item);
+        }
+        return items;
+    }
+
+    public synchronized int size(long telegramId) {
+        AccountQueue queue = queues.get(telegramId);
+        return queue == null ? 0 : queue.size;
+    }
+
+    public synchronized boolean hasHistorical(long telegramId) {
+        AccountQueue queue = queues.get(telegramId);
+        return queue != null && queue.chats.values().stream()
+                .anyMatch(items -> items.stream().anyMatch(Item::isHistorical));
+    }
+
+    public synchronized void removeChat(long telegramId, long chatId) {
+        AccountQueue queue = queues.get(telegramId);
+        if (queue != null) {
+            queue.removeChat(chatId);
+        }
+    }
+
+    public synchronized Set<Long> telegramIds() {
+        return new HashSet<>(queues.keySet());
+    }
+
+    /**
+     * Queue depth and wait time of dispatched messages, per telegram account.
+     */
+    public synchronized JsonObject getStatistics() {
+        JsonObject statistics = JsonObject.of();
+        long now = System.currentTimeMillis();
+        queues.forEach((telegramId, queue) -> {
+            int live = queue.chats.values().stream()
+                    .mapToInt(items -> (int) items.stream().filter(item -> !item.isHistorical).count())
+                    .sum();
+            long oldest = queue.chats.values().stream()
+                    .flatMap(Collection::stream)
+                    .mapToLong(Item::enqueuedAt)
+                    .min()
+                    .orElse(now);
+            statistics.put(String.valueOf(telegramId), JsonObject.of(
+                    "depth", queue.size,
+                    "liveDepth", live,
+                    "historyDepth", queue.size - live,
+                    "chats", queue.chats.size(),
+                    "dispatched", queue.dispatched,
+                    "avgWaitTime", queue.dispatched == 0 ? 0 : queue.totalWaitTime / queue.dispatched,
+                    "maxWaitTime", queue.maxWaitTime,
+                    "oldestWaitTime", now - oldest
+            ));
+        });
+        return statistics;
+    }
+
+    private double score(TdApi.Message message) {
+        String type = switch (message.content.getConstructor()) {
+            case TdApi.MessagePhoto.CONSTRUCTOR -> "photo";
+            case TdApi.MessageVideo.CONSTRUCTOR -> "video";
+            case TdApi.MessageAudio.CONSTRUCTOR -> "audio";
+            default -> "file";
+        };
+        double score = typeWeights.getOrDefault(type, 1.0);
+        if (sizeWeight != 0) {
+            long size = TdApiHelp.getFileHandler(message)
+                    .map(TdApiHelp.FileHandler::getFile)
+                    .map(file -> file.size != 0 ? file.size : file.expectedSize)
+                    .orElse(0L);
+            score -= sizeWeight * Math.log10(Math.max(size, 1));
+        }
+        return score;
+    }
+
+    /**
+     * Parse weights like {@code photo:2,video:1}.
+     */
+    public static Map<String, Double> parseWeights(String weights) {
+        Map<String, Double> result = new HashMap<>();
+        if (StrUtil.isBlank(weights)) {
+            return result;
+        }
+        for (String weight : StrUtil.split(weights, ',', true, true)) {
+            List<String> pair = StrUtil.split(weight, ':', true, true);
+            if (pair.size() == 2) {
+                result.put(pair.get(0), Convert.toDouble(pair.get(1), 1.0));
+            }
+        }
+        return result;
+    }
+
+    public record Item(TdApi.Message message, boolean isHistorical, double score, long seq, long enqueuedAt) {
+    }
+
+    private static class AccountQueue {
+        // chatId -> messages
+        private final Map<Long, PriorityQueue<Item>> chats = new LinkedHashMap<>();
+
+        // chatId -> dispatched files, only for chats with waiting messages
+        private final Map<Long, Long> served = new HashMap<>();
+
+        private int size;
+
+        private long dispatched;
+
+        private long totalWaitTime;
+
+        private long maxWaitTime;
+
+        void add(Item item) {
+            long chatId = item.message.chatId;
+            PriorityQueue<Item> items = chats.get(chatId);
+            if (items == null) {
+                items = new PriorityQueue<>(ITEM_ORDER);
+                chats.put(chatId, items);
+                // a chat joining late starts level with the others instead of owning the queue until it catches up
+                served.put(chatId, served.values().stream().mapToLong(Long::longValue).min().orElse(0));
+            }
+            items.add(item);
+            size++;
+        }
+
+        Item poll() {
+            Long next = null;
+            Item nextHead = null;
+            for (Map.Entry<Long, PriorityQueue<Item>> entry : chats.entrySet()) {
+                Item head = entry.getValue().peek();
+                if (nextHead == null || compareChats(head, served.get(entry.getKey()), nextHead, served.get(next)) < 0) {
+                    next = entry.getKey();
+                    nextHead = head;
+                }
+            }
+            PriorityQueue<Item> items = chats.get(next);
+            Item item = items.poll();
+            size--;
+            if (items.isEmpty()) {
+                chats.remove(next);
+                served.remove(next);
+            } else {
+                served.merge(next, 1L, Long::sum);
+            }
+            return item;
+        }
+
+        void removeChat(long chatId) {
+            PriorityQueue<Item> items = chats.remove(chatId);
+            served.remove(chatId);
+            if (items != null) {
+                size -= items.size();
+            }
+        }
+
+        private static int compareChats(Item head, long served, Item otherHead, long otherServed) {
+            if (head.isHistorical != otherHead.isHistorical) {
+                return head.isHistorical ? 1 : -1;
+            }
+            if (served != otherServed) {
+                return Long.compare(served, otherServed);
+            }
+            return ITEM_ORDER.compare(head, otherHead);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import telegram.files.repository.FileRecord;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * In-memory count of the files each telegram account is downloading, used instead of a
+ * {@code COUNT(*) ... download_status = 'downloading'} query whenever the auto download needs to know its free slots.
+ * <p>
+ * It follows the download status transitions applied by {@link TelegramVerticle}. Because a missed transition would
+ * otherwise stick forever, {@link #reconcile(long)} periodically replaces the state with the database, keeping any
+ * transition that happened while the query was running.
+ * <p>
+ * Release listeners are called with the telegram id whenever a slot frees up, outside the lock and on the caller's
+ * thread.
+ */
+public class DownloadSlots {
+    private static final Log log = LogFactory.get();
+
+    public static final DownloadSlots INSTANCE = new DownloadSlots();
+
+    // telegramId -> downloading unique ids
+    private final Map<Long, Set<String>> downloading = new HashMap<>();
+
+    // telegramId -> unique id -> is downloading, transitions seen while a reconciliation is running
+    private final Map<Long, Map<String, Boolean>> reconciling = new HashMap<>();
+
+    private final List<Consumer<Long>> onReleaseListeners = new CopyOnWriteArrayList<>();
+
+    private DownloadSlots() {
+    }
+
+    public void registerOnReleaseListener(Consumer<Long> onRelease) {
+        onReleaseListeners.add(onRelease);
+    }
+
+    public void removeOnReleaseListener(Consumer<Long> onRelease) {
+        onReleaseListeners.remove(onRelease);
+    }
+
+    public void update(FileRecord fileRecord, FileRecord.DownloadStatus downloadStatus) {
+        if (fileRecord == null || "thumbnail".equals(fileRecord.type())) {
+            return;
+        }
+        set(fileRecord.telegramId(), fileRecord.uniqueId(), downloadStatus == FileRecord.DownloadStatus.downloading);
+    }
+
+    public void release(long telegramId, String uniqueId) {
+        set(telegramId, uniqueId, false);
+    }
+
+    private void set(long telegramId, String uniqueId, boolean isDownloading) {
+        if (apply(telegramId, uniqueId, isDownloading) && !isDownloading) {
+            onReleaseListeners.forEach(listener -> listener.accept(telegramId));
+        }
+    }
+
+    public synchronized int downloading(long telegramId) {
+        Set<String> uniqueIds = downloading.get(telegramId);
+        return uniqueIds == null ? 0 : uniqueIds.size();
+    }
+
+    public Future<Void> reconcile(long telegramId) {
+        synchronized (this) {
+            if (reconciling.containsKey(telegramId)) {
+                return Future.succeededFuture();
+            }
+            reconciling.put(telegramId, new HashMap<>());
+        }
+        return DataVerticle.fileRepository.getUniqueIdsByStatus(telegramId, FileRecord.DownloadStatus.downloading)
+                .onComplete(ar -> {
+                    boolean released;
+                    synchronized (this) {
+                        Map<String, Boolean> transitions = reconciling.remove(telegramId);
+                        if (ar.failed()) {
+                            return;
+                        }
+                        Set<String> uniqueIds = new HashSet<>(ar.result());
+                        transitions.forEach((uniqueId, isDownloading) -> {
+                            if (isDownloading) {
+                                uniqueIds.add(uniqueId);
+                            } else {
+                                uniqueIds.remove(uniqueId);
+                            }
+                        });
+                        Set<String> previous = downloading.put(telegramId, uniqueIds);
+                        int previousSize = previous == null ? 0 : previous.size();
+                        if (previousSize != uniqueIds.size()) {
+                            log.debug("Reconcile download slots. TelegramId: %d downloading: %d -> %d"
+                                    .formatted(telegramId, previousSize, uniqueIds.size()));
+                        }
+                        released = uniqueIds.size() < previousSize;
+                    }
+                    if (released) {
+                        onReleaseListeners.forEach(listener -> listener.accept(telegramId));
+                    }
+                })
+                .onFailure(e -> log.error("Reconcile download slots failed! TelegramId: %d".formatted(telegramId), e))
+                .mapEmpty();
+    }
+
+    /**
+     * @return whether the state changed
+     */
+    private synchronized boolean apply(long telegramId, String uniqueId, boolean isDownloading) {
+        if (uniqueId == null) {
+            return false;
+        }
+        Map<String, Boolean> transitions = reconciling.get(telegramId);
+        if (transitions != null) {
+            transitions.put(uniqueId, isDownloading);
+        }
+        if (isDownloading) {
+            return downloading.computeIfAbsent(telegramId, k -> new HashSet<>()).add(uniqueId);
+        } else {
+            Set<String> uniqueIds = downloading.get(telegramId);
+            return uniqueIds != null && uniqueIds.remove(uniqueId);
+        }
+    }
+}
@@ -26,12 +26,36 @@ public enum EventEnum {
 
     /**
      * suffix = null <br>
-     * body = JSONObject with "telegramId", "payload"
+     * body = TelegramEvent, local only
      *
-     * @see telegram.files.EventPayload
+     * @see telegram.files.TelegramEvent
      */
     TELEGRAM_EVENT,
 
+    /**
+     * suffix = null <br>
+     * body = FileStatusEvent, local only, every download or transfer status change
+     *
+     * @see telegram.files.FileStatusEvent
+     */
+    FILE_STATUS_CHANGED,
+
+    /**
+     * suffix = null <br>
+     * body = FileStatusEvent, local only, a download completed
+     *
+     * @see telegram.files.FileStatusEvent
+     */
+    FILE_DOWNLOAD_COMPLETED,
+
+    /**
+     * suffix = null <br>
+     * body = FileStatusEvent, local only, a transfer completed
+     *
+     * @see telegram.files.FileStatusEvent
+     */
+    FILE_TRANSFER_COMPLETED,
+
     /**
      * suffix = null <br>
      * body = JSONObject with "success", "message"
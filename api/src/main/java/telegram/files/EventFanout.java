@@ -0,0 +1,197 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.http.ServerWebSocket;
+import org.drinkless.tdlib.TdApi;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Delivers telegram events to the WebSocket clients.
+ * <p>
+ * An event is encoded once and the same text is written to every client that receives it: the sessions bound to the
+ * account that sent it, and the clients that connected without an account. A client whose connection can't keep up
+ * gets its events buffered; progress events of the same file replace each other in the buffer, and when the buffer is
+ * full the oldest progress event is dropped first.
+ */
+public class EventFanout {
+
+    private static final Log log = LogFactory.get();
+
+    public static final int MAX_PENDING = 512;
+
+    private static final Metrics.Counter droppedEvents = Metrics.INSTANCE.counter("websocket_dropped_events_total",
+            "Events dropped for WebSocket clients that fall behind.");
+
+    // session id -> client
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+
+    // session id -> account
+    private final Map<String, Object> sessionAccounts = new ConcurrentHashMap<>();
+
+    // account -> session ids
+    private final Map<Object, Set<String>> accountSessions = new ConcurrentHashMap<>();
+
+    // clients that connected without an account receive the events of all accounts
+    private final Set<String> unboundSessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Key under which the event replaces older events of the same key, null if every event counts.
+     */
+    public static String coalesceKey(Object telegramId, EventPayload payload) {
+        if (payload.type() == EventPayload.TYPE_FILE_DOWNLOAD) {
+            return "downloads:" + telegramId;
+        }
+        if (payload.type() == EventPayload.TYPE_FILE && payload.data() instanceof TdApi.UpdateFile updateFile && updateFile.file != null) {
+            return "file:%s:%d".formatted(telegramId, updateFile.file.id);
+        }
+        return null;
+    }
+
+    public void connect(String sessionId, ServerWebSocket ws, boolean unbound) {
+        Client client = new Client(sessionId, ws);
+        ws.drainHandler(v -> client.flush());
+        clients.put(sessionId, client);
+        if (unbound) {
+            unboundSessions.add(sessionId);
+        } else {
+            unboundSessions.remove(sessionId);
+        }
+    }
+
+    public void disconnect(String sessionId) {
+        clients.remove(sessionId);
+        unboundSessions.remove(sessionId);
+        bind(sessionId, null);
+    }
+
+    /**
+     * Bind the session to the account, or unbind it if the account is null.
+     */
+    public void bind(String sessionId, Object account) {
+        Object previous = account == null ? sessionAccounts.remove(sessionId) : sessionAccounts.put(sessionId, account);
+        if (previous != null && previous != account) {
+            Set<String> sessionIds = accountSessions.get(previous);
+            if (sessionIds != null) {
+                sessionIds.remove(sessionId);
+            }
+        }
+        if (account != null) {
+            accountSessions.computeIfAbsent(account, k -> ConcurrentHashMap.newKeySet()).add(sessionId);
+        }
+    }
+
+    public void unbindAccount(Object account) {
+        Set<String> sessionIds = accountSessions.remove(account);
+        if (sessionIds != null) {
+            sessionIds.forEach(sessionId -> sessionAccounts.remove(sessionId, account));
+        }
+    }
+
+    /**
+     * @param account the account that sent the event, null if it is unknown
+     * @param text    the encoded event
+     */
+    public void publish(Object account, String coalesceKey, String text) {
+        Set<String> sessionIds = account == null ? Set.of() : accountSessions.getOrDefault(account, Set.of());
+        for (String sessionId : sessionIds) {
+            offer(sessionId, coalesceKey, text);
+        }
+        for (String sessionId : unboundSessions) {
+            if (!sessionIds.contains(sessionId)) {
+                offer(sessionId, coalesceKey, text);
+            }
+        }
+    }
+
+    private void offer(String sessionId, String coalesceKey, String text) {
+        Client client = clients.get(sessionId);
+        if (client != null) {
+            client.offer(coalesceKey, text);
+        }
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public int getPendingSize(String sessionId) {
+        Client client = clients.get(sessionId);
+        return client == null ? 0 : client.pendingSize();
+    }
+
+    static class Client {
+
+        private final String sessionId;
+
+        private final ServerWebSocket ws;
+
+        // coalesce key or sequence -> encoded event, in the order the events arrived
+        private final LinkedHashMap<String, String> pending = new LinkedHashMap<>();
+
+        private long sequence;
+
+        private long dropped;
+
+        Client(String sessionId, ServerWebSocket ws) {
+            this.sessionId = sessionId;
+            this.ws = ws;
+        }
+
+        synchronized void offer(String coalesceKey, String text) {
+            if (ws.isClosed()) {
+                return;
+            }
+            if (pending.isEmpty() && !ws.writeQueueFull()) {
+                ws.writeTextMessage(text);
+                return;
+            }
+            // a replaced event keeps its place, the client sees the latest state as early as the first one
+            pending.put(coalesceKey == null ? "#" + sequence++ : coalesceKey, text);
+            if (pending.size() > MAX_PENDING) {
+                evict();
+            }
+            if (!ws.writeQueueFull()) {
+                flush();
+            }
+        }
+
+        synchronized void flush() {
+            Iterator<String> iterator = pending.values().iterator();
+            while (iterator.hasNext() && !ws.isClosed() && !ws.writeQueueFull()) {
+                ws.writeTextMessage(iterator.next());
+                iterator.remove();
+            }
+        }
+
+        synchronized int pendingSize() {
+            return pending.size();
+        }
+
+        private void evict() {
+            Iterator<String> iterator = pending.keySet().iterator();
+            String oldest = null;
+            while (iterator.hasNext()) {
+                String key = iterator.next();
+                if (oldest == null) {
+                    oldest = key;
+                }
+                if (!key.startsWith("#")) {
+                    // progress is outdated by the time the client catches up
+                    iterator.remove();
+                    oldest = null;
+                    break;
+                }
+            }
+            if (oldest != null) {
+                pending.remove(oldest);
+            }
+            droppedEvents.increment();
+            if (++dropped % 100 == 1) {
+                log.debug("WebSocket client %s falls behind, dropped %d events".formatted(sessionId, dropped));
+            }
+        }
+    }
+}
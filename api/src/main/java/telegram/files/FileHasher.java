@@ -0,0 +1,225 @@
+package telegram.files;
+
+import cn.hutool.core.util.HexUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import telegram.files.repository.FileHashRecord;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Content hashes of files, read in chunks so any file size works, on a bounded pool of {@link Config#HASH_THREADS}
+ * threads so that hashing never competes with more than a few other disk readers.
+ * <p>
+ * Comparing two files checks the size first, then a hash of the head and the tail, and only hashes the whole files
+ * when both match. Hashes of files that stay in place, like transfer destinations, are kept in the {@code file_hash}
+ * table and reused while the file keeps its size and modification time.
+ */
+public class FileHasher {
+
+    private static final Log log = LogFactory.get();
+
+    public static final FileHasher INSTANCE = new FileHasher(Config.HASH_THREADS);
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private static final int QUEUE_SIZE = 1024;
+
+    private final ExecutorService executor;
+
+    public FileHasher(int threads) {
+        // a full queue runs the hash on the caller, which slows down whoever is producing the work
+        this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads),
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(QUEUE_SIZE),
+                Thread.ofPlatform().name("file-hasher-", 0).daemon().factory(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public CompletableFuture<String> hashAsync(Path path) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return hash(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Whether the files have the same content. The hash of {@code stored} is read from and saved to the
+     * {@code file_hash} table.
+     */
+    public boolean isSameContent(Path file, Path stored) throws IOException {
+        long size = Files.size(file);
+        if (size != Files.size(stored)) {
+            return false;
+        }
+        if (!sampleHash(file, size).equals(sampleHash(stored, size))) {
+            return false;
+        }
+        CompletableFuture<String> fileHash = hashAsync(file);
+        String storedHash = getStoredHash(stored);
+        return join(fileHash).equals(storedHash);
+    }
+
+    /**
+     * The recorded hash of the file if it did not change since, otherwise hash it and record it.
+     */
+    public String getStoredHash(Path path) throws IOException {
+        long size = Files.size(path);
+        long modifiedAt = Files.getLastModifiedTime(path).toMillis();
+        String key = path.toAbsolutePath().toString();
+        FileHashRecord record = getRecord(key);
+        if (record != null && record.size() == size && record.modifiedAt() == modifiedAt) {
+            log.trace("Reuse hash of {}", key);
+            return record.hash();
+        }
+        String hash = join(hashAsync(path));
+        saveRecord(new FileHashRecord(key, size, modifiedAt, hash));
+        return hash;
+    }
+
+    private static String join(CompletableFuture<String> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static FileHashRecord getRecord(String path) {
+        if (DataVerticle.fileHashRepository == null) {
+            return null;
+        }
+        try {
+            return MessyUtils.await(DataVerticle.fileHashRepository.getByPath(path));
+        } catch (Exception e) {
+            log.warn("Get stored hash of {} failed: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void saveRecord(FileHashRecord record) {
+        if (DataVerticle.fileHashRepository == null) {
+            return;
+        }
+        try {
+            DataVerticle.fileHashRepository.createOrUpdate(record);
+        } catch (Exception e) {
+            log.warn("Save stored hash of {} failed: {}", record.path(), e.getMessage());
+        }
+    }
+
+    /**
+     * MD5 of the whole file, read chunk by chunk on the caller's thread.
+     */
+    public static String hash(Path path) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexUtil.encodeHexStr(digest.digest());
+    }
+
+    /**
+     * The lengths of the files, 0 for a missing file, read on the hash threads like the files themselves.
+     */
+    public CompletableFuture<List<Long>> lengthsAsync(List<Path> paths) {
+        return CompletableFuture.supplyAsync(() -> paths.stream().map(path -> path.toFile().length()).toList(), executor);
+    }
+
+    public CompletableFuture<String> headHashAsync(Path path, long length) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return headHash(path, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * MD5 of the first {@code length} bytes, the file may be longer but not shorter.
+     */
+    public static String headHash(Path path, long length) throws IOException {
+        MessageDigest digest = newDigest();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < length) {
+                throw new IOException("File %s is shorter than %d bytes".formatted(path, length));
+            }
+            update(digest, channel, 0, length);
+        }
+        return HexUtil.encodeHexStr(digest.digest());
+    }
+
+    public CompletableFuture<String> sampleHashAsync(Path path, long size) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return sampleHash(path, size);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Where the tail of the sample starts, the tail is empty when the head covers the whole file.
+     */
+    static long sampleTailOffset(long size) {
+        return Math.max(SAMPLE_SIZE, size - SAMPLE_SIZE);
+    }
+
+    /**
+     * MD5 of the size, the first and the last {@link #SAMPLE_SIZE} bytes.
+     */
+    static String sampleHash(Path path, long size) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(ByteBuffer.allocate(Long.BYTES).putLong(0, size));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            update(digest, channel, 0, Math.min(size, SAMPLE_SIZE));
+            if (size > SAMPLE_SIZE) {
+                long tail = sampleTailOffset(size);
+                update(digest, channel, tail, size - tail);
+            }
+        }
+        return HexUtil.encodeHexStr(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) != -1) {
+            // read until the sample is complete
+        }
+        buffer.flip();
+        digest.update(buffer);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package telegram.files;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Moves a file with a rename when the source and the target are on the same file system, and with a streamed
+ * {@link FileChannel#transferTo} copy otherwise.
+ * <p>
+ * A copy is written to a temporary file next to the target and renamed over it when complete, so the target never
+ * holds a partial file, and the source is only deleted after that.
+ */
+public class FileMover {
+
+    private static final String PART_SUFFIX = ".part";
+
+    private FileMover() {
+    }
+
+    public static Moved move(Path source, Path target, boolean overwrite) throws IOException {
+        long startTime = System.nanoTime();
+        long size = Files.size(source);
+        Path parent = target.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        if (!overwrite && Files.exists(target)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+
+        boolean copied = false;
+        if (Files.getFileStore(source).equals(Files.getFileStore(parent))) {
+            rename(source, target);
+        } else {
+            copy(source, target);
+            Files.delete(source);
+            copied = true;
+        }
+        return new Moved(size, System.nanoTime() - startTime, copied);
+    }
+
+    /**
+     * Replace the target with the source, atomically if the file system supports it.
+     */
+    public static void rename(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static void copy(Path source, Path target) throws IOException {
+        Path part = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+        try {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                out.force(true);
+            }
+            rename(part, target);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    /**
+     * @param nanos   time spent moving
+     * @param copied  whether the file was copied across file systems instead of renamed
+     */
+    public record Moved(long bytes, long nanos, boolean copied) {
+        public long bytesPerSecond() {
+            return nanos <= 0 ? bytes : (long) (bytes * 1_000_000_000.0 / nanos);
+        }
+    }
+}
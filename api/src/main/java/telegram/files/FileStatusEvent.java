@@ -0,0 +1,37 @@
+package telegram.files;
+
+import io.vertx.core.eventbus.EventBus;
+import telegram.files.repository.FileRecord;
+
+/**
+ * Body of the file status events, see {@link EventEnum#FILE_STATUS_CHANGED}. Only the status that changed is set.
+ */
+public record FileStatusEvent(long telegramId,
+                              int fileId,
+                              String uniqueId,
+                              FileRecord.DownloadStatus downloadStatus,
+                              FileRecord.TransferStatus transferStatus,
+                              String localPath
+) {
+
+    public static FileStatusEvent download(long telegramId, int fileId, String uniqueId, FileRecord.DownloadStatus downloadStatus, String localPath) {
+        return new FileStatusEvent(telegramId, fileId, uniqueId, downloadStatus, null, localPath);
+    }
+
+    public static FileStatusEvent transfer(long telegramId, int fileId, String uniqueId, FileRecord.TransferStatus transferStatus, String localPath) {
+        return new FileStatusEvent(telegramId, fileId, uniqueId, null, transferStatus, localPath);
+    }
+
+    /**
+     * Publish to {@link EventEnum#FILE_STATUS_CHANGED}, and to the completed address when the status is completed.
+     */
+    public void publish(EventBus eventBus) {
+        eventBus.publish(EventEnum.FILE_STATUS_CHANGED.address(), this);
+        if (downloadStatus == FileRecord.DownloadStatus.completed) {
+            eventBus.publish(EventEnum.FILE_DOWNLOAD_COMPLETED.address(), this);
+        }
+        if (transferStatus == FileRecord.TransferStatus.completed) {
+            eventBus.publish(EventEnum.FILE_TRANSFER_COMPLETED.address(), this);
+        }
+    }
+}
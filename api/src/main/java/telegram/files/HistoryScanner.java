@@ -0,0 +1,138 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Runs chat history scans page by page, a bounded number of chats at a time per telegram account.
+ * <p>
+ * Each {@link Task} scans one chat and keeps its own cursor, so a scan that runs out of its time budget, yields, or is
+ * interrupted by a flood wait continues from the same message when the chat is submitted again. Submitting a chat
+ * that is already running or waiting is ignored.
+ * <p>
+ * Pages go through the {@link RequestLimiter} of the account, which holds them back during a flood wait. A page that
+ * still fails with one yields, the chat continues from its cursor when it is submitted again.
+ */
+public class HistoryScanner {
+
+    private static final Log log = LogFactory.get();
+
+    private final String name;
+
+    private final int concurrency;
+
+    private final long maxScanTime;
+
+    // telegramId -> scans
+    private final Map<Long, AccountScans> accounts = new HashMap<>();
+
+    public enum Step {
+        /**
+         * Continue with the next page.
+         */
+        NEXT,
+        /**
+         * Stop for now, the chat will continue from its cursor the next time it is submitted.
+         */
+        YIELD,
+        /**
+         * No more history.
+         */
+        DONE
+    }
+
+    /**
+     * @param key  unique key of the scanned chat
+     * @param next scans the next page and moves the cursor
+     */
+    public record Task(String key, long telegramId, Supplier<Future<Step>> next) {
+    }
+
+    /**
+     * @param concurrency max chats scanned at the same time per telegram account
+     * @param maxScanTime time budget of one chat per submission, checked between pages
+     */
+    public HistoryScanner(String name, int concurrency, long maxScanTime) {
+        this.name = name;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxScanTime = maxScanTime;
+    }
+
+    public void submit(Task task) {
+        synchronized (this) {
+            AccountScans scans = accounts.computeIfAbsent(task.telegramId, k -> new AccountScans());
+            if (!scans.keys.add(task.key)) {
+                return;
+            }
+            scans.pending.add(task);
+        }
+        startNext(task.telegramId);
+    }
+
+    public synchronized int running(long telegramId) {
+        AccountScans scans = accounts.get(telegramId);
+        return scans == null ? 0 : scans.running;
+    }
+
+    public synchronized int pending(long telegramId) {
+        AccountScans scans = accounts.get(telegramId);
+        return scans == null ? 0 : scans.pending.size();
+    }
+
+    private void startNext(long telegramId) {
+        List<Task> tasks = new ArrayList<>();
+        synchronized (this) {
+            AccountScans scans = accounts.get(telegramId);
+            while (scans.running < concurrency && !scans.pending.isEmpty()) {
+                tasks.add(scans.pending.poll());
+                scans.running++;
+            }
+        }
+        tasks.forEach(task -> scan(task, System.currentTimeMillis())
+                .onFailure(e -> log.error("[%s] Scan history failed! %s".formatted(name, task.key), e))
+                .onComplete(r -> {
+                    synchronized (this) {
+                        AccountScans scans = accounts.get(telegramId);
+                        scans.running--;
+                        scans.keys.remove(task.key);
+                    }
+                    startNext(telegramId);
+                }));
+    }
+
+    private Future<Step> scan(Task task, long startTime) {
+        if (System.currentTimeMillis() - startTime > maxScanTime) {
+            log.debug("[%s] Scan history timeout! %s".formatted(name, task.key));
+            return Future.succeededFuture(Step.YIELD);
+        }
+        Future<Step> page;
+        try {
+            page = task.next.get();
+        } catch (Exception e) {
+            page = Future.failedFuture(e);
+        }
+        return page
+                .recover(e -> {
+                    int retryAfter = RequestLimiter.parseRetryAfter(e);
+                    if (retryAfter < 0) {
+                        return Future.failedFuture(e);
+                    }
+                    log.warn("[%s] Flood wait %d seconds, pause scan history! %s".formatted(name, retryAfter, task.key));
+                    return Future.succeededFuture(Step.YIELD);
+                })
+                .compose(step -> step == Step.NEXT ? scan(task, startTime) : Future.succeededFuture(step));
+    }
+
+    private static class AccountScans {
+        private final Deque<Task> pending = new ArrayDeque<>();
+
+        // keys of running and pending tasks
+        private final Set<String> keys = new HashSet<>();
+
+        private int running;
+    }
+}
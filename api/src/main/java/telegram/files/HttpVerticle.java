@@ -33,6 +33,7 @@ import org.jooq.lambda.function.Function2;
 import telegram.files.repository.SettingAutoRecords;
 import telegram.files.repository.SettingKey;
 import telegram.files.repository.SettingRecord;
+import telegram.files.repository.impl.SqlTracer;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -43,13 +44,10 @@ public class HttpVerticle extends AbstractVerticle {
 
     private static final Log log = LogFactory.get();
 
-    // session id -> ws handler id
-    private static final Map<String, String> clients = new ConcurrentHashMap<>();
-
     // session id -> telegram verticle
     private final Map<String, TelegramVerticle> sessionTelegramVerticles = new ConcurrentHashMap<>();
 
-    private final List<String> unboundClients = new ArrayList<>();
+    private final EventFanout eventFanout = new EventFanout();
 
     private final FileRouteHandler fileRouteHandler = new FileRouteHandler();
 
@@ -131,11 +129,14 @@ public class HttpVerticle extends AbstractVerticle {
                     );
         }
 
+        Metrics.INSTANCE.gauge("websocket_clients", "Connected WebSocket clients.", eventFanout::getClientCount);
+
         HealthChecks hc = HealthChecks.create(vertx);
         hc.register("http-server", Promise::complete);
 
         router.get("/").handler(ctx -> ctx.response().end("Hello World!"));
         router.get("/health").handler(HealthCheckHandler.createWithHealthChecks(hc));
+        router.get("/metrics").handler(this::handleMetrics);
         router.get("/version").handler(ctx -> ctx.json(new JsonObject().put("version", Start.VERSION)));
         router.route("/ws").handler(this::handleWebSocket);
 
@@ -152,6 +153,8 @@ public class HttpVerticle extends AbstractVerticle {
         router.get("/telegram/:telegramId/chat/:chatId/files").handler(this::handleTelegramFiles);
         router.get("/telegram/:telegramId/chat/:chatId/files/count").handler(this::handleTelegramFilesCount);
         router.get("/telegram/:telegramId/download-statistics").handler(this::handleTelegramDownloadStatistics);
+        router.get("/telegram/:telegramId/update-statistics").handler(this::handleTelegramUpdateStatistics);
+        router.get("/telegram/:telegramId/request-statistics").handler(this::handleTelegramRequestStatistics);
         router.post("/telegrams/change").handler(this::handleTelegramChange);
         router.post("/telegram/:telegramId/toggle-proxy").handler(this::handleTelegramToggleProxy);
         router.get("/telegram/:telegramId/ping").handler(this::handleTelegramPing);
@@ -165,6 +168,10 @@ public class HttpVerticle extends AbstractVerticle {
         router.post("/:telegramId/file/update-auto-settings").handler(this::handleAutoSettingsUpdate);
 
         router.get("/files/count").handler(this::handleFilesCount);
+        router.get("/files/cache-statistics").handler(ctx -> ctx.json(DataVerticle.fileRecordCache.getStatistics()));
+        router.get("/files/download-queue-statistics").handler(ctx -> ctx.json(DownloadQueue.INSTANCE.getStatistics()));
+        router.get("/files/content-index-statistics").handler(ctx -> ctx.json(ContentIndex.INSTANCE.getStatistics()));
+        router.get("/sql/slow-queries").handler(ctx -> ctx.json(SqlTracer.INSTANCE.getStatistics()));
         router.get("/files").handler(this::handleFiles);
         router.post("/files/start-download-multiple").handler(this::handleFileStartDownloadMultiple);
         router.post("/files/cancel-download-multiple").handler(this::handleFileCancelDownloadMultiple);
@@ -216,32 +223,15 @@ public class HttpVerticle extends AbstractVerticle {
 
     private Future<Void> initEventConsumer() {
         vertx.eventBus().consumer(EventEnum.TELEGRAM_EVENT.address(), message -> {
-            log.debug("Received telegram event: %s".formatted(message.body()));
-            JsonObject jsonObject = (JsonObject) message.body();
-            String telegramId = jsonObject.getString("telegramId");
-            EventPayload payload = jsonObject.getJsonObject("payload").mapTo(EventPayload.class);
-
-            Set<String> sentSessionIds = new HashSet<>();
-            sessionTelegramVerticles.entrySet().stream()
-                    .filter(e -> Objects.equals(Convert.toStr(e.getValue().getId()), telegramId))
-                    .map(Map.Entry::getKey)
-                    .forEach(sessionId -> {
-                        String wsHandlerId = clients.get(sessionId);
-                        if (StrUtil.isNotBlank(wsHandlerId)) {
-                            vertx.eventBus().send(wsHandlerId, Json.encode(payload));
-                        }
-                        sentSessionIds.add(sessionId);
-                    });
-
-            unboundClients.forEach(sessionId -> {
-                if (sentSessionIds.contains(sessionId)) {
-                    return;
-                }
-                String wsHandlerId = clients.get(sessionId);
-                if (StrUtil.isNotBlank(wsHandlerId)) {
-                    vertx.eventBus().send(wsHandlerId, Json.encode(payload));
-                }
-            });
+            if (log.isDebugEnabled()) {
+                log.debug("Received telegram event: %s".formatted(message.body()));
+            }
+            TelegramEvent event = (TelegramEvent) message.body();
+            String telegramId = Convert.toStr(event.telegramId());
+            // the only place the event is encoded
+            eventFanout.publish(TelegramVerticles.get(telegramId).orElse(null),
+                    EventFanout.coalesceKey(telegramId, event.payload()),
+                    Json.encode(event.payload()));
         });
 
         vertx.eventBus().consumer(EventEnum.AUTO_DOWNLOAD_UPDATE.address(), message -> {
@@ -251,21 +241,22 @@ public class HttpVerticle extends AbstractVerticle {
         return Future.succeededFuture();
     }
 
+    private void handleMetrics(RoutingContext ctx) {
+        ctx.response()
+                .putHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+                .end(Metrics.INSTANCE.scrape());
+    }
+
     private void handleWebSocket(RoutingContext ctx) {
         String sessionId = ctx.session().id();
         String telegramId = ctx.request().getParam("telegramId");
         ctx.request().toWebSocket()
                 .onSuccess(ws -> {
                     log.debug("Upgraded to WebSocket. SessionId: %s".formatted(sessionId));
-                    clients.put(sessionId, ws.textHandlerID());
+                    eventFanout.connect(sessionId, ws, StrUtil.isBlank(telegramId));
                     if (!handleTelegramChange(sessionId, telegramId)) {
                         log.debug("Failed to change telegram verticle. SessionId: %s".formatted(sessionId));
                     }
-                    if (StrUtil.isBlank(telegramId)) {
-                        unboundClients.add(sessionId);
-                    } else {
-                        unboundClients.remove(sessionId);
-                    }
 
                     long timerId = vertx.setPeriodic(30000, id -> {
                         if (!ws.isClosed()) {
@@ -276,8 +267,8 @@ public class HttpVerticle extends AbstractVerticle {
 
                     ws.exceptionHandler(throwable -> log.error("WebSocket error: %s".formatted(throwable.getMessage())));
                     ws.closeHandler(e -> {
-                        clients.remove(sessionId);
                         sessionTelegramVerticles.remove(sessionId);
+                        eventFanout.disconnect(sessionId);
                         vertx.cancelTimer(timerId);
                         log.debug("WebSocket closed. SessionId: %s".formatted(sessionId));
                     });
@@ -348,6 +339,7 @@ public class HttpVerticle extends AbstractVerticle {
         TelegramVerticle newTelegramVerticle = new TelegramVerticle(DataVerticle.telegramRepository.getRootPath());
         newTelegramVerticle.setProxy(proxyName);
         sessionTelegramVerticles.put(sessionId, newTelegramVerticle);
+        eventFanout.bind(sessionId, newTelegramVerticle);
         TelegramVerticles.add(newTelegramVerticle);
         vertx.deployVerticle(newTelegramVerticle)
                 .onSuccess(id -> ctx.json(new JsonObject()
@@ -366,6 +358,7 @@ public class HttpVerticle extends AbstractVerticle {
                 .onSuccess(r -> {
                     TelegramVerticles.remove(telegramVerticle);
                     sessionTelegramVerticles.entrySet().removeIf(e -> e.getValue().equals(telegramVerticle));
+                    eventFanout.unbindAccount(telegramVerticle);
                     ctx.end();
                 });
     }
@@ -456,6 +449,22 @@ public class HttpVerticle extends AbstractVerticle {
                 .onFailure(ctx::fail);
     }
 
+    private void handleTelegramUpdateStatistics(RoutingContext ctx) {
+        TelegramVerticle telegramVerticle = getTelegramVerticleByPath(ctx);
+        if (telegramVerticle == null) {
+            return;
+        }
+        ctx.json(telegramVerticle.getUpdateStatistics());
+    }
+
+    private void handleTelegramRequestStatistics(RoutingContext ctx) {
+        TelegramVerticle telegramVerticle = getTelegramVerticleByPath(ctx);
+        if (telegramVerticle == null) {
+            return;
+        }
+        ctx.json(telegramVerticle.client.getRequestStatistics());
+    }
+
     private void handleTelegramChange(RoutingContext ctx) {
         String sessionId = ctx.session().id();
         String telegramId = ctx.request().getParam("telegramId");
@@ -469,6 +478,7 @@ public class HttpVerticle extends AbstractVerticle {
     private boolean handleTelegramChange(String sessionId, String telegramId) {
         if (StrUtil.isBlank(telegramId)) {
             sessionTelegramVerticles.remove(sessionId);
+            eventFanout.bind(sessionId, null);
             return true;
         }
         Optional<TelegramVerticle> optionalTelegramVerticle = TelegramVerticles.get(telegramId);
@@ -476,6 +486,7 @@ public class HttpVerticle extends AbstractVerticle {
             return false;
         }
         sessionTelegramVerticles.put(sessionId, optionalTelegramVerticle.get());
+        eventFanout.bind(sessionId, optionalTelegramVerticle.get());
         return true;
     }
 
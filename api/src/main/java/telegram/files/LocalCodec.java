@@ -0,0 +1,47 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+
+/**
+ * Event bus codec that hands the sent object itself to local consumers, without any serialization. Consumers must
+ * treat the body as read-only, it is shared by all of them.
+ */
+public class LocalCodec<T> implements MessageCodec<T, T> {
+
+    private final Class<T> type;
+
+    private LocalCodec(Class<T> type) {
+        this.type = type;
+    }
+
+    public static <T> void register(Vertx vertx, Class<T> type) {
+        vertx.eventBus().registerDefaultCodec(type, new LocalCodec<>(type));
+    }
+
+    @Override
+    public void encodeToWire(Buffer buffer, T t) {
+        throw new UnsupportedOperationException("%s is only sent on the local event bus".formatted(type.getSimpleName()));
+    }
+
+    @Override
+    public T decodeFromWire(int pos, Buffer buffer) {
+        throw new UnsupportedOperationException("%s is only sent on the local event bus".formatted(type.getSimpleName()));
+    }
+
+    @Override
+    public T transform(T t) {
+        return t;
+    }
+
+    @Override
+    public String name() {
+        return "local-" + type.getName();
+    }
+
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+}
@@ -3,12 +3,13 @@ package telegram.files;
 import io.vertx.core.Future;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.security.MessageDigest;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 public class MessyUtils {
 
@@ -20,58 +21,22 @@ public class MessyUtils {
     }
 
     public static String calculateFileMD5(File file) {
-        try (FileInputStream fis = new FileInputStream(file);
-             FileChannel channel = fis.getChannel()) {
-
-            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, file.length());
-
-            MessageDigest md = MessageDigest.getInstance("MD5");
-
-            md.update(buffer);
-
-            byte[] md5Bytes = md.digest();
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : md5Bytes) {
-                hexString.append(String.format("%02x", b));
-            }
-
-            return hexString.toString();
+        try {
+            return FileHasher.hash(file.toPath());
         } catch (Exception e) {
             return null;
         }
     }
 
     public static boolean compareFilesMD5(File file1, File file2) {
-        CompletableFuture<String> md5Task1 = CompletableFuture.supplyAsync(() -> {
-            try {
-                return calculateFileMD5(file1);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        });
-
-        CompletableFuture<String> md5Task2 = CompletableFuture.supplyAsync(() -> {
-            try {
-                return calculateFileMD5(file2);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        });
+        CompletableFuture<String> md5Task1 = FileHasher.INSTANCE.hashAsync(file1.toPath());
+        CompletableFuture<String> md5Task2 = FileHasher.INSTANCE.hashAsync(file2.toPath());
 
-        String md5File1 = null;
-        String md5File2 = null;
         try {
-            md5File1 = md5Task1.join();
-            md5File2 = md5Task2.join();
+            return md5Task1.join().equals(md5Task2.join());
         } catch (Exception ignore) {
             return false;
         }
-
-        if (md5File1 == null || md5File2 == null) {
-            return false;
-        }
-
-        return md5File1.equals(md5File2);
     }
 
     public static <T> T await(Future<T> future) {
@@ -86,6 +51,31 @@ public class MessyUtils {
         return completableFuture.join();
     }
 
+    /**
+     * Map the items with at most {@code concurrency} futures in flight, results keep the order of the items.
+     */
+    public static <T, R> Future<List<R>> mapConcurrently(List<T> items, int concurrency, Function<T, Future<R>> mapper) {
+        List<R> results = new ArrayList<>(Collections.nCopies(items.size(), null));
+        AtomicInteger next = new AtomicInteger();
+        List<Future<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(Math.max(1, concurrency), items.size()); i++) {
+            workers.add(mapNext(items, results, next, mapper));
+        }
+        return Future.all(workers).map(r -> results);
+    }
+
+    private static <T, R> Future<Void> mapNext(List<T> items, List<R> results, AtomicInteger next, Function<T, Future<R>> mapper) {
+        int index = next.getAndIncrement();
+        if (index >= items.size()) {
+            return Future.succeededFuture();
+        }
+        return mapper.apply(items.get(index))
+                .compose(result -> {
+                    results.set(index, result);
+                    return mapNext(items, results, next, mapper);
+                });
+    }
+
     public static long convertToByte(long value, String unit) {
         return switch (unit) {
             case "B" -> value;
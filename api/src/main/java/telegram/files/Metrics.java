@@ -0,0 +1,270 @@
+package telegram.files;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.spi.metrics.PoolMetrics;
+import io.vertx.core.spi.metrics.VertxMetrics;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The metrics of the server, scraped from {@code /metrics} in the Prometheus text format.
+ * <p>
+ * Counters and timers are created on first use and live as long as the process, so their label values must come from
+ * a small set, like TDLib functions or repository methods. Gauges are read when scraped. Timers are histograms with
+ * the same buckets, from 1 ms to 30 s.
+ */
+public class Metrics {
+
+    public static final Metrics INSTANCE = new Metrics();
+
+    // seconds
+    private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private static final long EVENT_LOOP_PROBE_INTERVAL = 100;
+
+    // name -> family
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    private interface Sample {
+        void write(StringBuilder out, String name, String labels);
+    }
+
+    private record Family(String name, String help, String type, Map<String, Sample> samples) {
+    }
+
+    /**
+     * @param labels label names and values, in pairs
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return sample(name, help, "counter", labels, Counter.class, Counter::new);
+    }
+
+    /**
+     * @param labels label names and values, in pairs
+     */
+    public Timer timer(String name, String help, String... labels) {
+        return sample(name, help, "histogram", labels, Timer.class, Timer::new);
+    }
+
+    /**
+     * Register the gauge, replacing the gauge registered before with the same name.
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        family(name, help, "gauge").samples().put("", (out, n, labels) -> line(out, n, labels, value.getAsDouble()));
+    }
+
+    /**
+     * A gauge with one sample per key, like per account, replacing the gauge registered before with the same name.
+     */
+    public void gauge(String name, String help, String label, Supplier<Map<?, ? extends Number>> values) {
+        family(name, help, "gauge").samples().put("", (out, n, ignored) -> values.get().forEach((key, value) ->
+                line(out, n, labels(label, String.valueOf(key)), value.doubleValue())));
+    }
+
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        families.values().stream()
+                .sorted(Comparator.comparing(Family::name))
+                .forEach(family -> {
+                    out.append("# HELP ").append(family.name()).append(' ').append(family.help()).append('\n');
+                    out.append("# TYPE ").append(family.name()).append(' ').append(family.type()).append('\n');
+                    family.samples().entrySet().stream()
+                            .sorted(Map.Entry.comparingByKey())
+                            .forEach(entry -> entry.getValue().write(out, family.name(), entry.getKey()));
+                });
+        return out.toString();
+    }
+
+    /**
+     * Reports the wait for a connection of the SQL pools, Vert.x creates the pool metrics through this.
+     */
+    public VertxMetrics vertxMetrics() {
+        // pool name -> connections in use
+        Map<String, AtomicInteger> poolsInUse = new ConcurrentHashMap<>();
+        // pool name -> maximum connections
+        Map<String, Integer> poolsMaxSize = new ConcurrentHashMap<>();
+        gauge("sql_pool_in_use", "Connections of the pool in use.", "pool", () -> poolsInUse);
+        gauge("sql_pool_max_size", "Maximum connections of the pool.", "pool", () -> poolsMaxSize);
+        return new VertxMetrics() {
+            @Override
+            public PoolMetrics<?, ?> createPoolMetrics(String poolType, String poolName, int maxPoolSize) {
+                if (!"sql".equals(poolType)) {
+                    return null;
+                }
+                Timer wait = timer("sql_pool_wait_seconds", "Time waited for a connection of the pool.", "pool", poolName);
+                AtomicInteger inUse = poolsInUse.computeIfAbsent(poolName, k -> new AtomicInteger());
+                poolsMaxSize.put(poolName, maxPoolSize);
+                return new PoolMetrics<Long, Void>() {
+                    @Override
+                    public Long enqueue() {
+                        return System.nanoTime();
+                    }
+
+                    @Override
+                    public void dequeue(Long enqueued) {
+                        wait.record(System.nanoTime() - enqueued);
+                    }
+
+                    @Override
+                    public Void begin() {
+                        inUse.incrementAndGet();
+                        return null;
+                    }
+
+                    @Override
+                    public void end(Void ignored) {
+                        inUse.decrementAndGet();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Run a timer on every event loop, the time it fires late is the time the loop was busy with something else.
+     *
+     * @param eventLoops the event loop pool size of the Vert.x instance
+     */
+    public Future<String> startEventLoopProbe(Vertx vertx, int eventLoops) {
+        // every instance gets a new context, Vert.x gives new contexts the event loops in turn
+        return vertx.deployVerticle(() -> new AbstractVerticle() {
+            @Override
+            public void start() {
+                Timer lag = timer("vertx_event_loop_lag_seconds", "How late a timer on an event loop fires.",
+                        "loop", Thread.currentThread().getName());
+                probe(vertx, lag, System.nanoTime());
+            }
+        }, new DeploymentOptions().setInstances(eventLoops));
+    }
+
+    private void probe(Vertx vertx, Timer lag, long scheduled) {
+        vertx.setTimer(EVENT_LOOP_PROBE_INTERVAL, id -> {
+            long now = System.nanoTime();
+            lag.record(Math.max(0, now - scheduled - TimeUnit.MILLISECONDS.toNanos(EVENT_LOOP_PROBE_INTERVAL)));
+            probe(vertx, lag, now);
+        });
+    }
+
+    private <T extends Sample> T sample(String name, String help, String type, String[] labels,
+                                        Class<T> sampleClass, Supplier<T> factory) {
+        Sample sample = family(name, help, type).samples().computeIfAbsent(labels(labels), k -> factory.get());
+        return sampleClass.cast(sample);
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, type, new ConcurrentHashMap<>()));
+        if (!family.type().equals(type)) {
+            throw new IllegalArgumentException("Metric %s is a %s, not a %s".formatted(name, family.type(), type));
+        }
+        return family;
+    }
+
+    private static String labels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (!text.isEmpty()) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return text.toString();
+    }
+
+    private static String escape(String value) {
+        return value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static void line(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    public static class Counter implements Sample {
+
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            line(out, name, labels, value.sum());
+        }
+    }
+
+    public static class Timer implements Sample {
+
+        // the last bucket is +Inf
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        Timer() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            totalNanos.add(nanos);
+        }
+
+        public long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf";
+                line(out, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+            }
+            line(out, name + "_sum", labels, totalNanos.sum() / 1e9);
+            line(out, name + "_count", labels, cumulative);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import org.drinkless.tdlib.Client;
+import org.drinkless.tdlib.TdApi;
+
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * {@link TdClient} on libtdjni, which is loaded with the first client.
+ */
+public class NativeTdClient implements TdClient {
+    private static final Log log = LogFactory.get();
+
+    private final Client client;
+
+    static {
+        Client.setLogMessageHandler(0, new LogMessageHandler());
+
+        try {
+            Client.execute(new TdApi.SetLogVerbosityLevel(Config.TELEGRAM_LOG_LEVEL));
+            Client.execute(new TdApi.SetLogStream(new TdApi.LogStreamFile(Path.of(Config.LOG_PATH, "tdlib.log").toString(),
+                    1 << 27, false)));
+        } catch (Client.ExecutionException error) {
+            throw new IOError(new IOException("Write access to the current directory is required"));
+        }
+    }
+
+    private NativeTdClient(Client client) {
+        this.client = client;
+    }
+
+    public static NativeTdClient create(Client.ResultHandler updateHandler, Client.ExceptionHandler defaultExceptionHandler) {
+        return new NativeTdClient(Client.create(updateHandler, null, defaultExceptionHandler));
+    }
+
+    @Override
+    public void send(TdApi.Function<?> query, Client.ResultHandler resultHandler) {
+        client.send(query, resultHandler);
+    }
+
+    private static class LogMessageHandler implements Client.LogMessageHandler {
+        @Override
+        public void onLogMessage(int verbosityLevel, String message) {
+            log.debug("TDLib: %s".formatted(message));
+        }
+    }
+}
@@ -10,7 +10,11 @@ import org.drinkless.tdlib.TdApi;
 import telegram.files.repository.FileRecord;
 import telegram.files.repository.SettingAutoRecords;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 public class PreloadMessageVerticle extends AbstractVerticle {
 
@@ -20,8 +24,15 @@ public class PreloadMessageVerticle extends AbstractVerticle {
 
     private static final int MAX_HISTORY_SCAN_TIME = 10 * 1000;
 
+    private static final int THREAD_INFO_CONCURRENCY = 10;
+
     private final SettingAutoRecords autoRecords;
 
+    // uniqueKey -> preloaded records and time spent, for the throughput of each chat
+    private final Map<String, PreloadStatistics> preloadStatistics = new ConcurrentHashMap<>();
+
+    private final HistoryScanner historyScanner = new HistoryScanner("preload", Config.HISTORY_SCAN_CONCURRENCY, MAX_HISTORY_SCAN_TIME);
+
     public PreloadMessageVerticle() {
         this.autoRecords = AutomationsHolder.INSTANCE.autoRecords();
     }
@@ -34,13 +45,15 @@ public class PreloadMessageVerticle extends AbstractVerticle {
                             id -> autoRecords.getPreloadEnabledItems()
                                     .stream()
                                     .filter(auto -> auto.isNotComplete(SettingAutoRecords.HISTORY_PRELOAD_STATE))
-                                    .forEach(auto -> addHistoryMessage(auto, System.currentTimeMillis())));
+                                    .forEach(this::addHistoryMessage));
 
                     log.info("""
                             Preload message verticle started!
                             |History scan interval: %s ms
+                            |History scan concurrency: %s per telegram account
                             |Auto chats: %s
                             """.formatted(HISTORY_SCAN_INTERVAL,
+                            Config.HISTORY_SCAN_CONCURRENCY,
                             autoRecords.getPreloadEnabledItems().size()));
 
                     startPromise.complete();
@@ -61,45 +74,54 @@ public class PreloadMessageVerticle extends AbstractVerticle {
         return Future.succeededFuture();
     }
 
-    private void addHistoryMessage(SettingAutoRecords.Automation auto, long currentTimeMillis) {
-        log.debug("Start load history message! TelegramId: %d ChatId: %d".formatted(auto.telegramId, auto.chatId));
-        if (System.currentTimeMillis() - currentTimeMillis > MAX_HISTORY_SCAN_TIME) {
-            log.debug("Load history message timeout! TelegramId: %d ChatId: %d".formatted(auto.telegramId, auto.chatId));
-            return;
-        }
+    private void addHistoryMessage(SettingAutoRecords.Automation auto) {
+        historyScanner.submit(new HistoryScanner.Task(auto.uniqueKey(), auto.telegramId, () -> loadHistoryPage(auto)));
+    }
 
+    private Future<HistoryScanner.Step> loadHistoryPage(SettingAutoRecords.Automation auto) {
+        log.debug("Start load history message! TelegramId: %d ChatId: %d".formatted(auto.telegramId, auto.chatId));
         TelegramVerticle telegramVerticle = TelegramVerticles.getOrElseThrow(auto.telegramId);
         TdApi.SearchChatMessages searchChatMessages = new TdApi.SearchChatMessages();
         searchChatMessages.chatId = auto.chatId;
         searchChatMessages.fromMessageId = auto.preload.nextFromMessageId;
         searchChatMessages.limit = 100;
-        TdApi.FoundChatMessages foundChatMessages = Future.await(telegramVerticle.client.execute(searchChatMessages)
-                .onFailure(r -> log.error("Search chat messages failed! TelegramId: %d ChatId: %d".formatted(auto.telegramId, auto.chatId), r))
-        );
-        if (foundChatMessages == null || foundChatMessages.messages.length == 0) {
-            log.debug("%s No more history message found! TelegramId: %d ChatId: %d".formatted(auto.uniqueKey(), auto.telegramId, auto.chatId));
-            auto.complete(SettingAutoRecords.HISTORY_PRELOAD_STATE);
-            return;
-        }
-        int count = 0;
-        for (TdApi.Message message : foundChatMessages.messages) {
-            Optional<TdApiHelp.FileHandler<? extends TdApi.MessageContent>> fileHandlerOptional = TdApiHelp.getFileHandler(message);
-            if (fileHandlerOptional.isEmpty()) {
-                continue;
-            }
-            TdApi.MessageThreadInfo messageThreadInfo = Future.await(telegramVerticle.client
-                    .execute(new TdApi.GetMessageThread(message.chatId, message.id), true));
-            FileRecord fileRecord = fileHandlerOptional.get().convertFileRecord(auto.telegramId).withThreadInfo(messageThreadInfo);
-            if (Future.await(DataVerticle.fileRepository.createIfNotExist(fileRecord))) {
-                count++;
-            }
-        }
-
-        if (log.isDebugEnabled() && count > 0) {
-            log.debug("Load history message success! TelegramId: %d ChatId: %d Count: %d".formatted(auto.telegramId, auto.chatId, count));
-        }
-        auto.preload.nextFromMessageId = foundChatMessages.nextFromMessageId;
-        addHistoryMessage(auto, currentTimeMillis);
+        return telegramVerticle.client.executeInBackground(searchChatMessages)
+                .compose(foundChatMessages -> {
+                    if (foundChatMessages.messages.length == 0) {
+                        log.debug("%s No more history message found! TelegramId: %d ChatId: %d".formatted(auto.uniqueKey(), auto.telegramId, auto.chatId));
+                        auto.complete(SettingAutoRecords.HISTORY_PRELOAD_STATE);
+                        PreloadStatistics statistics = preloadStatistics.remove(auto.uniqueKey());
+                        if (statistics != null && statistics.records > 0) {
+                            log.info("Preload history complete! TelegramId: %d ChatId: %d Count: %d (%.1f records/s)"
+                                    .formatted(auto.telegramId, auto.chatId, statistics.records, statistics.records * 1000.0 / statistics.time));
+                        }
+                        return Future.succeededFuture(HistoryScanner.Step.DONE);
+                    }
+                    long startTime = System.currentTimeMillis();
+                    List<TdApi.Message> messages = Stream.of(foundChatMessages.messages)
+                            .filter(message -> TdApiHelp.getFileHandler(message).isPresent())
+                            .toList();
+                    return MessyUtils.mapConcurrently(messages, THREAD_INFO_CONCURRENCY, message -> telegramVerticle.client
+                                    .execute(new TdApi.GetMessageThread(message.chatId, message.id), true, RequestLimiter.Priority.BACKGROUND)
+                                    .map(messageThreadInfo -> {
+                                        Optional<TdApiHelp.FileHandler<? extends TdApi.MessageContent>> fileHandler = TdApiHelp.getFileHandler(message);
+                                        return fileHandler.orElseThrow().convertFileRecord(auto.telegramId).withThreadInfo(messageThreadInfo);
+                                    }))
+                            .compose(DataVerticle.fileRepository::createAllIfNotExist)
+                            .map(count -> {
+                                long time = Math.max(1, System.currentTimeMillis() - startTime);
+                                PreloadStatistics statistics = preloadStatistics.computeIfAbsent(auto.uniqueKey(), k -> new PreloadStatistics());
+                                statistics.records += count;
+                                statistics.time += time;
+                                if (log.isDebugEnabled() && count > 0) {
+                                    log.debug("Load history message success! TelegramId: %d ChatId: %d Count: %d Time: %d ms (%.1f records/s, total %d records at %.1f records/s)"
+                                            .formatted(auto.telegramId, auto.chatId, count, time, count * 1000.0 / time,
+                                                    statistics.records, statistics.records * 1000.0 / statistics.time));
+                                }
+                                auto.preload.nextFromMessageId = foundChatMessages.nextFromMessageId;
+                                return HistoryScanner.Step.NEXT;
+                            });
+                });
     }
 
     private void onNewMessage(JsonObject jsonObject) {
@@ -114,8 +136,8 @@ public class PreloadMessageVerticle extends AbstractVerticle {
                     if (!telegramVerticle.authorized) return;
 
                     Future.all(
-                                    telegramVerticle.client.execute(new TdApi.GetMessage(chatId, messageId)),
-                                    telegramVerticle.client.execute(new TdApi.GetMessageThread(chatId, messageId))
+                                    telegramVerticle.client.executeInBackground(new TdApi.GetMessage(chatId, messageId)),
+                                    telegramVerticle.client.executeInBackground(new TdApi.GetMessageThread(chatId, messageId))
                             )
                             .onSuccess(result -> {
                                 TdApi.Message message = result.resultAt(0);
@@ -128,4 +150,10 @@ public class PreloadMessageVerticle extends AbstractVerticle {
                             .onFailure(e -> log.error("Preload message fail. Get message failed: %s".formatted(e.getMessage())));
                 });
     }
+
+    private static class PreloadStatistics {
+        private long records;
+
+        private long time;
+    }
 }
@@ -0,0 +1,125 @@
+package telegram.files;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonObject;
+import org.drinkless.tdlib.TdApi;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Shares read-only TDLib requests: an identical request sent while one is in flight gets the same future, and the
+ * results of lookups that rarely change are reused for a short time.
+ * <p>
+ * Callers of the same request get the same result object, so they must not modify it.
+ */
+public class RequestCache {
+
+    private static final int MAX_RESULTS = 1024;
+
+    private final long ttlMillis;
+
+    // request key -> in flight request
+    private final Map<String, Future<?>> inFlight = new ConcurrentHashMap<>();
+
+    // request key -> result
+    private final Map<String, CachedResult> results = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong shared = new AtomicLong();
+
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    private record CachedResult(Object result, long expiresAt) {
+    }
+
+    public RequestCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Key of identical requests, null if the request is not shared.
+     */
+    public static String key(TdApi.Function<?> method) {
+        return switch (method) {
+            case TdApi.GetFile f -> "file:" + f.fileId;
+            case TdApi.GetMessage f -> "message:%d:%d".formatted(f.chatId, f.messageId);
+            case TdApi.GetMessageThread f -> "thread:%d:%d".formatted(f.chatId, f.messageId);
+            case TdApi.GetChat f -> "chat:" + f.chatId;
+            default -> null;
+        };
+    }
+
+    /**
+     * Whether the result can be reused after the request completed. Files are not, their download state changes all
+     * the time.
+     */
+    public static boolean isCacheable(TdApi.Function<?> method) {
+        return method instanceof TdApi.GetMessage
+               || method instanceof TdApi.GetMessageThread
+               || method instanceof TdApi.GetChat;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <R> Future<R> get(String key, boolean cacheable, Supplier<Future<R>> request) {
+        requests.incrementAndGet();
+        boolean cache = cacheable && ttlMillis > 0;
+        if (cache) {
+            CachedResult cached = results.get(key);
+            if (cached != null) {
+                if (cached.expiresAt() > System.currentTimeMillis()) {
+                    cacheHits.incrementAndGet();
+                    return Future.succeededFuture((R) cached.result());
+                }
+                results.remove(key, cached);
+            }
+        }
+
+        Promise<R> promise = Promise.promise();
+        Future<?> existing = inFlight.putIfAbsent(key, promise.future());
+        if (existing != null) {
+            shared.incrementAndGet();
+            return (Future<R>) existing;
+        }
+        Future<R> future;
+        try {
+            future = request.get();
+        } catch (Exception e) {
+            future = Future.failedFuture(e);
+        }
+        future.onComplete(ar -> {
+            // cached before leaving the in flight map, so a request in between finds one or the other
+            if (cache && ar.succeeded() && ar.result() != null) {
+                put(key, ar.result());
+            }
+            inFlight.remove(key, promise.future());
+            promise.handle(ar);
+        });
+        return promise.future();
+    }
+
+    private void put(String key, Object result) {
+        if (results.size() >= MAX_RESULTS) {
+            long now = System.currentTimeMillis();
+            results.values().removeIf(cached -> cached.expiresAt() <= now);
+            if (results.size() >= MAX_RESULTS) {
+                results.clear();
+            }
+        }
+        results.put(key, new CachedResult(result, System.currentTimeMillis() + ttlMillis));
+    }
+
+    public JsonObject getStatistics() {
+        return JsonObject.of(
+                "requests", requests.get(),
+                "shared", shared.get(),
+                "cacheHits", cacheHits.get(),
+                "inFlight", inFlight.size(),
+                "cached", results.size()
+        );
+    }
+}
@@ -0,0 +1,217 @@
+package telegram.files;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.util.ReUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.json.JsonObject;
+import org.drinkless.tdlib.TdApi;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces the TDLib requests of one account.
+ * <p>
+ * Requests that read history or messages from the server take a token from a bucket refilled at
+ * {@link Config#TELEGRAM_REQUEST_RATE} per second. When TDLib answers {@code 429 Too Many Requests: retry after N},
+ * only the class of the failed request is paused for N seconds, and the request waits to be sent again. This is the
+ * only flood wait state of an account. Requests that can't be sent yet wait in order, the ones a user is waiting for
+ * before background ones.
+ */
+public class RequestLimiter {
+
+    private static final Log log = LogFactory.get();
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("request-limiter").daemon().factory());
+
+    public enum Priority {
+        USER, BACKGROUND
+    }
+
+    public enum RequestClass {
+        HISTORY(true),
+        MESSAGE(true),
+        DOWNLOAD(false),
+        OTHER(false);
+
+        /**
+         * Whether requests of the class take a token.
+         */
+        private final boolean limited;
+
+        RequestClass(boolean limited) {
+            this.limited = limited;
+        }
+
+        public static RequestClass of(TdApi.Function<?> method) {
+            return switch (method) {
+                case TdApi.SearchChatMessages ignored -> HISTORY;
+                case TdApi.SearchMessages ignored -> HISTORY;
+                case TdApi.GetChatHistory ignored -> HISTORY;
+                case TdApi.GetMessageThreadHistory ignored -> HISTORY;
+                case TdApi.GetMessage ignored -> MESSAGE;
+                case TdApi.GetMessages ignored -> MESSAGE;
+                case TdApi.GetMessageThread ignored -> MESSAGE;
+                case TdApi.LoadChats ignored -> MESSAGE;
+                case TdApi.DownloadFile ignored -> DOWNLOAD;
+                case TdApi.AddFileToDownloads ignored -> DOWNLOAD;
+                default -> OTHER;
+            };
+        }
+    }
+
+    private record Waiting(RequestClass requestClass, Runnable send) {
+    }
+
+    private final double rate;
+
+    private double tokens;
+
+    private long refilledAt = System.nanoTime();
+
+    private final Map<RequestClass, Long> pausedUntil = new EnumMap<>(RequestClass.class);
+
+    private final Map<Priority, Deque<Waiting>> waiting = new EnumMap<>(Map.of(
+            Priority.USER, new ArrayDeque<>(),
+            Priority.BACKGROUND, new ArrayDeque<>()
+    ));
+
+    private boolean drainScheduled;
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    private final AtomicLong floodWaits = new AtomicLong();
+
+    /**
+     * @param rate tokens per second, also the size of the bucket; 0 or less disables the bucket
+     */
+    public RequestLimiter(double rate) {
+        this.rate = rate;
+        this.tokens = Math.max(rate, 0);
+    }
+
+    /**
+     * Run send now if the request may go out, otherwise once it may.
+     */
+    public void submit(RequestClass requestClass, Priority priority, Runnable send) {
+        synchronized (this) {
+            // limited requests line up behind the waiting ones, so that tokens go to user requests first
+            boolean lineUp = requestClass.limited
+                             && (!waiting.get(Priority.USER).isEmpty() || !waiting.get(Priority.BACKGROUND).isEmpty());
+            if (lineUp || !tryAcquire(requestClass, System.currentTimeMillis())) {
+                waiting.get(priority).add(new Waiting(requestClass, send));
+                throttled.incrementAndGet();
+                send = null;
+            }
+        }
+        if (send != null) {
+            send.run();
+        } else {
+            drain();
+        }
+    }
+
+    /**
+     * @return seconds to wait, or -1 if the error is not a flood wait
+     */
+    public static int parseRetryAfter(Throwable e) {
+        if (e instanceof TelegramRunException telegramRunException && telegramRunException.getError().code == 429) {
+            return Convert.toInt(ReUtil.get("retry after (\\d+)", telegramRunException.getError().message, 1), 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Pause the requests of the class for the time TDLib asked for.
+     */
+    public void onFloodWait(RequestClass requestClass, int retryAfterSeconds) {
+        floodWaits.incrementAndGet();
+        long until = System.currentTimeMillis() + retryAfterSeconds * 1000L;
+        synchronized (this) {
+            pausedUntil.merge(requestClass, until, Math::max);
+        }
+        log.warn("Flood wait %d seconds, pause %s requests".formatted(retryAfterSeconds, requestClass));
+    }
+
+    private void drain() {
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (this) {
+            drainScheduled = false;
+            long now = System.currentTimeMillis();
+            for (Priority priority : Priority.values()) {
+                Iterator<Waiting> iterator = waiting.get(priority).iterator();
+                while (iterator.hasNext()) {
+                    Waiting item = iterator.next();
+                    if (tryAcquire(item.requestClass(), now)) {
+                        iterator.remove();
+                        ready.add(item.send());
+                    }
+                }
+            }
+            scheduleDrain(now);
+        }
+        ready.forEach(Runnable::run);
+    }
+
+    private void scheduleDrain(long now) {
+        if (drainScheduled) {
+            return;
+        }
+        long delay = Long.MAX_VALUE;
+        for (Deque<Waiting> queue : waiting.values()) {
+            for (Waiting item : queue) {
+                long paused = pausedUntil.getOrDefault(item.requestClass(), 0L) - now;
+                if (paused > 0) {
+                    delay = Math.min(delay, paused);
+                } else if (item.requestClass().limited && rate > 0) {
+                    delay = Math.min(delay, (long) Math.ceil((1 - tokens) * 1000 / rate));
+                }
+            }
+        }
+        if (delay != Long.MAX_VALUE) {
+            drainScheduled = true;
+            scheduler.schedule(this::drain, Math.max(1, delay), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean tryAcquire(RequestClass requestClass, long now) {
+        if (pausedUntil.getOrDefault(requestClass, 0L) > now) {
+            return false;
+        }
+        if (!requestClass.limited || rate <= 0) {
+            return true;
+        }
+        long nanos = System.nanoTime();
+        tokens = Math.min(rate, tokens + (nanos - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+        refilledAt = nanos;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    public synchronized JsonObject getStatistics() {
+        long now = System.currentTimeMillis();
+        JsonObject paused = new JsonObject();
+        pausedUntil.forEach((requestClass, until) -> {
+            if (until > now) {
+                paused.put(requestClass.name(), (until - now) / 1000);
+            }
+        });
+        return JsonObject.of(
+                "rate", rate,
+                "tokens", Math.floor(tokens),
+                "waitingUser", waiting.get(Priority.USER).size(),
+                "waitingBackground", waiting.get(Priority.BACKGROUND).size(),
+                "throttled", throttled.get(),
+                "floodWaits", floodWaits.get(),
+                "pausedSeconds", paused
+        );
+    }
+}
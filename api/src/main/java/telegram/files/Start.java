@@ -3,6 +3,8 @@ package telegram.files;
 import cn.hutool.log.Log;
 import cn.hutool.log.LogFactory;
 import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.metrics.MetricsOptions;
 
 import java.util.concurrent.CountDownLatch;
 
@@ -19,7 +21,13 @@ public class Start {
 
     private static volatile boolean isShuttingDown = false;
 
-    private static final Vertx vertx = Vertx.vertx();
+    private static final VertxOptions vertxOptions = new VertxOptions()
+            .setMetricsOptions(new MetricsOptions().setEnabled(true));
+
+    private static final Vertx vertx = Vertx.builder()
+            .with(vertxOptions)
+            .withMetrics(options -> Metrics.INSTANCE.vertxMetrics())
+            .build();
 
     private static final DataVerticle dataVerticle = new DataVerticle();
 
@@ -27,6 +35,8 @@ public class Start {
 
     public static void main(String[] args) {
         registerShutdownHooks();
+        Metrics.INSTANCE.startEventLoopProbe(vertx, vertxOptions.getEventLoopPoolSize())
+                .onFailure(e -> log.warn("Start event loop probe failed: %s".formatted(e.getMessage())));
         deployVerticles();
     }
 
@@ -54,6 +64,8 @@ public class Start {
     }
 
     private static void deployVerticles() {
+        LocalCodec.register(vertx, TelegramEvent.class);
+        LocalCodec.register(vertx, FileStatusEvent.class);
         vertx.deployVerticle(dataVerticle)
                 .compose(id -> vertx.deployVerticle(httpVerticle))
                 .onSuccess(id -> log.info("🚀 Start success"))
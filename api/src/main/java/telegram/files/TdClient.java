@@ -0,0 +1,20 @@
+package telegram.files;
+
+import org.drinkless.tdlib.Client;
+import org.drinkless.tdlib.TdApi;
+
+/**
+ * The TDLib client of one account behind {@link TelegramClient}, the native {@link Client} or a stand-in.
+ * <p>
+ * Results are delivered to the handler of the request, updates to the update handler the client was created with,
+ * both on a thread of the client.
+ */
+public interface TdClient {
+
+    void send(TdApi.Function<?> query, Client.ResultHandler resultHandler);
+
+    @FunctionalInterface
+    interface Factory {
+        TdClient create(Client.ResultHandler updateHandler, Client.ExceptionHandler defaultExceptionHandler);
+    }
+}
@@ -6,31 +6,51 @@ import cn.hutool.log.LogFactory;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
 import org.drinkless.tdlib.Client;
 import org.drinkless.tdlib.TdApi;
+import telegram.files.simulator.TdSimulator;
 
-import java.io.IOError;
-import java.io.IOException;
-import java.nio.file.Path;
 import java.util.concurrent.TimeoutException;
 
 public class TelegramClient {
     private static final Log log = LogFactory.get();
 
-    private Client client;
+    // flood waits a request sits out before it fails
+    private static final int MAX_FLOOD_WAITS = 3;
 
-    private boolean initialized = false;
+    // seconds, a longer flood wait fails the request rather than holding it back
+    private static final int MAX_RETRY_AFTER = 300;
 
-    static {
-        Client.setLogMessageHandler(0, new LogMessageHandler());
+    private record RequestTimers(Metrics.Timer ok, Metrics.Timer error) {
+    }
 
-        try {
-            Client.execute(new TdApi.SetLogVerbosityLevel(Config.TELEGRAM_LOG_LEVEL));
-            Client.execute(new TdApi.SetLogStream(new TdApi.LogStreamFile(Path.of(Config.LOG_PATH, "tdlib.log").toString(),
-                    1 << 27, false)));
-        } catch (Client.ExecutionException error) {
-            throw new IOError(new IOException("Write access to the current directory is required"));
+    // function class -> timers, shared by all accounts
+    private static final ClassValue<RequestTimers> requestTimers = new ClassValue<>() {
+        @Override
+        protected RequestTimers computeValue(Class<?> type) {
+            return new RequestTimers(requestTimer(type, "ok"), requestTimer(type, "error"));
         }
+    };
+
+    private final TdClient.Factory clientFactory;
+
+    private TdClient client;
+
+    private boolean initialized = false;
+
+    private UpdateDispatcher updateDispatcher;
+
+    private final RequestCache requestCache = new RequestCache(Config.TELEGRAM_REQUEST_CACHE_TTL);
+
+    private final RequestLimiter requestLimiter = new RequestLimiter(Config.TELEGRAM_REQUEST_RATE);
+
+    public TelegramClient() {
+        this(Config.isTelegramSimulated() ? TdSimulator.factory(TdSimulator.Settings.fromConfig()) : NativeTdClient::create);
+    }
+
+    public TelegramClient(TdClient.Factory clientFactory) {
+        this.clientFactory = clientFactory;
     }
 
     public void initialize(Client.ResultHandler updateHandler,
@@ -38,34 +58,80 @@ public class TelegramClient {
                            Client.ExceptionHandler defaultExceptionHandler) {
         synchronized (this) {
             if (!initialized) {
-                client = Client.create(updateHandler, updateExceptionHandler, defaultExceptionHandler);
+                // updates are handled off the receiver thread, query results still complete on it
+                updateDispatcher = new UpdateDispatcher(updateHandler, updateExceptionHandler);
+                client = clientFactory.create(updateDispatcher, defaultExceptionHandler);
                 initialized = true;
             }
         }
     }
 
-    @SuppressWarnings("unchecked")
     public <R extends TdApi.Object> Future<R> execute(TdApi.Function<R> method) {
         return execute(method, false);
     }
 
-    @SuppressWarnings("unchecked")
     public <R extends TdApi.Object> Future<R> execute(TdApi.Function<R> method, boolean ignoreException) {
-        log.trace("Execute method: %s".formatted(TypeUtil.getTypeArgument(method.getClass())));
+        return execute(method, ignoreException, RequestLimiter.Priority.USER);
+    }
+
+    /**
+     * For requests nobody is waiting for, like scans and maintenance, they give way to the others when throttled.
+     */
+    public <R extends TdApi.Object> Future<R> executeInBackground(TdApi.Function<R> method) {
+        return execute(method, false, RequestLimiter.Priority.BACKGROUND);
+    }
+
+    public <R extends TdApi.Object> Future<R> execute(TdApi.Function<R> method, boolean ignoreException, RequestLimiter.Priority priority) {
+        if (log.isTraceEnabled()) {
+            log.trace("Execute method: %s".formatted(TypeUtil.getTypeArgument(method.getClass())));
+        }
         if (!initialized) {
             throw new IllegalStateException("Client is not initialized");
         }
-        return Future.future(promise -> client.send(method, object -> {
-            if (object.getConstructor() == TdApi.Error.CONSTRUCTOR) {
-                if (ignoreException) {
-                    promise.complete(null);
-                    return;
+        String key = RequestCache.key(method);
+        Future<R> future = key == null
+                ? send(method, priority)
+                : requestCache.get(key, RequestCache.isCacheable(method), () -> send(method, priority));
+        if (ignoreException) {
+            return future.recover(e -> e instanceof TelegramRunException ? Future.succeededFuture() : Future.failedFuture(e));
+        }
+        return future;
+    }
+
+    private <R extends TdApi.Object> Future<R> send(TdApi.Function<R> method, RequestLimiter.Priority priority) {
+        RequestLimiter.RequestClass requestClass = RequestLimiter.RequestClass.of(method);
+        return Future.future(promise -> send(method, requestClass, priority, promise, 0));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R extends TdApi.Object> void send(TdApi.Function<R> method,
+                                               RequestLimiter.RequestClass requestClass,
+                                               RequestLimiter.Priority priority,
+                                               Promise<R> promise,
+                                               int floodWaits) {
+        requestLimiter.submit(requestClass, priority, () -> {
+            long start = System.nanoTime();
+            client.send(method, object -> {
+                boolean isError = object.getConstructor() == TdApi.Error.CONSTRUCTOR;
+                RequestTimers timers = requestTimers.get(method.getClass());
+                (isError ? timers.error() : timers.ok()).record(System.nanoTime() - start);
+                if (isError) {
+                    TelegramRunException exception = new TelegramRunException((TdApi.Error) object);
+                    int retryAfter = RequestLimiter.parseRetryAfter(exception);
+                    if (retryAfter > 0) {
+                        requestLimiter.onFloodWait(requestClass, retryAfter);
+                        if (floodWaits < MAX_FLOOD_WAITS && retryAfter <= MAX_RETRY_AFTER) {
+                            // the limiter holds it back until the wait is over
+                            send(method, requestClass, priority, promise, floodWaits + 1);
+                            return;
+                        }
+                    }
+                    promise.fail(exception);
+                } else {
+                    promise.complete((R) object);
                 }
-                promise.fail(new TelegramRunException((TdApi.Error) object));
-            } else {
-                promise.complete((R) object);
-            }
-        }));
+            });
+        });
     }
 
     public <R extends TdApi.Object> Future<R> execute(TdApi.Function<R> method, long timeoutMs, Vertx vertx) {
@@ -92,14 +158,34 @@ public class TelegramClient {
         return promise.future();
     }
 
-    public Client getNativeClient() {
-        return client;
+    /**
+     * Run the task once the updates received so far have been handled. From the result of a request, that includes
+     * the updates the request caused, TDLib sends them first.
+     */
+    public void afterUpdates(Runnable task) {
+        if (!initialized) {
+            throw new IllegalStateException("Client is not initialized");
+        }
+        updateDispatcher.runAfterQueued(task);
     }
 
-    private static class LogMessageHandler implements Client.LogMessageHandler {
-        @Override
-        public void onLogMessage(int verbosityLevel, String message) {
-            log.debug("TDLib: %s".formatted(message));
-        }
+    public JsonObject getUpdateStatistics() {
+        return updateDispatcher == null ? new JsonObject() : updateDispatcher.getStatistics();
+    }
+
+    public JsonObject getRequestStatistics() {
+        return JsonObject.of(
+                "cache", requestCache.getStatistics(),
+                "limiter", requestLimiter.getStatistics()
+        );
+    }
+
+    private static Metrics.Timer requestTimer(Class<?> function, String result) {
+        return Metrics.INSTANCE.timer("tdlib_request_duration_seconds", "Duration of TDLib requests, after the throttling.",
+                "function", function.getSimpleName(), "result", result);
+    }
+
+    public TdClient getTdClient() {
+        return client;
     }
 }
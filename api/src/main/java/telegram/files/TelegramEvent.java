@@ -0,0 +1,10 @@
+package telegram.files;
+
+/**
+ * Body of {@link EventEnum#TELEGRAM_EVENT}, passed as is to local consumers and encoded to JSON only for WebSocket
+ * clients.
+ *
+ * @param telegramId id of the telegram account, see {@link TelegramVerticle#getId()}
+ */
+public record TelegramEvent(Object telegramId, EventPayload payload) {
+}
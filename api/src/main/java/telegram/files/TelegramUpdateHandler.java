@@ -2,77 +2,94 @@ package telegram.files;
 
 import cn.hutool.log.Log;
 import cn.hutool.log.LogFactory;
+import io.vertx.core.json.JsonObject;
 import org.drinkless.tdlib.Client;
 import org.drinkless.tdlib.TdApi;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
+/**
+ * Routes each update to the one handler registered for its constructor, and counts the updates by type.
+ */
 public class TelegramUpdateHandler implements Client.ResultHandler {
 
     private static final Log log = LogFactory.get();
 
-    private Consumer<TdApi.AuthorizationState> onAuthorizationStateUpdated;
+    // constructor -> handler
+    private final Map<Integer, Consumer<TdApi.Object>> handlers = new ConcurrentHashMap<>();
 
-    private Consumer<TdApi.UpdateFile> onFileUpdated;
+    // constructor -> number of updates
+    private final Map<Integer, UpdateCounter> counters = new ConcurrentHashMap<>();
 
-    private Consumer<TdApi.UpdateFileDownloads> onFileDownloadsUpdated;
-
-    private Consumer<TdApi.Object> onChatUpdated;
-
-    private Consumer<TdApi.Message> onMessageReceived;
+    private record UpdateCounter(String type, LongAdder count, Metrics.Counter total) {
+    }
 
     @Override
     public void onResult(TdApi.Object object) {
-        switch (object.getConstructor()) {
-            case TdApi.UpdateAuthorizationState.CONSTRUCTOR:
-                if (onAuthorizationStateUpdated != null)
-                    onAuthorizationStateUpdated.accept(((TdApi.UpdateAuthorizationState) object).authorizationState);
-                break;
-            case TdApi.UpdateFile.CONSTRUCTOR:
-                if (onFileUpdated != null)
-                    onFileUpdated.accept((TdApi.UpdateFile) object);
-            case TdApi.UpdateFileDownload.CONSTRUCTOR:
-                log.trace("File download update: %s".formatted(object));
-                break;
-            case TdApi.UpdateFileDownloads.CONSTRUCTOR:
-                if (onFileDownloadsUpdated != null)
-                    onFileDownloadsUpdated.accept((TdApi.UpdateFileDownloads) object);
-                break;
-            case TdApi.UpdateNewMessage.CONSTRUCTOR:
-                if (onMessageReceived != null) {
-                    onMessageReceived.accept(((TdApi.UpdateNewMessage) object).message);
-                }
-            case TdApi.UpdateNewChat.CONSTRUCTOR:
-            case TdApi.UpdateChatTitle.CONSTRUCTOR:
-            case TdApi.UpdateChatPhoto.CONSTRUCTOR:
-            case TdApi.UpdateChatReadInbox.CONSTRUCTOR:
-            case TdApi.UpdateChatLastMessage.CONSTRUCTOR:
-            case TdApi.UpdateChatPosition.CONSTRUCTOR:
-                if (onChatUpdated != null) {
-                    onChatUpdated.accept(object);
-                }
-            default:
-                log.trace("Unsupported telegram update: %s".formatted(object));
+        int constructor = object.getConstructor();
+        UpdateCounter counter = counters.computeIfAbsent(constructor, k -> {
+            String type = object.getClass().getSimpleName();
+            // the same counter for all accounts
+            return new UpdateCounter(type, new LongAdder(),
+                    Metrics.INSTANCE.counter("tdlib_updates_total", "TDLib updates received.", "type", type));
+        });
+        counter.count().increment();
+        counter.total().increment();
+        Consumer<TdApi.Object> handler = handlers.get(constructor);
+        if (handler != null) {
+            handler.accept(object);
+        } else if (log.isTraceEnabled()) {
+            log.trace("Unsupported telegram update: %s".formatted(object));
         }
     }
 
+    /**
+     * Route the updates with the constructor to the handler, replacing the handler registered before.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends TdApi.Object> void register(int constructor, Consumer<T> handler) {
+        handlers.put(constructor, object -> handler.accept((T) object));
+    }
+
     public void setOnAuthorizationStateUpdated(Consumer<TdApi.AuthorizationState> onAuthorizationStateUpdated) {
-        this.onAuthorizationStateUpdated = onAuthorizationStateUpdated;
+        this.<TdApi.UpdateAuthorizationState>register(TdApi.UpdateAuthorizationState.CONSTRUCTOR,
+                update -> onAuthorizationStateUpdated.accept(update.authorizationState));
     }
 
     public void setOnFileUpdated(Consumer<TdApi.UpdateFile> onFileUpdated) {
-        this.onFileUpdated = onFileUpdated;
+        register(TdApi.UpdateFile.CONSTRUCTOR, onFileUpdated);
     }
 
     public void setOnFileDownloadsUpdated(Consumer<TdApi.UpdateFileDownloads> onFileDownloadsUpdated) {
-        this.onFileDownloadsUpdated = onFileDownloadsUpdated;
+        register(TdApi.UpdateFileDownloads.CONSTRUCTOR, onFileDownloadsUpdated);
     }
 
     public void setOnChatUpdated(Consumer<TdApi.Object> onChatUpdated) {
-        this.onChatUpdated = onChatUpdated;
+        for (int constructor : new int[]{
+                TdApi.UpdateNewChat.CONSTRUCTOR,
+                TdApi.UpdateChatTitle.CONSTRUCTOR,
+                TdApi.UpdateChatPhoto.CONSTRUCTOR,
+                TdApi.UpdateChatReadInbox.CONSTRUCTOR,
+                TdApi.UpdateChatLastMessage.CONSTRUCTOR,
+                TdApi.UpdateChatPosition.CONSTRUCTOR}) {
+            register(constructor, onChatUpdated);
+        }
     }
 
     public void setOnMessageReceived(Consumer<TdApi.Message> onMessageReceived) {
-        this.onMessageReceived = onMessageReceived;
+        this.<TdApi.UpdateNewMessage>register(TdApi.UpdateNewMessage.CONSTRUCTOR,
+                update -> onMessageReceived.accept(update.message));
+    }
+
+    /**
+     * Number of updates received, by update type.
+     */
+    public JsonObject getStatistics() {
+        JsonObject statistics = new JsonObject();
+        counters.values().forEach(counter -> statistics.put(counter.type(), counter.count().sum()));
+        return statistics;
     }
 }
@@ -39,6 +39,8 @@ public class TelegramVerticle extends AbstractVerticle {
 
     private TelegramChats telegramChats;
 
+    private TelegramUpdateHandler telegramUpdateHandler;
+
     public boolean authorized = false;
 
     public TdApi.AuthorizationState lastAuthorizationState;
@@ -90,7 +92,7 @@ public class TelegramVerticle extends AbstractVerticle {
     public void start(Promise<Void> startPromise) {
         client = new TelegramClient();
         telegramChats = new TelegramChats(client);
-        TelegramUpdateHandler telegramUpdateHandler = new TelegramUpdateHandler();
+        telegramUpdateHandler = new TelegramUpdateHandler();
         telegramUpdateHandler.setOnAuthorizationStateUpdated(this::onAuthorizationStateUpdated);
         telegramUpdateHandler.setOnFileUpdated(this::onFileUpdated);
         telegramUpdateHandler.setOnFileDownloadsUpdated(this::onFileDownloadsUpdated);
@@ -325,20 +327,55 @@ public class TelegramVerticle extends AbstractVerticle {
                                 }
                                 return Future.succeededFuture();
                             })
-                            .compose(ignore -> client.execute(new TdApi.AddFileToDownloads(fileId, chatId, messageId, 32)))
-                            .onSuccess(ignore -> {
-                                sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
-                                        .put("fileId", fileId)
-                                        .put("uniqueId", fileRecord.uniqueId())
-                                        .put("downloadStatus", FileRecord.DownloadStatus.downloading)
-                                ));
-
-                                downloadThumbnail(chatId, messageId, fileHandler.convertThumbnailRecord(telegramRecord.id()));
-                            })
-                            .map(fileRecord);
+                            .compose(ignore -> ContentIndex.INSTANCE.findDuplicate(telegramRecord.id(), client, file))
+                            .compose(duplicate -> duplicate == null
+                                    ? addFileToDownloads(chatId, messageId, fileId, fileRecord, fileHandler)
+                                    : completeWithDuplicate(file, fileRecord, duplicate));
                 });
     }
 
+    private Future<FileRecord> addFileToDownloads(Long chatId,
+                                                  Long messageId,
+                                                  Integer fileId,
+                                                  FileRecord fileRecord,
+                                                  TdApiHelp.FileHandler<? extends TdApi.MessageContent> fileHandler) {
+        return client.execute(new TdApi.AddFileToDownloads(fileId, chatId, messageId, 32))
+                .onSuccess(ignore -> {
+                    // take the slot now, TDLib reports the download as active a bit later
+                    DownloadSlots.INSTANCE.update(fileRecord, FileRecord.DownloadStatus.downloading);
+                    FileStatusEvent.download(telegramRecord.id(), fileId, fileRecord.uniqueId(), FileRecord.DownloadStatus.downloading, null)
+                            .publish(vertx.eventBus());
+                    sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
+                            .put("fileId", fileId)
+                            .put("uniqueId", fileRecord.uniqueId())
+                            .put("downloadStatus", FileRecord.DownloadStatus.downloading)
+                    ));
+
+                    downloadThumbnail(chatId, messageId, fileHandler.convertThumbnailRecord(telegramRecord.id()));
+                })
+                .map(fileRecord);
+    }
+
+    /**
+     * Complete the file with the content of an already downloaded duplicate instead of downloading it.
+     */
+    private Future<FileRecord> completeWithDuplicate(TdApi.File file, FileRecord fileRecord, ContentIndex.Duplicate duplicate) {
+        // drop the downloaded head, the file gets the duplicate's content
+        return client.execute(new TdApi.DeleteFile(file.id), true)
+                .compose(r -> vertx.executeBlocking(() -> ContentIndex.INSTANCE.link(duplicate, fileRecord.fileName()).toString()))
+                .compose(localPath -> DataVerticle.fileRepository.updateDownloadStatus(file.id,
+                                fileRecord.uniqueId(),
+                                localPath,
+                                FileRecord.DownloadStatus.completed,
+                                System.currentTimeMillis())
+                        .compose(r -> DataVerticle.fileRepository.createContent(
+                                        new FileContentRecord(fileRecord.uniqueId(), file.size, duplicate.headHash()))
+                                .map(r)))
+                .onSuccess(r -> sendFileStatusHttpEvent(file, r))
+                .onComplete(r -> ContentIndex.INSTANCE.resolved(client, telegramRecord.id(), file.id))
+                .compose(r -> DataVerticle.fileRepository.getByUniqueId(fileRecord.uniqueId()));
+    }
+
     public Future<Boolean> downloadThumbnail(Long chatId, Long messageId, FileRecord thumbnailRecord) {
         if (thumbnailRecord == null) {
             return Future.succeededFuture(false);
@@ -380,6 +417,9 @@ public class TelegramVerticle extends AbstractVerticle {
                 })
                 .compose(file -> client.execute(new TdApi.DeleteFile(fileId)).map(file))
                 .compose(file -> DataVerticle.fileRepository.deleteByUniqueId(file.remote.uniqueId).map(file))
+                .onSuccess(file -> DownloadSlots.INSTANCE.release(telegramRecord.id(), file.remote.uniqueId))
+                .onSuccess(file -> FileStatusEvent.download(telegramRecord.id(), fileId, file.remote.uniqueId, FileRecord.DownloadStatus.idle, null)
+                        .publish(vertx.eventBus()))
                 .onSuccess(file ->
                         sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
                                 .put("fileId", fileId)
@@ -453,6 +493,7 @@ public class TelegramVerticle extends AbstractVerticle {
                     return Future.succeededFuture(file);
                 })
                 .compose(file -> DataVerticle.fileRepository.deleteByUniqueId(uniqueId).map(file))
+                .onSuccess(file -> DownloadSlots.INSTANCE.release(telegramRecord.id(), uniqueId))
                 .onSuccess(file -> sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
                         .put("fileId", fileId)
                         .put("uniqueId", uniqueId)
@@ -489,6 +530,14 @@ public class TelegramVerticle extends AbstractVerticle {
                 .mapEmpty();
     }
 
+    /**
+     * Update queue of the client and the number of updates received by type.
+     */
+    public JsonObject getUpdateStatistics() {
+        return client.getUpdateStatistics()
+                .put("types", telegramUpdateHandler == null ? new JsonObject() : telegramUpdateHandler.getStatistics());
+    }
+
     public Future<JsonObject> getDownloadStatistics() {
         return Future.all(DataVerticle.fileRepository.getDownloadStatistics(this.telegramRecord.id()),
                 client.execute(new TdApi.GetNetworkStatistics())
@@ -638,8 +687,10 @@ public class TelegramVerticle extends AbstractVerticle {
                 promise.fail("Unsupported method: " + method);
                 return;
             }
-            client.getNativeClient().send(func, object -> {
-                log.debug("[%s] Execute: [%s] Receive result: %s".formatted(getRootId(), code, object));
+            client.getTdClient().send(func, object -> {
+                if (log.isDebugEnabled()) {
+                    log.debug("[%s] Execute: [%s] Receive result: %s".formatted(getRootId(), code, object));
+                }
                 handleDefaultResult(object, code);
             });
             promise.complete(code);
@@ -647,13 +698,21 @@ public class TelegramVerticle extends AbstractVerticle {
     }
 
     private void sendEvent(EventPayload payload) {
-        vertx.eventBus().publish(EventEnum.TELEGRAM_EVENT.address(),
-                JsonObject.of("telegramId", this.getId(), "payload", JsonObject.mapFrom(payload)));
+        vertx.eventBus().publish(EventEnum.TELEGRAM_EVENT.address(), new TelegramEvent(this.getId(), payload));
     }
 
     private void sendFileStatusHttpEvent(TdApi.File file, JsonObject fileUpdated) {
         if (fileUpdated == null || fileUpdated.isEmpty()) return;
 
+        if (StrUtil.isNotBlank(fileUpdated.getString("downloadStatus")) && telegramRecord != null) {
+            FileStatusEvent.download(telegramRecord.id(),
+                    file.id,
+                    file.remote.uniqueId,
+                    FileRecord.DownloadStatus.valueOf(fileUpdated.getString("downloadStatus")),
+                    fileUpdated.getString("localPath")
+            ).publish(vertx.eventBus());
+        }
+
         JsonObject statusData = new JsonObject()
                 .put("fileId", file.id)
                 .put("uniqueId", file.remote.uniqueId)
@@ -769,7 +828,9 @@ public class TelegramVerticle extends AbstractVerticle {
     }
 
     private void onAuthorizationStateUpdated(TdApi.AuthorizationState authorizationState) {
-        log.debug("[%s] Receive authorization state update: %s".formatted(getRootId(), authorizationState));
+        if (log.isDebugEnabled()) {
+            log.debug("[%s] Receive authorization state update: %s".formatted(getRootId(), authorizationState));
+        }
         this.lastAuthorizationState = authorizationState;
         switch (authorizationState.getConstructor()) {
             case TdApi.AuthorizationStateWaitTdlibParameters.CONSTRUCTOR:
@@ -784,7 +845,9 @@ public class TelegramVerticle extends AbstractVerticle {
                 request.systemLanguageCode = "en";
                 request.deviceModel = "Telegram Files";
                 request.applicationVersion = Start.VERSION;
-                log.trace("[%s] Send SetTdlibParameters: %s".formatted(getRootId(), request));
+                if (log.isTraceEnabled()) {
+                    log.trace("[%s] Send SetTdlibParameters: %s".formatted(getRootId(), request));
+                }
 
                 client.execute(request).onSuccess(this::handleAuthorizationResult);
                 break;
@@ -835,8 +898,14 @@ public class TelegramVerticle extends AbstractVerticle {
     }
 
     private void onFileUpdated(TdApi.UpdateFile updateFile) {
-        log.trace("📃[%s] Receive file update: %s".formatted(getRootId(), updateFile));
+        if (log.isTraceEnabled()) {
+            log.trace("📃[%s] Receive file update: %s".formatted(getRootId(), updateFile));
+        }
         TdApi.File file = updateFile.file;
+        if (file != null && telegramRecord != null && ContentIndex.INSTANCE.isProbing(telegramRecord.id(), file.id)) {
+            log.trace("[%s] Ignore file update of content probe: %d".formatted(getRootId(), file.id));
+            return;
+        }
         if (file != null) {
             String localPath = null;
             Long completionDate = null;
@@ -859,12 +928,18 @@ public class TelegramVerticle extends AbstractVerticle {
                             if (downloadStatus == null) {
                                 downloadStatus = FileRecord.DownloadStatus.idle;
                             }
-                            DataVerticle.fileRepository.updateDownloadStatus(file.id,
-                                            file.remote.uniqueId,
+                            DownloadSlots.INSTANCE.update(fileRecord, downloadStatus);
+                            DataVerticle.fileRepository.updateDownloadStatus(fileRecord,
+                                            file.id,
                                             finalLocalPath,
                                             downloadStatus,
                                             finalCompletionDate)
-                                    .onSuccess(r -> sendFileStatusHttpEvent(file, r));
+                                    .onSuccess(r -> {
+                                        sendFileStatusHttpEvent(file, r);
+                                        if (r != null && FileRecord.DownloadStatus.completed.name().equals(r.getString("downloadStatus"))) {
+                                            ContentIndex.INSTANCE.add(fileRecord, finalLocalPath);
+                                        }
+                                    });
                         }
                     });
 
@@ -876,7 +951,9 @@ public class TelegramVerticle extends AbstractVerticle {
     }
 
     private void onFileDownloadsUpdated(TdApi.UpdateFileDownloads updateFileDownloads) {
-        log.trace("[%s] Receive file downloads update: %s".formatted(getRootId(), updateFileDownloads));
+        if (log.isTraceEnabled()) {
+            log.trace("[%s] Receive file downloads update: %s".formatted(getRootId(), updateFileDownloads));
+        }
         avgSpeed.update(updateFileDownloads.downloadedSize, System.currentTimeMillis());
         if (lastFileDownloadEventTime == 0 || System.currentTimeMillis() - lastFileDownloadEventTime > 1000) {
             sendEvent(EventPayload.build(EventPayload.TYPE_FILE_DOWNLOAD, updateFileDownloads));
@@ -885,7 +962,9 @@ public class TelegramVerticle extends AbstractVerticle {
     }
 
     private void onMessageReceived(TdApi.Message message) {
-        log.trace("[%s] Receive message: %s".formatted(getRootId(), message));
+        if (log.isTraceEnabled()) {
+            log.trace("[%s] Receive message: %s".formatted(getRootId(), message));
+        }
         if (this.telegramRecord == null) {
             log.trace("[%s] Telegram record is null, can't handle message".formatted(getRootId()));
             return;
@@ -902,9 +981,10 @@ public class TelegramVerticle extends AbstractVerticle {
                 .getByUniqueId(file.remote.uniqueId)
                 .compose(fileRecord -> {
                     if (fileRecord != null) {
+                        DownloadSlots.INSTANCE.update(fileRecord, FileRecord.DownloadStatus.completed);
                         return DataVerticle.fileRepository.updateDownloadStatus(
+                                fileRecord,
                                 file.id,
-                                file.remote.uniqueId,
                                 file.local.path,
                                 FileRecord.DownloadStatus.completed,
                                 System.currentTimeMillis()
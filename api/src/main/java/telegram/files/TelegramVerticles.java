@@ -14,14 +14,21 @@ import telegram.files.repository.TelegramRecord;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 public class TelegramVerticles {
     private static final Log log = LogFactory.get();
 
     private static final List<TelegramVerticle> telegramVerticles = new ArrayList<>();
 
+    // id -> verticle, every event looks up its account. The id of an account changes when it logs in, so a hit is
+    // checked against the verticle and a miss falls back to the list.
+    private static final Map<Object, TelegramVerticle> index = new ConcurrentHashMap<>();
+
     public static Future<Void> initTelegramVerticles(Vertx vertx) {
         return DataVerticle.telegramRepository.getAll()
                 .compose(telegramRecords -> {
@@ -64,6 +71,7 @@ public class TelegramVerticles {
 
     public static void remove(TelegramVerticle telegramVerticle) {
         telegramVerticles.remove(telegramVerticle);
+        index.values().removeIf(t -> t == telegramVerticle);
     }
 
     public static List<TelegramVerticle> getAll() {
@@ -72,9 +80,7 @@ public class TelegramVerticles {
 
     public static Optional<TelegramVerticle> get(String telegramId) {
         Object id = NumberUtil.isNumber(telegramId) ? Convert.toLong(telegramId) : telegramId;
-        return telegramVerticles.stream()
-                .filter(t -> Objects.equals(t.getId(), id))
-                .findFirst();
+        return find(id, t -> Objects.equals(t.getId(), id));
     }
 
     public static TelegramVerticle getOrElseThrow(String telegramId) {
@@ -83,13 +89,21 @@ public class TelegramVerticles {
     }
 
     public static Optional<TelegramVerticle> get(long telegramId) {
-        return telegramVerticles.stream()
-                .filter(t -> t.telegramRecord != null && t.telegramRecord.id() == telegramId)
-                .findFirst();
+        return find(telegramId, t -> t.telegramRecord != null && t.telegramRecord.id() == telegramId);
     }
 
     public static TelegramVerticle getOrElseThrow(long telegramId) {
         return get(telegramId)
                 .orElseThrow(() -> VertxException.noStackTrace("Telegram account not found!"));
     }
+
+    private static Optional<TelegramVerticle> find(Object id, Predicate<TelegramVerticle> matches) {
+        TelegramVerticle telegramVerticle = index.get(id);
+        if (telegramVerticle != null && matches.test(telegramVerticle)) {
+            return Optional.of(telegramVerticle);
+        }
+        Optional<TelegramVerticle> found = telegramVerticles.stream().filter(matches).findFirst();
+        found.ifPresentOrElse(t -> index.put(id, t), () -> index.remove(id));
+        return found;
+    }
 }
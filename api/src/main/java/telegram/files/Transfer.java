@@ -16,10 +16,8 @@ import telegram.files.repository.FileRecord;
 import telegram.files.repository.SettingAutoRecords;
 
 import java.io.*;
-import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.FileTime;
 import java.text.SimpleDateFormat;
@@ -33,6 +31,9 @@ public abstract class Transfer {
 
     private static final Log log = LogFactory.get();
 
+    private static final Metrics.Counter transferredBytes = Metrics.INSTANCE.counter("transfer_bytes_total",
+            "Bytes moved or copied to transfer destinations.");
+
     public String destination;
 
     public TransferPolicy transferPolicy;
@@ -43,7 +44,7 @@ public abstract class Transfer {
 
     public Consumer<TransferStatusUpdated> transferStatusUpdated;
 
-    private FileRecord transferRecord;
+    private String fileSystem;
 
     public Transfer(SettingAutoRecords.TransferRule transferRule) {
         this.destination = transferRule.destination;
@@ -68,7 +69,6 @@ public abstract class Transfer {
 
     public void transfer(FileRecord fileRecord) {
         log.debug("Start transfer file {}", fileRecord.id());
-        transferRecord = fileRecord;
         transferStatusUpdated.accept(new TransferStatusUpdated(fileRecord, FileRecord.TransferStatus.transferring, null));
         try {
             File originFile = new File(fileRecord.localPath());
@@ -98,7 +98,7 @@ public abstract class Transfer {
                 }
 
                 if (duplicationPolicy == DuplicationPolicy.HASH) {
-                    if (MessyUtils.compareFilesMD5(FileUtil.file(fileRecord.localPath()), FileUtil.file(transferPath))) {
+                    if (FileHasher.INSTANCE.isSameContent(Path.of(fileRecord.localPath()), Path.of(transferPath))) {
                         log.trace("File {} is the same as {}", fileRecord.id(), transferPath);
                         FileUtil.del(fileRecord.localPath());
                         transferStatusUpdated.accept(new TransferStatusUpdated(fileRecord, FileRecord.TransferStatus.completed, transferPath));
@@ -111,18 +111,22 @@ public abstract class Transfer {
             }
 
             Path targetPath = Path.of(transferPath);
-            FileUtil.move(Path.of(fileRecord.localPath()), targetPath, isOverwrite);
+            FileMover.Moved moved = FileMover.move(Path.of(fileRecord.localPath()), targetPath, isOverwrite);
+            transferredBytes.add(moved.bytes());
 
             updateFileDateTime(targetPath, fileRecord.date());
 
-            log.info("Transfer file {} to {}, duplication policy: {} overwrite: {}", fileRecord.id(), transferPath, duplicationPolicy, isOverwrite);
+            log.info("Transfer file {} to {}, duplication policy: {} overwrite: {}, {} {} in {} ms ({}/s)",
+                    fileRecord.id(), transferPath, duplicationPolicy, isOverwrite,
+                    moved.copied() ? "copied" : "renamed",
+                    FileUtil.readableFileSize(moved.bytes()),
+                    TimeUnit.NANOSECONDS.toMillis(moved.nanos()),
+                    FileUtil.readableFileSize(moved.bytesPerSecond()));
 
             transferStatusUpdated.accept(new TransferStatusUpdated(fileRecord, FileRecord.TransferStatus.completed, transferPath));
         } catch (Exception e) {
             log.error(e, "Transfer file {} error", fileRecord.id());
             transferStatusUpdated.accept(new TransferStatusUpdated(fileRecord, FileRecord.TransferStatus.error, null));
-        } finally {
-            transferRecord = null;
         }
     }
 
@@ -131,27 +135,7 @@ public abstract class Transfer {
         if (file.getAbsolutePath().toLowerCase().endsWith(".jpg")) {
             setJpgDateTime(file, timestamp);
         }
-
-        try {
-            File tmpFile = File.createTempFile("telegram-file", null);
-            Path tmpFilePath = tmpFile.toPath();
-            Files.move(filePath, tmpFilePath, StandardCopyOption.REPLACE_EXISTING);
-
-            try {
-                setFileDateTime(tmpFilePath, timestamp);
-                try {
-                    Files.move(tmpFilePath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-                } catch (AtomicMoveNotSupportedException ignored) {
-                    Files.move(tmpFilePath, filePath, StandardCopyOption.REPLACE_EXISTING);
-                }
-
-                setFileDateTime(filePath, timestamp);
-            } finally {
-                boolean ignored = tmpFile.delete();
-            }
-        } catch (IOException e) {
-            setFileDateTime(filePath, timestamp);
-        }
+        setFileDateTime(filePath, timestamp);
     }
 
     private static void setFileDateTime(Path filePath, int timestamp) {
@@ -189,13 +173,15 @@ public abstract class Transfer {
             rootDir.removeField(TiffTagConstants.TIFF_TAG_DATE_TIME);
             rootDir.add(TiffTagConstants.TIFF_TAG_DATE_TIME, exifDate);
 
+            // the rewritten file sits next to the original, so replacing it is a rename on the same file system
             File tempFile = new File(file.getAbsolutePath() + ".tmp");
-            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile))) {
-                new ExifRewriter().updateExifMetadataLossless(file, os, outputSet);
-            }
-
-            if (!file.delete() || !tempFile.renameTo(file)) {
-                log.error("Could not replace original file with updated EXIF");
+            try {
+                try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+                    new ExifRewriter().updateExifMetadataLossless(file, os, outputSet);
+                }
+                FileMover.rename(tempFile.toPath(), file.toPath());
+            } finally {
+                Files.deleteIfExists(tempFile.toPath());
             }
         } catch (IOException e) {
             log.error(e, "can't set JPG datetime");
@@ -217,8 +203,31 @@ public abstract class Transfer {
         return Path.of(parent, "%s-%d.%s".formatted(baseName, i, extension)).toString();
     }
 
-    public FileRecord getTransferRecord() {
-        return transferRecord;
+    /**
+     * The file store holding the destination, resolved from the nearest existing ancestor because the destination may
+     * not be created yet. Transfers sharing a file system share its parallelism limit.
+     */
+    public String getFileSystem() {
+        if (fileSystem == null) {
+            Path path = Path.of(destination).toAbsolutePath();
+            while (path != null && !Files.exists(path)) {
+                path = path.getParent();
+            }
+            try {
+                fileSystem = path == null ? destination : Files.getFileStore(path).toString();
+            } catch (IOException e) {
+                log.warn("Can't resolve file store of {}: {}", destination, e.getMessage());
+                fileSystem = destination;
+            }
+        }
+        return fileSystem;
+    }
+
+    /**
+     * The directory the file is moved into, transfers into the same directory must not run at the same time.
+     */
+    public String getTransferDirectory(FileRecord fileRecord) {
+        return FileUtil.getParent(getTransferPath(fileRecord), 1);
     }
 
     protected abstract String getTransferPath(FileRecord fileRecord);
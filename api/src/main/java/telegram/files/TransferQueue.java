@@ -0,0 +1,95 @@
+package telegram.files;
+
+import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * FIFO queue of files waiting for transfer, indexed by unique id so adding a file that is already waiting and
+ * removing the files of one transfer rule do not scan the queue.
+ */
+public class TransferQueue {
+
+    // uniqueId -> file, in queue order
+    private final SequencedMap<String, WaitingTransferFile> files = new LinkedHashMap<>();
+
+    // transfer key -> waiting unique ids
+    private final Map<String, Set<String>> transferFiles = new HashMap<>();
+
+    /**
+     * @return false if the file is already waiting
+     */
+    public synchronized boolean add(WaitingTransferFile file) {
+        if (files.containsKey(file.uniqueId())) {
+            return false;
+        }
+        files.put(file.uniqueId(), file);
+        index(file);
+        return true;
+    }
+
+    /**
+     * Put the file at the head of the queue, moving it there if it is already waiting.
+     */
+    public synchronized void addFirst(WaitingTransferFile file) {
+        files.putFirst(file.uniqueId(), file);
+        index(file);
+    }
+
+    /**
+     * Remove and return the files accepted by the filter, visiting them in queue order until {@code stop} is true.
+     */
+    public synchronized List<WaitingTransferFile> poll(Predicate<WaitingTransferFile> filter, BooleanSupplier stop) {
+        List<WaitingTransferFile> polled = new ArrayList<>();
+        Iterator<WaitingTransferFile> iterator = files.values().iterator();
+        while (iterator.hasNext() && !stop.getAsBoolean()) {
+            WaitingTransferFile file = iterator.next();
+            if (filter.test(file)) {
+                iterator.remove();
+                unindex(file);
+                polled.add(file);
+            }
+        }
+        return polled;
+    }
+
+    /**
+     * @return the number of removed files
+     */
+    public synchronized int removeTransfer(String transferKey) {
+        Set<String> uniqueIds = transferFiles.remove(transferKey);
+        if (uniqueIds == null) {
+            return 0;
+        }
+        uniqueIds.forEach(files::remove);
+        return uniqueIds.size();
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    private void index(WaitingTransferFile file) {
+        transferFiles.computeIfAbsent(file.transferKey(), k -> new HashSet<>()).add(file.uniqueId());
+    }
+
+    private void unindex(WaitingTransferFile file) {
+        Set<String> uniqueIds = transferFiles.get(file.transferKey());
+        if (uniqueIds != null && uniqueIds.remove(file.uniqueId()) && uniqueIds.isEmpty()) {
+            transferFiles.remove(file.transferKey());
+        }
+    }
+
+    public record WaitingTransferFile(long telegramId, long chatId, String uniqueId) {
+        /**
+         * Same as {@link telegram.files.repository.SettingAutoRecords.Automation#uniqueKey()}.
+         */
+        public String transferKey() {
+            return "%d:%d".formatted(telegramId, chatId);
+        }
+    }
+}
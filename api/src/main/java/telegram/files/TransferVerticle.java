@@ -7,55 +7,84 @@ import cn.hutool.log.LogFactory;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.json.JsonObject;
-import org.jooq.lambda.tuple.Tuple3;
+import telegram.files.TransferQueue.WaitingTransferFile;
 import telegram.files.repository.FileRecord;
 import telegram.files.repository.SettingAutoRecords;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Moves completed files to the destinations of their transfer rules.
+ * <p>
+ * The queue is drained whenever a file is added or a transfer finishes. Each destination file system runs at most
+ * {@link Config#TRANSFER_PARALLELISM} transfers at the same time on the transfer workers, while transfers into the
+ * same directory run one after another, so that duplication checks and renames can not collide. A file whose
+ * directory is busy is parked and goes back to the head of the queue when the directory frees up.
+ */
 public class TransferVerticle extends AbstractVerticle {
     private static final Log log = LogFactory.get();
 
     private static final int HISTORY_SCAN_INTERVAL = 2 * 60 * 1000;
 
-    private static final int TRANSFER_INTERVAL = 3 * 1000;
+    private static final int HISTORY_PAGE_SIZE = 100;
+
+    // history files are only added while the queue is shorter than this
+    private static final int HISTORY_QUEUE_LOW_WATERMARK = 200;
 
     private final SettingAutoRecords autoRecords;
 
     private final Map<String, Transfer> transfers = new HashMap<>();
 
-    private final BlockingQueue<WaitingTransferFile> waitingTransferFiles = new LinkedBlockingQueue<>();
+    private final TransferQueue waitingTransferFiles = new TransferQueue();
 
-    private volatile boolean isStopped = false;
+    // file system -> running transfers
+    private final Map<String, Integer> runningTransfers = new HashMap<>();
+
+    // directory -> files waiting for the directory
+    private final Map<String, Deque<WaitingTransferFile>> busyDirectories = new HashMap<>();
+
+    private WorkerExecutor workerExecutor;
+
+    private int inFlight;
+
+    private Promise<Void> stopped;
 
-    private volatile Transfer beingTransferred;
+    // automation unique key -> last queued history file
+    private final Map<String, HistoryCursor> historyCursors = new ConcurrentHashMap<>();
+
+    private volatile boolean isAddingHistoryFiles;
+
+    private volatile boolean isStopped = false;
 
     public TransferVerticle() {
         this.autoRecords = AutomationsHolder.INSTANCE.autoRecords();
         AutomationsHolder.INSTANCE.registerOnRemoveListener(removedItems -> removedItems.forEach(item -> {
-            waitingTransferFiles.removeIf(waitingTransferFile -> waitingTransferFile.uniqueId().equals(item.uniqueKey()));
+            int removed = waitingTransferFiles.removeTransfer(item.uniqueKey());
+            if (removed > 0) {
+                log.debug("Remove %d files from transfer queue: %s".formatted(removed, item.uniqueKey()));
+            }
             transfers.remove(item.uniqueKey());
+            historyCursors.remove(item.uniqueKey());
         }));
     }
 
     @Override
     public void start(Promise<Void> startPromise) {
+        // the worker pool only bounds the threads, the per file system limit is applied when draining the queue
+        workerExecutor = vertx.createSharedWorkerExecutor("transfer-worker", Math.max(1, Config.TRANSFER_PARALLELISM) * 4);
+        Metrics.INSTANCE.gauge("transfer_queue_depth", "Files waiting for a transfer.", waitingTransferFiles::size);
         initEventConsumer().onSuccess(v -> {
             vertx.setPeriodic(0, HISTORY_SCAN_INTERVAL, id -> addHistoryFiles());
-            vertx.setPeriodic(0, TRANSFER_INTERVAL, id -> startTransfer());
 
             log.info("""
                     Transfer verticle started!
                     |History scan interval: %s ms
-                    |Transfer interval: %s ms
+                    |Parallelism per file system: %s
                     |Auto chats: %s
-                    """.formatted(HISTORY_SCAN_INTERVAL, TRANSFER_INTERVAL, autoRecords.getTransferEnabledItems().size()));
+                    """.formatted(HISTORY_SCAN_INTERVAL, Config.TRANSFER_PARALLELISM, autoRecords.getTransferEnabledItems().size()));
 
             startPromise.complete();
         }).onFailure(startPromise::fail);
@@ -63,103 +92,105 @@ public class TransferVerticle extends AbstractVerticle {
 
     @Override
     public void stop(Promise<Void> stopPromise) {
-        isStopped = true;
-        if (beingTransferred != null) {
-            log.info("Wait for transfer to complete, file: %s".formatted(beingTransferred.getTransferRecord().uniqueId()));
-            while (beingTransferred != null) {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    log.error("Stop transfer verticle error: %s".formatted(e.getMessage()));
-                    stopPromise.fail(e);
-                }
+        Future<Void> drained;
+        synchronized (this) {
+            isStopped = true;
+            if (inFlight > 0) {
+                log.info("Wait for %d transfers to complete".formatted(inFlight));
+                stopped = Promise.promise();
+                drained = stopped.future();
+            } else {
+                drained = Future.succeededFuture();
             }
         }
-        log.info("Transfer verticle stopped");
-        stopPromise.complete();
+        drained.compose(r -> workerExecutor == null ? Future.succeededFuture() : workerExecutor.close())
+                .onComplete(r -> {
+                    log.info("Transfer verticle stopped");
+                    stopPromise.complete();
+                });
     }
 
     private Future<Void> initEventConsumer() {
-        vertx.eventBus().consumer(EventEnum.TELEGRAM_EVENT.address(), message -> {
-            JsonObject jsonObject = (JsonObject) message.body();
-            EventPayload payload = jsonObject.getJsonObject("payload").mapTo(EventPayload.class);
-            if (payload == null || payload.type() != EventPayload.TYPE_FILE_STATUS) {
+        vertx.eventBus().<FileStatusEvent>consumer(EventEnum.FILE_DOWNLOAD_COMPLETED.address(), message -> {
+            FileRecord fileRecord = Future.await(DataVerticle.fileRepository.getByUniqueId(message.body().uniqueId()));
+            if (fileRecord == null) {
                 return;
             }
 
-            if (payload.data() != null && payload.data() instanceof Map<?, ?> data && StrUtil.isNotBlank((String) data.get("downloadStatus"))) {
-                FileRecord.DownloadStatus downloadStatus = FileRecord.DownloadStatus.valueOf((String) data.get("downloadStatus"));
-                if (downloadStatus != FileRecord.DownloadStatus.completed) {
-                    return;
-                }
-                FileRecord fileRecord = Future.await(DataVerticle.fileRepository.getByUniqueId((String) data.get("uniqueId")));
-
-                SettingAutoRecords.Automation automation = null;
-                if (fileRecord.threadChatId() != 0 && fileRecord.messageThreadId() != 0 && fileRecord.threadChatId() == fileRecord.chatId()) {
-                    // thread message file,try to get the main message
-                    FileRecord mainFileRecord = Future.await(DataVerticle.fileRepository.getMainFileByThread(
-                            fileRecord.telegramId(),
-                            fileRecord.threadChatId(),
-                            fileRecord.messageThreadId()));
-                    if (mainFileRecord != null) {
-                        automation = autoRecords.getItem(mainFileRecord.telegramId(), mainFileRecord.chatId());
-                    }
-                } else {
-                    automation = autoRecords.getItem(fileRecord.telegramId(), fileRecord.chatId());
+            SettingAutoRecords.Automation automation = null;
+            if (fileRecord.threadChatId() != 0 && fileRecord.messageThreadId() != 0 && fileRecord.threadChatId() == fileRecord.chatId()) {
+                // thread message file,try to get the main message
+                FileRecord mainFileRecord = Future.await(DataVerticle.fileRepository.getMainFileByThread(
+                        fileRecord.telegramId(),
+                        fileRecord.threadChatId(),
+                        fileRecord.messageThreadId()));
+                if (mainFileRecord != null) {
+                    automation = autoRecords.getItem(mainFileRecord.telegramId(), mainFileRecord.chatId());
                 }
+            } else {
+                automation = autoRecords.getItem(fileRecord.telegramId(), fileRecord.chatId());
+            }
 
-                if (automation == null || !automation.transfer.enabled || getTransfer(automation) == null) {
-                    return;
-                }
+            if (automation == null || !automation.transfer.enabled || getTransfer(automation) == null) {
+                return;
+            }
 
-                if (addWaitingTransferFile(automation.telegramId, automation.chatId, fileRecord.uniqueId())) {
-                    log.debug("Add file to transfer queue: %s".formatted(fileRecord.uniqueId()));
-                }
+            if (addWaitingTransferFile(automation.telegramId, automation.chatId, fileRecord.uniqueId())) {
+                log.debug("Add file to transfer queue: %s".formatted(fileRecord.uniqueId()));
             }
         });
 
         return Future.succeededFuture();
     }
 
+    /**
+     * Feed one page of history files into the queue, as long as the queue is below the low watermark. Each automation
+     * is walked with its own cursor, so a page never returns files that were already queued.
+     */
     private void addHistoryFiles() {
-        if (CollUtil.isEmpty(autoRecords.automations)) {
+        if (isStopped || CollUtil.isEmpty(autoRecords.automations)) {
             return;
         }
-        log.trace("Start scan history files for transfer");
-        for (SettingAutoRecords.Automation automation : autoRecords.automations) {
-            if (!automation.transfer.enabled
-                || !automation.transfer.rule.transferHistory
-                || automation.isComplete(SettingAutoRecords.HISTORY_TRANSFER_STATE)) {
-                continue;
-            }
-            Transfer transfer = getTransfer(automation);
-            if (transfer == null) {
-                continue;
-            }
-            Tuple3<List<FileRecord>, Long, Long> filesTuple = Future.await(DataVerticle.fileRepository.getFiles(automation.chatId,
-                    Map.of("downloadStatus", FileRecord.DownloadStatus.completed.name(),
-                            "transferStatus", FileRecord.TransferStatus.idle.name()
-                    )
-            ));
-            List<FileRecord> files = filesTuple.v1;
-            if (CollUtil.isEmpty(files)) {
-                log.debug("No history files found for transfer: %s".formatted(automation.uniqueKey()));
-                automation.complete(SettingAutoRecords.HISTORY_TRANSFER_STATE);
-                continue;
-            }
-
-            int count = 0;
-            for (FileRecord fileRecord : files) {
-                if (addWaitingTransferFile(fileRecord)) {
-                    count++;
-                }
-            }
-
-            if (count > 0) {
-                log.info("Add history files to transfer queue: %s".formatted(count));
-                break;
+        synchronized (this) {
+            if (isAddingHistoryFiles || waitingTransferFiles.size() >= HISTORY_QUEUE_LOW_WATERMARK) {
+                return;
             }
+            isAddingHistoryFiles = true;
         }
+        SettingAutoRecords.Automation automation = autoRecords.automations.stream()
+                .filter(item -> item.transfer.enabled
+                                && item.transfer.rule.transferHistory
+                                && !item.isComplete(SettingAutoRecords.HISTORY_TRANSFER_STATE)
+                                && getTransfer(item) != null)
+                .findFirst()
+                .orElse(null);
+        if (automation == null) {
+            isAddingHistoryFiles = false;
+            return;
+        }
+        HistoryCursor cursor = historyCursors.getOrDefault(automation.uniqueKey(), new HistoryCursor(0, null));
+        DataVerticle.fileRepository.getTransferableFiles(automation.telegramId, automation.chatId,
+                        cursor.messageId(), cursor.uniqueId(), HISTORY_PAGE_SIZE)
+                .onSuccess(files -> {
+                    if (files.isEmpty()) {
+                        log.debug("No more history files for transfer: %s".formatted(automation.uniqueKey()));
+                        automation.complete(SettingAutoRecords.HISTORY_TRANSFER_STATE);
+                        historyCursors.remove(automation.uniqueKey());
+                        return;
+                    }
+                    FileRecord last = files.getLast();
+                    historyCursors.put(automation.uniqueKey(), new HistoryCursor(last.messageId(), last.uniqueId()));
+                    long count = files.stream().filter(this::addWaitingTransferFile).count();
+                    log.debug("Add history files to transfer queue: %s count: %d".formatted(automation.uniqueKey(), count));
+                })
+                .onFailure(e -> log.error(e, "Add history files error: %s".formatted(automation.uniqueKey())))
+                .onComplete(r -> {
+                    isAddingHistoryFiles = false;
+                    // keep feeding until the queue is full or the history is done, the drain takes over from there
+                    if (r.succeeded()) {
+                        addHistoryFiles();
+                    }
+                });
     }
 
     private boolean addWaitingTransferFile(FileRecord fileRecord) {
@@ -168,8 +199,8 @@ public class TransferVerticle extends AbstractVerticle {
 
     private boolean addWaitingTransferFile(long telegramId, long chatId, String uniqueId) {
         WaitingTransferFile waitingTransferFile = new WaitingTransferFile(telegramId, chatId, uniqueId);
-        if (!waitingTransferFiles.contains(waitingTransferFile)) {
-            waitingTransferFiles.add(waitingTransferFile);
+        if (waitingTransferFiles.add(waitingTransferFile)) {
+            drain();
             return true;
         }
         return false;
@@ -200,37 +231,90 @@ public class TransferVerticle extends AbstractVerticle {
         });
     }
 
-    public void startTransfer() {
-        if (beingTransferred != null) {
+    /**
+     * Start as many waiting files as the file systems allow, the rest stay in the queue in order.
+     */
+    private synchronized void drain() {
+        if (isStopped || waitingTransferFiles.isEmpty()) {
             return;
         }
-        try {
-            WaitingTransferFile waitingTransferFile = waitingTransferFiles.poll(1, TimeUnit.SECONDS);
-            if (waitingTransferFile == null) {
-                log.trace("No file to transfer");
-                return;
-            }
-            Transfer transfer = transfers.get("%d:%d".formatted(waitingTransferFile.telegramId(), waitingTransferFile.chatId()));
+        Set<String> fileSystems = new HashSet<>();
+        transfers.values().forEach(transfer -> fileSystems.add(transfer.getFileSystem()));
+        Set<String> fullFileSystems = new HashSet<>();
+        Map<WaitingTransferFile, Transfer> starting = new LinkedHashMap<>();
+        waitingTransferFiles.poll(waitingTransferFile -> {
+            Transfer transfer = transfers.get(waitingTransferFile.transferKey());
             if (transfer == null) {
-                return;
+                // the automation is gone, drop the file
+                return true;
             }
-            if (beingTransferred == transfer) {
-                waitingTransferFiles.add(waitingTransferFile);
-                log.debug("Transfer is busy: %s".formatted(waitingTransferFile.uniqueId));
-                return;
+            String fileSystem = transfer.getFileSystem();
+            if (runningTransfers.getOrDefault(fileSystem, 0) >= Config.TRANSFER_PARALLELISM) {
+                fullFileSystems.add(fileSystem);
+                return false;
             }
-            FileRecord fileRecord = Future.await(DataVerticle.fileRepository.getByUniqueId(waitingTransferFile.uniqueId));
-            if (fileRecord == null) {
-                log.error("File not found: %s".formatted(waitingTransferFile.uniqueId));
+            runningTransfers.merge(fileSystem, 1, Integer::sum);
+            starting.put(waitingTransferFile, transfer);
+            return true;
+        }, () -> fullFileSystems.size() >= fileSystems.size());
+
+        starting.forEach((waitingTransferFile, transfer) -> {
+            String fileSystem = transfer.getFileSystem();
+            inFlight++;
+            workerExecutor.executeBlocking(() -> {
+                        startTransfer(waitingTransferFile, transfer);
+                        return null;
+                    }, false)
+                    .onFailure(e -> log.error(e, "Transfer error: %s".formatted(waitingTransferFile.uniqueId())))
+                    .onComplete(r -> {
+                        synchronized (this) {
+                            runningTransfers.merge(fileSystem, -1, Integer::sum);
+                            inFlight--;
+                            if (inFlight == 0 && stopped != null) {
+                                stopped.tryComplete();
+                            }
+                        }
+                        drain();
+                        addHistoryFiles();
+                    });
+        });
+    }
+
+    /**
+     * Runs on a transfer worker.
+     */
+    private void startTransfer(WaitingTransferFile waitingTransferFile, Transfer transfer) {
+        // Future.await only suspends virtual threads, the transfer workers block
+        FileRecord fileRecord = MessyUtils.await(DataVerticle.fileRepository.getByUniqueId(waitingTransferFile.uniqueId()));
+        if (fileRecord == null) {
+            log.error("File not found: %s".formatted(waitingTransferFile.uniqueId()));
+            return;
+        }
+        if (StrUtil.isBlank(fileRecord.localPath())) {
+            // nothing to move, the transfer marks it as failed
+            startTransfer(fileRecord, transfer);
+            return;
+        }
+        String directory = transfer.getTransferDirectory(fileRecord);
+        synchronized (this) {
+            Deque<WaitingTransferFile> waiting = busyDirectories.get(directory);
+            if (waiting != null) {
+                log.debug("Transfer directory is busy: %s, file: %s".formatted(directory, waitingTransferFile.uniqueId()));
+                waiting.add(waitingTransferFile);
                 return;
             }
-
+            busyDirectories.put(directory, new ArrayDeque<>());
+        }
+        try {
             startTransfer(fileRecord, transfer);
-        } catch (Exception e) {
-            if (e instanceof InterruptedException) {
-                log.debug("Transfer loop interrupted");
-            } else {
-                log.error(e, "Transfer error");
+        } finally {
+            synchronized (this) {
+                Deque<WaitingTransferFile> waiting = busyDirectories.remove(directory);
+                // parked files keep their place ahead of the queue, in the order they were parked
+                Iterator<WaitingTransferFile> parked = waiting.descendingIterator();
+                while (parked.hasNext()) {
+                    waitingTransferFiles.addFirst(parked.next());
+                }
             }
         }
     }
@@ -245,28 +329,30 @@ public class TransferVerticle extends AbstractVerticle {
             return;
         }
 
-        beingTransferred = transfer;
         transfer.transfer(fileRecord);
-        beingTransferred = null;
     }
 
     private void updateTransferStatus(FileRecord fileRecord, FileRecord.TransferStatus transferStatus, String localPath) {
-        Future.await(DataVerticle.fileRepository.updateTransferStatus(fileRecord.uniqueId(), transferStatus, localPath)
+        MessyUtils.await(DataVerticle.fileRepository.updateTransferStatus(fileRecord.uniqueId(), transferStatus, localPath)
                 .onSuccess(fileUpdated -> {
                     if (fileUpdated != null && !fileUpdated.isEmpty()) {
+                        FileStatusEvent.transfer(fileRecord.telegramId(),
+                                fileRecord.id(),
+                                fileRecord.uniqueId(),
+                                FileRecord.TransferStatus.valueOf(fileUpdated.getString("transferStatus")),
+                                fileUpdated.getString("localPath")
+                        ).publish(vertx.eventBus());
                         EventPayload payload = EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
                                 .put("fileId", fileRecord.id())
                                 .put("uniqueId", fileRecord.uniqueId())
                                 .put("transferStatus", fileUpdated.getString("transferStatus"))
                                 .put("localPath", fileUpdated.getString("localPath"))
                         );
-                        vertx.eventBus().publish(EventEnum.TELEGRAM_EVENT.address(),
-                                JsonObject.of("telegramId", fileRecord.telegramId(), "payload", JsonObject.mapFrom(payload))
-                        );
+                        vertx.eventBus().publish(EventEnum.TELEGRAM_EVENT.address(), new TelegramEvent(fileRecord.telegramId(), payload));
                     }
                 }));
     }
 
-    private record WaitingTransferFile(long telegramId, long chatId, String uniqueId) {
+    private record HistoryCursor(long messageId, String uniqueId) {
     }
 }
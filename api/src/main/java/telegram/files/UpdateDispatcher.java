@@ -0,0 +1,154 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.json.JsonObject;
+import org.drinkless.tdlib.Client;
+import org.drinkless.tdlib.TdApi;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves the updates of one account off the TDLib receiver thread, which is shared by all accounts and also completes
+ * every query. Updates are queued and handled in order on a virtual thread, one at a time, so a slow handler only
+ * delays the later updates of its own account.
+ * <p>
+ * TDLib sends the updates caused by a query before its result, but the result now completes while those updates may
+ * still be queued. Code that must see them handled first queues itself behind them with {@link #runAfterQueued}.
+ */
+public class UpdateDispatcher implements Client.ResultHandler {
+
+    private static final Log log = LogFactory.get();
+
+    private static final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("tdlib-update-", 0).factory());
+
+    private static final long SLOW_HANDLER_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Client.ResultHandler handler;
+
+    private final Client.ExceptionHandler exceptionHandler;
+
+    private final Queue<QueuedUpdate> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final AtomicInteger depth = new AtomicInteger();
+
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    private final AtomicLong handled = new AtomicLong();
+
+    private final AtomicLong handleNanos = new AtomicLong();
+
+    private final AtomicLong maxHandleNanos = new AtomicLong();
+
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    // either an update or a task queued behind the updates
+    private record QueuedUpdate(TdApi.Object update, Runnable task, long queuedAt) {
+    }
+
+    /**
+     * @param exceptionHandler handler for exceptions thrown from the handler, ignored if null
+     */
+    public UpdateDispatcher(Client.ResultHandler handler, Client.ExceptionHandler exceptionHandler) {
+        this.handler = handler;
+        this.exceptionHandler = exceptionHandler;
+    }
+
+    @Override
+    public void onResult(TdApi.Object update) {
+        queue.add(new QueuedUpdate(update, null, System.nanoTime()));
+        maxDepth.accumulateAndGet(depth.incrementAndGet(), Math::max);
+        schedule();
+    }
+
+    /**
+     * Run the task on the dispatcher thread once the updates queued so far have been handled.
+     */
+    public void runAfterQueued(Runnable task) {
+        queue.add(new QueuedUpdate(null, task, System.nanoTime()));
+        schedule();
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        QueuedUpdate queued;
+        while ((queued = queue.poll()) != null) {
+            if (queued.task() != null) {
+                try {
+                    queued.task().run();
+                } catch (Throwable cause) {
+                    onException(cause);
+                }
+                continue;
+            }
+            depth.decrementAndGet();
+            long start = System.nanoTime();
+            record(waitNanos, maxWaitNanos, start - queued.queuedAt());
+            try {
+                handler.onResult(queued.update());
+            } catch (Throwable cause) {
+                onException(cause);
+            }
+            long elapsed = System.nanoTime() - start;
+            record(handleNanos, maxHandleNanos, elapsed);
+            handled.incrementAndGet();
+            if (elapsed > SLOW_HANDLER_NANOS) {
+                log.warn("Slow telegram update handler: %s took %d ms"
+                        .formatted(queued.update().getClass().getSimpleName(), TimeUnit.NANOSECONDS.toMillis(elapsed)));
+            }
+        }
+        draining.set(false);
+        // an update added after the last poll but before the flag was cleared would otherwise wait for the next one
+        if (!queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void onException(Throwable cause) {
+        if (exceptionHandler != null) {
+            try {
+                exceptionHandler.onException(cause);
+            } catch (Throwable ignored) {
+            }
+        }
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long nanos) {
+        total.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public int getDepth() {
+        return depth.get();
+    }
+
+    public JsonObject getStatistics() {
+        long handled = this.handled.get();
+        return JsonObject.of(
+                "depth", depth.get(),
+                "maxDepth", maxDepth.get(),
+                "handled", handled,
+                "avgHandleMicros", handled == 0 ? 0 : handleNanos.get() / handled / 1000,
+                "maxHandleMicros", maxHandleNanos.get() / 1000,
+                "avgWaitMicros", handled == 0 ? 0 : waitNanos.get() / handled / 1000,
+                "maxWaitMicros", maxWaitNanos.get() / 1000
+        );
+    }
+}
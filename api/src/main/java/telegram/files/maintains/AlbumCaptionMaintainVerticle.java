@@ -102,7 +102,7 @@ public class AlbumCaptionMaintainVerticle extends MaintainVerticle {
                 return false;
             }
             TelegramVerticle telegramVerticle = telegramVerticleOptional.get();
-            TdApi.Message message = Future.await(telegramVerticle.client.execute(new TdApi.GetMessage(fileRecord.chatId(), fileRecord.messageId())));
+            TdApi.Message message = Future.await(telegramVerticle.client.executeInBackground(new TdApi.GetMessage(fileRecord.chatId(), fileRecord.messageId())));
             if (message != null && message.mediaAlbumId != 0) {
                 Future.await(SqlTemplate.forUpdate(DataVerticle.pool, """
                                 UPDATE file_record
@@ -113,6 +113,7 @@ public class AlbumCaptionMaintainVerticle extends MaintainVerticle {
                                 MapUtil.entry("uniqueId", fileRecord.uniqueId()),
                                 MapUtil.entry("mediaAlbumId", message.mediaAlbumId)
                         ))
+                        .onSuccess(r -> DataVerticle.fileRecordCache.invalidate(fileRecord.uniqueId()))
                         .onFailure(err -> log.error("🔨 Failed to update media album id: %s".formatted(err.getMessage())))
                         .map(true));
                 return true;
@@ -3,10 +3,8 @@ package telegram.files.maintains;
 
 import cn.hutool.core.collection.IterUtil;
 import cn.hutool.core.map.MapUtil;
-import cn.hutool.core.util.StrUtil;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
-import io.vertx.core.json.JsonObject;
 import io.vertx.sqlclient.templates.SqlTemplate;
 import org.drinkless.tdlib.TdApi;
 import telegram.files.*;
@@ -103,23 +101,11 @@ public class ThumbnailMaintainVerticle extends MaintainVerticle {
     }
 
     private void initEventConsumer() {
-        vertx.eventBus().consumer(EventEnum.TELEGRAM_EVENT.address(), message -> {
-            JsonObject jsonObject = (JsonObject) message.body();
-            EventPayload payload = jsonObject.getJsonObject("payload").mapTo(EventPayload.class);
-            if (payload == null || payload.type() != EventPayload.TYPE_FILE_STATUS) {
-                return;
-            }
-
-            if (payload.data() != null && payload.data() instanceof Map<?, ?> data && StrUtil.isNotBlank((String) data.get("downloadStatus"))) {
-                FileRecord.DownloadStatus downloadStatus = FileRecord.DownloadStatus.valueOf((String) data.get("downloadStatus"));
-                if (downloadStatus != FileRecord.DownloadStatus.completed) {
-                    return;
-                }
-                String thumbnailUniqueId = (String) data.get("uniqueId");
-                if (downloadingThumbnailUniqueIds.containsKey(thumbnailUniqueId)) {
-                    updateThumbnailUniqueId(downloadingThumbnailUniqueIds.get(thumbnailUniqueId), thumbnailUniqueId);
-                    downloadingThumbnailUniqueIds.remove(thumbnailUniqueId);
-                }
+        vertx.eventBus().<FileStatusEvent>consumer(EventEnum.FILE_DOWNLOAD_COMPLETED.address(), message -> {
+            String thumbnailUniqueId = message.body().uniqueId();
+            if (downloadingThumbnailUniqueIds.containsKey(thumbnailUniqueId)) {
+                updateThumbnailUniqueId(downloadingThumbnailUniqueIds.get(thumbnailUniqueId), thumbnailUniqueId);
+                downloadingThumbnailUniqueIds.remove(thumbnailUniqueId);
             }
         });
     }
@@ -132,7 +118,7 @@ public class ThumbnailMaintainVerticle extends MaintainVerticle {
                 return false;
             }
             TelegramVerticle telegramVerticle = telegramVerticleOptional.get();
-            TdApi.Message message = Future.await(telegramVerticle.client.execute(new TdApi.GetMessage(fileRecord.chatId(), fileRecord.messageId())));
+            TdApi.Message message = Future.await(telegramVerticle.client.executeInBackground(new TdApi.GetMessage(fileRecord.chatId(), fileRecord.messageId())));
             Optional<FileRecord> thumbnailRecordOptional = TdApiHelp.getFileHandler(message)
                     .map(fileHandler -> fileHandler.convertThumbnailRecord(telegramVerticle.telegramRecord.id()));
             if (thumbnailRecordOptional.isEmpty()) {
@@ -168,6 +154,7 @@ public class ThumbnailMaintainVerticle extends MaintainVerticle {
                         MapUtil.entry("uniqueId", uniqueId),
                         MapUtil.entry("thumbnailUniqueId", thumbnailUniqueId)
                 ))
+                .onSuccess(r -> DataVerticle.fileRecordCache.invalidate(uniqueId))
                 .onFailure(err -> log.error(err, "🔨 Failed to update thumbnail. file unique id: %s".formatted(uniqueId)));
     }
 }
@@ -5,7 +5,10 @@ import cn.hutool.log.Log;
 import cn.hutool.log.LogFactory;
 import io.vertx.core.Future;
 import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.Tuple;
+import telegram.files.Config;
 
+import java.util.List;
 import java.util.TreeMap;
 import java.util.stream.Stream;
 
@@ -19,6 +22,22 @@ public interface Definition {
         return new TreeMap<>();
     }
 
+    /**
+     * An index of the table, created on every startup if it doesn't exist yet.
+     */
+    record Index(String name, String table, String columns) {
+
+        public String sql() {
+            // MySQL has no CREATE INDEX IF NOT EXISTS, its indexes are looked up first
+            return "%s %s ON %s (%s);".formatted(Config.isMysql() ? "CREATE INDEX" : "CREATE INDEX IF NOT EXISTS",
+                    name, table, columns);
+        }
+    }
+
+    default List<Index> getIndexes() {
+        return List.of();
+    }
+
     default Future<Void> createTable(SqlClient sqlClient) {
         return sqlClient
                 .query(getScheme())
@@ -27,21 +46,54 @@ public interface Definition {
                 .mapEmpty();
     }
 
+    /**
+     * Create the missing indexes, after the migrations added the columns they cover.
+     */
+    default Future<Void> createIndexes(SqlClient sqlClient) {
+        return getIndexes().stream()
+                .reduce(Future.<Void>succeededFuture(),
+                        (future, index) -> future.compose(v -> createIndex(sqlClient, index)),
+                        (f1, f2) -> f1.compose(v -> f2));
+    }
+
+    /**
+     * Apply the migrations in version order, one statement after another,
+     * later versions may depend on columns added by earlier ones.
+     */
     default Future<Void> migrate(SqlClient sqlClient, Version lastVersion, Version currentVersion) {
         TreeMap<Version, String[]> migrations = getMigrations();
         if (migrations.isEmpty()) {
             return Future.succeededFuture();
         }
-        return Future.all(migrations.subMap(lastVersion, false, currentVersion, true).values()
-                        .stream()
-                        .flatMap(arr -> Stream.of(arr)
-                                .map(sql -> sqlClient.query(sql)
-                                        .execute()
-                                        .onFailure(e -> log.error("Failed to apply migration: %s".formatted(sql), e)))
-                        )
-                        .toList()
-                )
-                .onFailure(err -> log.error("Failed to migrate table: %s".formatted(err.getMessage())))
+        return migrations.subMap(lastVersion, false, currentVersion, true).values()
+                .stream()
+                .flatMap(Stream::of)
+                .reduce(Future.<Void>succeededFuture(),
+                        (future, sql) -> future.compose(v -> execute(sqlClient, sql)),
+                        (f1, f2) -> f1.compose(v -> f2))
+                .onFailure(err -> log.error("Failed to migrate table: %s".formatted(err.getMessage())));
+    }
+
+    private Future<Void> execute(SqlClient sqlClient, String sql) {
+        return sqlClient.query(sql)
+                .execute()
+                .onFailure(e -> log.error("Failed to apply migration: %s".formatted(sql), e))
                 .mapEmpty();
     }
+
+    private Future<Void> createIndex(SqlClient sqlClient, Index index) {
+        Future<Boolean> exists = !Config.isMysql() ? Future.succeededFuture(false) : sqlClient.preparedQuery("""
+                        SELECT COUNT(*) FROM information_schema.statistics
+                        WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ?
+                        """)
+                .execute(Tuple.of(index.table(), index.name()))
+                .map(rows -> rows.iterator().next().getLong(0) > 0);
+        return exists
+                .compose(e -> e ? Future.<Void>succeededFuture() : sqlClient.query(index.sql()).execute().<Void>mapEmpty())
+                // Indexes only speed up queries, never fail the startup because of them.
+                .recover(e -> {
+                    log.warn("Failed to create index: %s, %s".formatted(index.sql(), e.getMessage()));
+                    return Future.succeededFuture();
+                });
+    }
 }
@@ -0,0 +1,47 @@
+package telegram.files.repository;
+
+import cn.hutool.core.map.MapUtil;
+import io.vertx.sqlclient.templates.TupleMapper;
+
+import java.util.List;
+
+/**
+ * Content fingerprint of a downloaded file, joined with {@code file_record} by unique id to find files with the same
+ * content before downloading them again.
+ */
+public record FileContentRecord(String uniqueId,
+                                long size,
+                                String headHash // hash of the first bytes of the file
+) {
+
+    public static final String SCHEME = """
+            CREATE TABLE IF NOT EXISTS file_content
+            (
+                unique_id VARCHAR(255) PRIMARY KEY,
+                size      BIGINT,
+                head_hash VARCHAR(64)
+            )
+            """;
+
+    public static final List<Definition.Index> INDEXES = List.of(
+            new Definition.Index("idx_file_content_size", "file_content", "size")
+    );
+
+    public static class FileContentRecordDefinition implements Definition {
+        @Override
+        public String getScheme() {
+            return SCHEME;
+        }
+
+        @Override
+        public List<Index> getIndexes() {
+            return INDEXES;
+        }
+    }
+
+    public static TupleMapper<FileContentRecord> PARAM_MAPPER = TupleMapper.mapper(r ->
+            MapUtil.ofEntries(MapUtil.entry("unique_id", r.uniqueId()),
+                    MapUtil.entry("size", r.size()),
+                    MapUtil.entry("head_hash", r.headHash())
+            ));
+}
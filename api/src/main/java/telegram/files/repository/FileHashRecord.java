@@ -0,0 +1,62 @@
+package telegram.files.repository;
+
+import cn.hutool.core.map.MapUtil;
+import cn.hutool.core.util.HexUtil;
+import io.vertx.sqlclient.templates.RowMapper;
+import io.vertx.sqlclient.templates.TupleMapper;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hash of a file on disk, valid as long as the file keeps the same size and modification time.
+ */
+public record FileHashRecord(String path,
+                             long size,
+                             long modifiedAt, // file modification time in milliseconds
+                             String hash
+) {
+
+    // keyed by a hash of the path, a path can be longer than a MySQL key
+    public static final String SCHEME = """
+            CREATE TABLE IF NOT EXISTS file_hash
+            (
+                path_hash   VARCHAR(64) PRIMARY KEY,
+                path        VARCHAR(1024),
+                size        BIGINT,
+                modified_at BIGINT,
+                hash        VARCHAR(64)
+            )
+            """;
+
+    public static class FileHashRecordDefinition implements Definition {
+        @Override
+        public String getScheme() {
+            return SCHEME;
+        }
+    }
+
+    public static String pathHash(String path) {
+        try {
+            return HexUtil.encodeHexStr(MessageDigest.getInstance("SHA-256").digest(path.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static RowMapper<FileHashRecord> ROW_MAPPER = row ->
+            new FileHashRecord(row.getString("path"),
+                    row.getLong("size"),
+                    row.getLong("modified_at"),
+                    row.getString("hash")
+            );
+
+    public static TupleMapper<FileHashRecord> PARAM_MAPPER = TupleMapper.mapper(r ->
+            MapUtil.ofEntries(MapUtil.entry("path_hash", pathHash(r.path())),
+                    MapUtil.entry("path", r.path()),
+                    MapUtil.entry("size", r.size()),
+                    MapUtil.entry("modified_at", r.modifiedAt()),
+                    MapUtil.entry("hash", r.hash())
+            ));
+}
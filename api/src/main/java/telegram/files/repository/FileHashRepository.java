@@ -0,0 +1,12 @@
+package telegram.files.repository;
+
+import io.vertx.core.Future;
+
+public interface FileHashRepository {
+    Future<FileHashRecord> getByPath(String path);
+
+    /**
+     * Replace the hash recorded for the path.
+     */
+    Future<Void> createOrUpdate(FileHashRecord record);
+}
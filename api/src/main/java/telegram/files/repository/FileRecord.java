@@ -8,6 +8,7 @@ import io.vertx.sqlclient.templates.TupleMapper;
 import org.drinkless.tdlib.TdApi;
 import telegram.files.Config;
 
+import java.util.List;
 import java.util.Objects;
 import java.util.TreeMap;
 
@@ -80,6 +81,18 @@ public record FileRecord(int id, //file id will change
             )
             """;
 
+    /**
+     * Indexes matching the access paths of {@code FileRepositoryImpl}:
+     * lookups by unique id, listing a chat ordered by message id, counting by account and status, and album updates.
+     */
+    public static final List<Definition.Index> INDEXES = List.of(
+            new Definition.Index("idx_file_record_unique_id", "file_record", "unique_id"),
+            new Definition.Index("idx_file_record_chat_message", "file_record", "chat_id, message_id"),
+            new Definition.Index("idx_file_record_message_id", "file_record", "message_id"),
+            new Definition.Index("idx_file_record_telegram_status", "file_record", "telegram_id, download_status"),
+            new Definition.Index("idx_file_record_media_album_id", "file_record", "media_album_id")
+    );
+
     public static final TreeMap<Version, String[]> MIGRATIONS = new TreeMap<>(MapUtil.ofEntries(
             MapUtil.entry(new Version("0.1.7"), new String[]{
                     "ALTER TABLE file_record ADD COLUMN start_date BIGINT;",
@@ -115,6 +128,11 @@ public record FileRecord(int id, //file id will change
         public TreeMap<Version, String[]> getMigrations() {
             return MIGRATIONS;
         }
+
+        @Override
+        public List<Index> getIndexes() {
+            return INDEXES;
+        }
     }
 
     public static RowMapper<FileRecord> ROW_MAPPER = row ->
@@ -180,6 +198,10 @@ public record FileRecord(int id, //file id will change
         return new FileRecord(id, uniqueId, telegramId, chatId, messageId, mediaAlbumId, date, hasSensitiveContent, size, downloadedSize, type, mimeType, fileName, thumbnail, thumbnailUniqueId, caption, extra, localPath, downloadStatus, transferStatus, startDate, completionDate, tags, threadChatId, messageThreadId, reactionCount);
     }
 
+    public FileRecord withDownloadState(int id, String localPath, String downloadStatus, Long completionDate) {
+        return new FileRecord(id, uniqueId, telegramId, chatId, messageId, mediaAlbumId, date, hasSensitiveContent, size, downloadedSize, type, mimeType, fileName, thumbnail, thumbnailUniqueId, caption, extra, localPath, downloadStatus, transferStatus, startDate, completionDate, tags, threadChatId, messageThreadId, reactionCount);
+    }
+
     public FileRecord withThreadInfo(TdApi.MessageThreadInfo threadInfo) {
         if (threadInfo == null) {
             return this;
@@ -3,6 +3,7 @@ package telegram.files.repository;
 import io.vertx.core.Future;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import org.jooq.lambda.tuple.Tuple2;
 import org.jooq.lambda.tuple.Tuple3;
 
 import java.util.List;
@@ -13,10 +14,33 @@ public interface FileRepository {
 
     Future<Boolean> createIfNotExist(FileRecord fileRecord);
 
+    /**
+     * Insert the records whose unique id does not exist yet, in one batch.
+     *
+     * @return the number of created records
+     */
+    Future<Integer> createAllIfNotExist(List<FileRecord> fileRecords);
+
     Future<Tuple3<List<FileRecord>, Long, Long>> getFiles(long chatId, Map<String, String> filter);
 
+    /**
+     * One page of the completed, not yet transferred files of a chat, ordered by message id and unique id and starting
+     * after the given cursor, so the chat can be walked page by page without offsets or counting.
+     */
+    Future<List<FileRecord>> getTransferableFiles(long telegramId, long chatId, long afterMessageId, String afterUniqueId, int limit);
+
     Future<Map<String, FileRecord>> getFilesByUniqueId(List<String> uniqueIds);
 
+    /**
+     * Replace the content fingerprint of the file.
+     */
+    Future<Void> createContent(FileContentRecord contentRecord);
+
+    /**
+     * Completed files whose content fingerprint has the given size, with their head hash.
+     */
+    Future<List<Tuple2<FileRecord, String>>> getContentCandidates(long size);
+
     Future<FileRecord> getByPrimaryKey(int fileId, String uniqueId);
 
     Future<FileRecord> getByUniqueId(String uniqueId);
@@ -35,6 +59,11 @@ public interface FileRepository {
 
     Future<Integer> countByStatus(long telegramId, FileRecord.DownloadStatus downloadStatus);
 
+    /**
+     * Unique ids of the non-thumbnail files of the account in the given status, after pending status updates are written.
+     */
+    Future<List<String>> getUniqueIdsByStatus(long telegramId, FileRecord.DownloadStatus downloadStatus);
+
     Future<JsonObject> countWithType(long telegramId, long chatId);
 
     Future<JsonObject> updateDownloadStatus(int fileId,
@@ -43,6 +72,16 @@ public interface FileRepository {
                                             FileRecord.DownloadStatus downloadStatus,
                                             Long completionDate);
 
+    /**
+     * Same as {@link #updateDownloadStatus(int, String, String, FileRecord.DownloadStatus, Long)},
+     * but uses the already loaded record to compute the changes instead of reading it again.
+     */
+    Future<JsonObject> updateDownloadStatus(FileRecord record,
+                                            int fileId,
+                                            String localPath,
+                                            FileRecord.DownloadStatus downloadStatus,
+                                            Long completionDate);
+
     Future<JsonObject> updateTransferStatus(String uniqueId,
                                             FileRecord.TransferStatus transferStatus,
                                             String localPath);
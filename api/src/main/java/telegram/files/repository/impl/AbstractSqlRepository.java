@@ -1,14 +1,42 @@
 package telegram.files.repository.impl;
 
 
+import io.vertx.core.Future;
+import io.vertx.sqlclient.Pool;
 import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.SqlConnection;
+import telegram.files.Config;
+
+import java.util.function.Function;
 
 public abstract class AbstractSqlRepository {
 
     protected final SqlClient sqlClient;
 
     public AbstractSqlRepository(SqlClient sqlClient) {
-        this.sqlClient = sqlClient;
+        this.sqlClient = SqlTracer.INSTANCE.trace(sqlClient);
+    }
+
+    /**
+     * Run the function in a transaction, or directly if the client is not a pool.
+     */
+    protected <T> Future<T> inTransaction(Function<SqlClient, Future<T>> function) {
+        if (sqlClient instanceof Pool pool) {
+            return inTransaction(pool, conn -> function.apply(SqlTracer.INSTANCE.trace(conn, pool)));
+        }
+        return function.apply(sqlClient);
     }
 
+    static <T> Future<T> inTransaction(Pool pool, Function<SqlConnection, Future<T>> function) {
+        if (!Config.isSqlite()) {
+            return pool.withTransaction(function);
+        }
+        // The JDBC pool does not restore auto-commit after a transaction, the pooled connection would then keep
+        // an open read snapshot and never see writes of other connections, so handle the transaction explicitly.
+        return pool.withConnection(conn -> conn.query("BEGIN IMMEDIATE").execute()
+                .compose(r -> function.apply(conn))
+                .compose(result -> conn.query("COMMIT").execute().map(result),
+                        err -> conn.query("ROLLBACK").execute()
+                                .transform(r -> Future.failedFuture(err))));
+    }
 }
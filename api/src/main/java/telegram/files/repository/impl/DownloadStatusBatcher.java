@@ -0,0 +1,184 @@
+package telegram.files.repository.impl;
+
+import cn.hutool.core.map.MapUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import telegram.files.repository.FileRecord;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind buffer for download status updates.
+ * <p>
+ * TDLib emits many {@code UpdateFile} events per file while it is downloading, each of them used to be a separate
+ * {@code UPDATE file_record}. Updates are now coalesced by unique id within a short window and written as one batch
+ * in a single transaction. A {@code completed} status triggers an immediate flush, so downstream consumers
+ * (transfer, statistics) never observe a stale status for finished files.
+ * <p>
+ * Flushes are serialized: a flush only starts after the previous one has finished, so the last write for a unique id
+ * always wins.
+ */
+public class DownloadStatusBatcher {
+
+    private static final Log log = LogFactory.get();
+
+    public static final long FLUSH_INTERVAL = 500;
+
+    public static final int MAX_BATCH_SIZE = 200;
+
+    private final Vertx vertx;
+
+    private final Pool pool;
+
+    private final Map<String, PendingStatus> pending = new LinkedHashMap<>();
+
+    private Future<Void> lastFlush = Future.succeededFuture();
+
+    private long timerId = -1;
+
+    private boolean closed;
+
+    public DownloadStatusBatcher(Vertx vertx, Pool pool) {
+        this.vertx = vertx;
+        this.pool = pool;
+    }
+
+    /**
+     * Queue a status update, the returned future completes once the update has been written to the database.
+     */
+    public Future<Void> enqueue(int fileId,
+                                String uniqueId,
+                                String localPath,
+                                FileRecord.DownloadStatus downloadStatus,
+                                Long completionDate) {
+        Promise<Void> promise = Promise.promise();
+        boolean flushNow;
+        synchronized (this) {
+            PendingStatus status = new PendingStatus(fileId, uniqueId, localPath,
+                    downloadStatus == null ? null : downloadStatus.name(),
+                    completionDate,
+                    new ArrayList<>());
+            PendingStatus previous = pending.remove(uniqueId);
+            if (previous != null) {
+                status.waiters.addAll(previous.waiters);
+            }
+            status.waiters.add(promise);
+            pending.put(uniqueId, status);
+
+            flushNow = closed
+                       || downloadStatus == FileRecord.DownloadStatus.completed
+                       || pending.size() >= MAX_BATCH_SIZE;
+            if (!flushNow && timerId == -1) {
+                timerId = vertx.setTimer(FLUSH_INTERVAL, id -> flush());
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+        return promise.future();
+    }
+
+    /**
+     * Apply the pending, not yet written, status of the file on top of the record read from the database.
+     */
+    public FileRecord overlay(FileRecord record) {
+        if (record == null) {
+            return null;
+        }
+        PendingStatus status;
+        synchronized (this) {
+            status = pending.get(record.uniqueId());
+        }
+        if (status == null) {
+            return record;
+        }
+        return record.withDownloadState(status.fileId, status.localPath, status.downloadStatus, status.completionDate);
+    }
+
+    /**
+     * Flush the pending updates if the unique id has one, so other writers on the same row are not overwritten later.
+     */
+    public Future<Void> flush(String uniqueId) {
+        synchronized (this) {
+            if (!pending.containsKey(uniqueId)) {
+                return lastFlush;
+            }
+        }
+        return flush();
+    }
+
+    public Future<Void> flush() {
+        synchronized (this) {
+            if (timerId != -1) {
+                vertx.cancelTimer(timerId);
+                timerId = -1;
+            }
+            lastFlush = lastFlush.transform(r -> writePending());
+            return lastFlush;
+        }
+    }
+
+    public Future<Void> close() {
+        synchronized (this) {
+            closed = true;
+        }
+        return flush();
+    }
+
+    private Future<Void> writePending() {
+        List<PendingStatus> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return Future.succeededFuture();
+            }
+            batch = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+
+        List<Map<String, Object>> params = batch.stream()
+                .map(status -> MapUtil.<String, Object>ofEntries(
+                        MapUtil.entry("fileId", status.fileId),
+                        MapUtil.entry("uniqueId", status.uniqueId),
+                        MapUtil.entry("localPath", status.localPath),
+                        MapUtil.entry("downloadStatus", status.downloadStatus),
+                        MapUtil.entry("completionDate", status.completionDate)))
+                .toList();
+        long startTime = System.currentTimeMillis();
+        return AbstractSqlRepository.inTransaction(pool, conn -> SqlTemplate
+                        .forUpdate(conn, """
+                                UPDATE file_record SET id = #{fileId},
+                                                       local_path = #{localPath},
+                                                       download_status = #{downloadStatus},
+                                                       completion_date = #{completionDate}
+                                WHERE unique_id = #{uniqueId}
+                                """)
+                        .executeBatch(params)
+                )
+                .onSuccess(r -> {
+                    log.debug("Flushed %d download status updates in %dms".formatted(batch.size(), System.currentTimeMillis() - startTime));
+                    batch.forEach(status -> status.waiters.forEach(Promise::tryComplete));
+                })
+                .onFailure(err -> {
+                    log.error("Failed to flush download status updates: %s".formatted(err.getMessage()));
+                    batch.forEach(status -> status.waiters.forEach(w -> w.tryFail(err)));
+                })
+                .<Void>mapEmpty()
+                .otherwiseEmpty();
+    }
+
+    private record PendingStatus(int fileId,
+                                 String uniqueId,
+                                 String localPath,
+                                 String downloadStatus,
+                                 Long completionDate,
+                                 List<Promise<Void>> waiters) {
+    }
+}
@@ -0,0 +1,51 @@
+package telegram.files.repository.impl;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import telegram.files.Config;
+import telegram.files.repository.FileHashRecord;
+import telegram.files.repository.FileHashRepository;
+
+import java.util.Map;
+
+public class FileHashRepositoryImpl extends AbstractSqlRepository implements FileHashRepository {
+
+    private static final Log log = LogFactory.get();
+
+    public FileHashRepositoryImpl(SqlClient sqlClient) {
+        super(sqlClient);
+    }
+
+    @Override
+    public Future<FileHashRecord> getByPath(String path) {
+        return SqlTemplate
+                .forQuery(sqlClient, """
+                        SELECT * FROM file_hash WHERE path_hash = #{pathHash}
+                        """)
+                .mapTo(FileHashRecord.ROW_MAPPER)
+                .execute(Map.of("pathHash", FileHashRecord.pathHash(path)))
+                .map(rs -> rs.size() > 0 ? rs.iterator().next() : null)
+                .onFailure(err -> log.error("Failed to get file hash: %s".formatted(err.getMessage())));
+    }
+
+    @Override
+    public Future<Void> createOrUpdate(FileHashRecord record) {
+        return SqlTemplate
+                .forUpdate(sqlClient, Config.isMysql() ?
+                        """
+                                INSERT INTO file_hash(path_hash, path, size, modified_at, hash)
+                                VALUES (#{path_hash}, #{path}, #{size}, #{modified_at}, #{hash})
+                                ON DUPLICATE KEY UPDATE size = VALUES(size), modified_at = VALUES(modified_at), hash = VALUES(hash)""" :
+                        """
+                                INSERT INTO file_hash(path_hash, path, size, modified_at, hash)
+                                VALUES (#{path_hash}, #{path}, #{size}, #{modified_at}, #{hash})
+                                ON CONFLICT (path_hash) DO UPDATE SET size = #{size}, modified_at = #{modified_at}, hash = #{hash}""")
+                .mapFrom(FileHashRecord.PARAM_MAPPER)
+                .execute(record)
+                .onFailure(err -> log.error("Failed to save file hash: %s".formatted(err.getMessage())))
+                .mapEmpty();
+    }
+}
@@ -0,0 +1,137 @@
+package telegram.files.repository.impl;
+
+import io.vertx.core.json.JsonObject;
+import telegram.files.repository.FileRecord;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * Bounded LRU cache of {@link FileRecord} keyed by unique id.
+ * <p>
+ * Every writer of {@code file_record} must invalidate or refresh the affected entries. To avoid caching a row that was
+ * read before a concurrent write, readers take a {@link #version()} before querying and pass it to
+ * {@link #put(FileRecord, long)}: the record is only cached if it, or its album, was not written in between. Writes to
+ * other records don't keep it out, the download status of some file changes all the time.
+ */
+public class FileRecordCache {
+
+    // the most recent writes kept apart, older reads are not cached
+    private static final int MAX_WRITES = 10_000;
+
+    private final int capacity;
+
+    private final LinkedHashMap<String, FileRecord> records;
+
+    // the number of writes so far
+    private long version;
+
+    // unique id or media album id -> version of its last write, oldest first
+    private final LinkedHashMap<Object, Long> writes = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Long> eldest) {
+            if (size() > MAX_WRITES) {
+                floor = eldest.getValue();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // reads before this version are not cached, the writes they may have missed are forgotten or were a clear
+    private long floor;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    public FileRecordCache(int capacity) {
+        this.capacity = capacity;
+        this.records = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileRecord> eldest) {
+                if (size() > FileRecordCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized FileRecord get(String uniqueId) {
+        FileRecord record = records.get(uniqueId);
+        if (record == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return record;
+    }
+
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Cache the record read from the database, unless it or its album was written since {@code readVersion}.
+     */
+    public synchronized void put(FileRecord record, long readVersion) {
+        if (record == null || capacity <= 0 || readVersion < floor
+            || writes.getOrDefault(record.uniqueId(), 0L) > readVersion
+            || record.mediaAlbumId() != 0 && writes.getOrDefault(record.mediaAlbumId(), 0L) > readVersion) {
+            return;
+        }
+        records.put(record.uniqueId(), record);
+    }
+
+    private void written(Object key) {
+        // moved to the end, the map stays ordered by version
+        writes.remove(key);
+        writes.put(key, ++version);
+    }
+
+    /**
+     * Refresh the cached record, if present.
+     */
+    public synchronized void refresh(String uniqueId, UnaryOperator<FileRecord> updater) {
+        written(uniqueId);
+        FileRecord record = records.get(uniqueId);
+        if (record != null) {
+            records.put(uniqueId, updater.apply(record));
+        }
+    }
+
+    public synchronized void invalidate(String uniqueId) {
+        written(uniqueId);
+        records.remove(uniqueId);
+    }
+
+    public synchronized void invalidateByMediaAlbumId(long mediaAlbumId) {
+        written(mediaAlbumId);
+        records.values().removeIf(record -> record.mediaAlbumId() == mediaAlbumId);
+    }
+
+    public synchronized void clear() {
+        floor = ++version;
+        writes.clear();
+        records.clear();
+    }
+
+    public synchronized JsonObject getStatistics() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        return JsonObject.of(
+                "capacity", capacity,
+                "size", records.size(),
+                "hits", hitCount,
+                "misses", missCount,
+                "evictions", evictions.sum(),
+                "hitRate", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount)
+        );
+    }
+}
@@ -16,9 +16,11 @@ import io.vertx.sqlclient.SqlClient;
 import io.vertx.sqlclient.SqlResult;
 import io.vertx.sqlclient.templates.SqlTemplate;
 import org.jooq.lambda.tuple.Tuple;
+import org.jooq.lambda.tuple.Tuple2;
 import org.jooq.lambda.tuple.Tuple3;
 import telegram.files.Config;
 import telegram.files.MessyUtils;
+import telegram.files.repository.FileContentRecord;
 import telegram.files.repository.FileRecord;
 import telegram.files.repository.FileRepository;
 
@@ -34,26 +36,43 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
 
     private static final Log log = LogFactory.get();
 
+    private static final String INSERT_SQL = """
+            INSERT INTO file_record(id, unique_id, telegram_id, chat_id, message_id, media_album_id, date, has_sensitive_content,
+                                    size, downloaded_size,
+                                    type, mime_type,
+                                    file_name, thumbnail, thumbnail_unique_id, caption, extra, local_path,
+                                    download_status, start_date, transfer_status, tags, thread_chat_id, message_thread_id, reaction_count)
+            values (#{id}, #{unique_id}, #{telegram_id}, #{chat_id}, #{message_id}, #{media_album_id}, #{date},
+                    #{has_sensitive_content}, #{size}, #{downloaded_size}, #{type},
+                    #{mime_type}, #{file_name}, #{thumbnail}, #{thumbnail_unique_id}, #{caption}, #{extra}, #{local_path},
+                    #{download_status}, #{start_date}, #{transfer_status}, #{tags}, #{thread_chat_id}, #{message_thread_id}, #{reaction_count})
+            """;
+
+    private final DownloadStatusBatcher downloadStatusBatcher;
+
+    private final FileRecordCache fileRecordCache;
+
     public FileRepositoryImpl(SqlClient sqlClient) {
+        this(sqlClient, null, null);
+    }
+
+    /**
+     * @param downloadStatusBatcher if present, download status updates are written behind in batches.
+     * @param fileRecordCache       if present, records looked up by unique id are cached.
+     */
+    public FileRepositoryImpl(SqlClient sqlClient, DownloadStatusBatcher downloadStatusBatcher, FileRecordCache fileRecordCache) {
         super(sqlClient);
+        this.downloadStatusBatcher = downloadStatusBatcher;
+        this.fileRecordCache = fileRecordCache;
     }
 
     @Override
     public Future<FileRecord> create(FileRecord fileRecord) {
         return SqlTemplate
-                .forUpdate(sqlClient, """
-                        INSERT INTO file_record(id, unique_id, telegram_id, chat_id, message_id, media_album_id, date, has_sensitive_content,
-                                                size, downloaded_size,
-                                                type, mime_type,
-                                                file_name, thumbnail, thumbnail_unique_id, caption, extra, local_path,
-                                                download_status, start_date, transfer_status, tags, thread_chat_id, message_thread_id, reaction_count)
-                        values (#{id}, #{unique_id}, #{telegram_id}, #{chat_id}, #{message_id}, #{media_album_id}, #{date},
-                                #{has_sensitive_content}, #{size}, #{downloaded_size}, #{type},
-                                #{mime_type}, #{file_name}, #{thumbnail}, #{thumbnail_unique_id}, #{caption}, #{extra}, #{local_path},
-                                #{download_status}, #{start_date}, #{transfer_status}, #{tags}, #{thread_chat_id}, #{message_thread_id}, #{reaction_count})
-                        """)
+                .forUpdate(sqlClient, INSERT_SQL)
                 .mapFrom(FileRecord.PARAM_MAPPER)
                 .execute(fileRecord)
+                .onSuccess(r -> invalidateCache(fileRecord.uniqueId()))
                 .map(r -> fileRecord)
                 .compose(r -> {
                     if (Objects.equals(r.type(), "thumbnail")) {
@@ -77,6 +96,44 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                 });
     }
 
+    @Override
+    public Future<Integer> createAllIfNotExist(List<FileRecord> fileRecords) {
+        Map<String, FileRecord> records = new LinkedHashMap<>();
+        fileRecords.forEach(fileRecord -> records.putIfAbsent(fileRecord.uniqueId(), fileRecord));
+        if (records.isEmpty()) {
+            return Future.succeededFuture(0);
+        }
+        return this.getFilesByUniqueId(new ArrayList<>(records.keySet()))
+                .compose(existFiles -> {
+                    List<FileRecord> newRecords = records.values().stream()
+                            .filter(fileRecord -> !existFiles.containsKey(fileRecord.uniqueId()))
+                            .toList();
+                    if (newRecords.isEmpty()) {
+                        return Future.succeededFuture(newRecords);
+                    }
+                    return inTransaction(client -> SqlTemplate
+                            .forUpdate(client, INSERT_SQL)
+                            .mapFrom(FileRecord.PARAM_MAPPER)
+                            .executeBatch(newRecords))
+                            .onComplete(r -> newRecords.forEach(fileRecord -> invalidateCache(fileRecord.uniqueId())))
+                            .map(newRecords);
+                })
+                .compose(newRecords -> {
+                    // one album update per album instead of one per file
+                    Map<Long, FileRecord> albums = new HashMap<>();
+                    newRecords.stream()
+                            .filter(fileRecord -> fileRecord.mediaAlbumId() > 0 && !Objects.equals(fileRecord.type(), "thumbnail"))
+                            .forEach(fileRecord -> albums.merge(fileRecord.mediaAlbumId(), fileRecord,
+                                    (a, b) -> StrUtil.isBlank(a.caption()) ? b : a));
+                    return Future.all(albums.values().stream()
+                                    .map(fileRecord -> this.updateAlbumDataByMediaAlbumId(fileRecord.mediaAlbumId(), fileRecord.caption(), fileRecord.reactionCount()))
+                                    .toList())
+                            .map(r -> newRecords.size());
+                })
+                .onSuccess(count -> log.trace("Successfully created %d file records".formatted(count)))
+                .onFailure(err -> log.error("Failed to create file records: %s".formatted(err.getMessage())));
+    }
+
     @Override
     public Future<Tuple3<List<FileRecord>, Long, Long>> getFiles(long chatId, Map<String, String> filter) {
         String search = filter.get("search");
@@ -217,9 +274,22 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
         uniqueIds = uniqueIds.stream()
                 .filter(StrUtil::isNotBlank)
                 .distinct().collect(Collectors.toList());
+        Map<String, FileRecord> cachedRecords = new HashMap<>();
+        if (fileRecordCache != null) {
+            uniqueIds = uniqueIds.stream()
+                    .filter(uniqueId -> {
+                        FileRecord cached = fileRecordCache.get(uniqueId);
+                        if (cached != null) {
+                            cachedRecords.put(uniqueId, cached);
+                        }
+                        return cached == null;
+                    })
+                    .collect(Collectors.toList());
+        }
         if (CollUtil.isEmpty(uniqueIds)) {
-            return Future.succeededFuture(new HashMap<>());
+            return Future.succeededFuture(cachedRecords);
         }
+        long readVersion = cacheVersion();
         String uniqueIdPlaceholders = IntStream.range(0, uniqueIds.size())
                 .mapToObj(i -> "#{uniqueId" + i + "}")
                 .collect(Collectors.joining(","));
@@ -235,14 +305,80 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                 .execute(params)
                 .onFailure(err -> log.error("Failed to get file record: %s".formatted(err.getMessage())))
                 .map(rs -> {
-                    Map<String, FileRecord> map = new HashMap<>();
+                    Map<String, FileRecord> map = new HashMap<>(cachedRecords);
                     for (FileRecord record : rs) {
+                        record = overlayDownloadStatus(record);
+                        putCache(record, readVersion);
                         map.put(record.uniqueId(), record);
                     }
                     return map;
                 });
     }
 
+    @Override
+    public Future<List<FileRecord>> getTransferableFiles(long telegramId, long chatId, long afterMessageId, String afterUniqueId, int limit) {
+        Future<Void> flushFuture = downloadStatusBatcher == null ? Future.succeededFuture() : downloadStatusBatcher.flush();
+        return flushFuture
+                .compose(v -> SqlTemplate
+                        .forQuery(sqlClient, """
+                                SELECT *
+                                FROM file_record
+                                WHERE chat_id = #{chatId}
+                                  AND telegram_id = #{telegramId}
+                                  AND (message_id > #{messageId} OR (message_id = #{messageId} AND unique_id > #{uniqueId}))
+                                  AND download_status = 'completed'
+                                  AND transfer_status = 'idle'
+                                  AND type != 'thumbnail'
+                                ORDER BY message_id, unique_id
+                                LIMIT #{limit}
+                                """)
+                        .mapTo(FileRecord.ROW_MAPPER)
+                        .execute(Map.of("telegramId", telegramId,
+                                "chatId", chatId,
+                                "messageId", afterMessageId,
+                                "uniqueId", StrUtil.nullToEmpty(afterUniqueId),
+                                "limit", limit))
+                        .map(IterUtil::toList))
+                .onFailure(err -> log.error("Failed to get transferable files: %s".formatted(err.getMessage())));
+    }
+
+    @Override
+    public Future<Void> createContent(FileContentRecord contentRecord) {
+        return SqlTemplate
+                .forUpdate(sqlClient, Config.isMysql() ?
+                        """
+                                INSERT INTO file_content(unique_id, size, head_hash)
+                                VALUES (#{unique_id}, #{size}, #{head_hash})
+                                ON DUPLICATE KEY UPDATE size = VALUES(size), head_hash = VALUES(head_hash)""" :
+                        """
+                                INSERT INTO file_content(unique_id, size, head_hash)
+                                VALUES (#{unique_id}, #{size}, #{head_hash})
+                                ON CONFLICT (unique_id) DO UPDATE SET size = #{size}, head_hash = #{head_hash}""")
+                .mapFrom(FileContentRecord.PARAM_MAPPER)
+                .execute(contentRecord)
+                .onFailure(err -> log.error("Failed to create file content: %s".formatted(err.getMessage())))
+                .mapEmpty();
+    }
+
+    @Override
+    public Future<List<Tuple2<FileRecord, String>>> getContentCandidates(long size) {
+        Future<Void> flushFuture = downloadStatusBatcher == null ? Future.succeededFuture() : downloadStatusBatcher.flush();
+        return flushFuture
+                .compose(v -> SqlTemplate
+                        .forQuery(sqlClient, """
+                                SELECT f.*, c.head_hash AS content_head_hash
+                                FROM file_content c
+                                         JOIN file_record f ON f.unique_id = c.unique_id
+                                WHERE c.size = #{size}
+                                  AND f.download_status = 'completed'
+                                  AND f.type != 'thumbnail'
+                                """)
+                        .mapTo(row -> Tuple.tuple(FileRecord.ROW_MAPPER.map(row), row.getString("content_head_hash")))
+                        .execute(Map.of("size", size))
+                        .map(IterUtil::toList))
+                .onFailure(err -> log.error("Failed to get content candidates: %s".formatted(err.getMessage())));
+    }
+
     @Override
     public Future<FileRecord> getByPrimaryKey(int fileId, String uniqueId) {
         return SqlTemplate
@@ -258,6 +394,13 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
 
     @Override
     public Future<FileRecord> getByUniqueId(String uniqueId) {
+        if (fileRecordCache != null) {
+            FileRecord cached = fileRecordCache.get(uniqueId);
+            if (cached != null) {
+                return Future.succeededFuture(cached);
+            }
+        }
+        long readVersion = cacheVersion();
         return SqlTemplate
                 .forQuery(sqlClient, """
                         SELECT * FROM file_record WHERE unique_id = #{uniqueId} LIMIT 1
@@ -266,7 +409,9 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                 .execute(Map.of("uniqueId", uniqueId))
                 .onFailure(err -> log.error("Failed to get file record: %s".formatted(err.getMessage()))
                 )
-                .map(rs -> rs.size() > 0 ? rs.iterator().next() : null);
+                .map(rs -> rs.size() > 0 ? rs.iterator().next() : null)
+                .map(this::overlayDownloadStatus)
+                .onSuccess(record -> putCache(record, readVersion));
     }
 
     @Override
@@ -493,6 +638,24 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                 .onFailure(err -> log.error("Failed to count file record: %s".formatted(err.getMessage())));
     }
 
+    @Override
+    public Future<List<String>> getUniqueIdsByStatus(long telegramId, FileRecord.DownloadStatus downloadStatus) {
+        Future<Void> flushFuture = downloadStatusBatcher == null ? Future.succeededFuture() : downloadStatusBatcher.flush();
+        return flushFuture
+                .compose(v -> SqlTemplate
+                        .forQuery(sqlClient, """
+                                SELECT unique_id
+                                FROM file_record
+                                WHERE telegram_id = #{telegramId}
+                                  AND download_status = #{downloadStatus}
+                                  AND type != 'thumbnail'
+                                """)
+                        .mapTo(row -> row.getString("unique_id"))
+                        .execute(Map.of("telegramId", telegramId, "downloadStatus", downloadStatus.name()))
+                        .map(IterUtil::toList))
+                .onFailure(err -> log.error("Failed to get file record unique ids: %s".formatted(err.getMessage())));
+    }
+
     @Override
     public Future<JsonObject> countWithType(long telegramId, long chatId) {
         String whereClause = "type != 'thumbnail'";
@@ -541,46 +704,65 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
             return Future.succeededFuture(null);
         }
         return getByUniqueId(uniqueId)
-                .compose(record -> {
-                    if (record == null) {
-                        return Future.succeededFuture(null);
+                .compose(record -> updateDownloadStatus(record, fileId, localPath, downloadStatus, completionDate));
+    }
+
+    @Override
+    public Future<JsonObject> updateDownloadStatus(FileRecord record,
+                                                   int fileId,
+                                                   String localPath,
+                                                   FileRecord.DownloadStatus downloadStatus,
+                                                   Long completionDate) {
+        if (record == null || (StrUtil.isBlank(localPath) && downloadStatus == null)) {
+            return Future.succeededFuture(null);
+        }
+        String uniqueId = record.uniqueId();
+        boolean pathUpdated = !Objects.equals(record.localPath(), localPath);
+        boolean downloadStatusUpdated = !record.isDownloadStatus(downloadStatus);
+        if (!pathUpdated && !downloadStatusUpdated) {
+            return Future.succeededFuture(null);
+        }
+
+        Future<Void> updateFuture;
+        if (downloadStatusBatcher != null) {
+            updateFuture = downloadStatusBatcher.enqueue(fileId, uniqueId, localPath, downloadStatus, completionDate);
+            // pending state is visible through the cache right away, drop it if the write fails
+            refreshCache(uniqueId, fileId, localPath, downloadStatus, completionDate);
+            updateFuture.onFailure(err -> invalidateCache(uniqueId));
+        } else {
+            updateFuture = SqlTemplate
+                    .forUpdate(sqlClient, """
+                            UPDATE file_record SET id = #{fileId},
+                                                   local_path = #{localPath},
+                                                   download_status = #{downloadStatus},
+                                                   completion_date = #{completionDate}
+                            WHERE unique_id = #{uniqueId}
+                            """)
+                    .execute(MapUtil.ofEntries(MapUtil.entry("fileId", fileId),
+                            MapUtil.entry("uniqueId", uniqueId),
+                            MapUtil.entry("localPath", pathUpdated ? localPath : record.localPath()),
+                            MapUtil.entry("downloadStatus", downloadStatusUpdated ? downloadStatus.name() : record.downloadStatus()),
+                            MapUtil.entry("completionDate", completionDate)
+                    ))
+                    .onFailure(err ->
+                            log.error("Failed to update file record: %s".formatted(err.getMessage()))
+                    )
+                    .onSuccess(r -> refreshCache(uniqueId, fileId, localPath, downloadStatus, completionDate))
+                    .mapEmpty();
+        }
+        return updateFuture
+                .map(r -> {
+                    JsonObject result = JsonObject.of();
+                    if (pathUpdated) {
+                        result.put("localPath", localPath);
+                        result.put("completionDate", completionDate);
                     }
-                    boolean pathUpdated = !Objects.equals(record.localPath(), localPath);
-                    boolean downloadStatusUpdated = !record.isDownloadStatus(downloadStatus);
-                    if (!pathUpdated && !downloadStatusUpdated) {
-                        return Future.succeededFuture(null);
+                    if (downloadStatusUpdated) {
+                        result.put("downloadStatus", downloadStatus.name());
                     }
-
-                    return SqlTemplate
-                            .forUpdate(sqlClient, """
-                                    UPDATE file_record SET id = #{fileId},
-                                                           local_path = #{localPath},
-                                                           download_status = #{downloadStatus},
-                                                           completion_date = #{completionDate}
-                                    WHERE unique_id = #{uniqueId}
-                                    """)
-                            .execute(MapUtil.ofEntries(MapUtil.entry("fileId", fileId),
-                                    MapUtil.entry("uniqueId", uniqueId),
-                                    MapUtil.entry("localPath", pathUpdated ? localPath : record.localPath()),
-                                    MapUtil.entry("downloadStatus", downloadStatusUpdated ? downloadStatus.name() : record.downloadStatus()),
-                                    MapUtil.entry("completionDate", completionDate)
-                            ))
-                            .onFailure(err ->
-                                    log.error("Failed to update file record: %s".formatted(err.getMessage()))
-                            )
-                            .map(r -> {
-                                JsonObject result = JsonObject.of();
-                                if (pathUpdated) {
-                                    result.put("localPath", localPath);
-                                    result.put("completionDate", completionDate);
-                                }
-                                if (downloadStatusUpdated) {
-                                    result.put("downloadStatus", downloadStatus.name());
-                                }
-                                log.debug("Successfully updated file record: %s, path: %s, status: %s, before: %s, %s"
-                                        .formatted(uniqueId, localPath, downloadStatus.name(), record.localPath(), record.downloadStatus()));
-                                return result;
-                            });
+                    log.debug("Successfully updated file record: %s, path: %s, status: %s, before: %s, %s"
+                            .formatted(uniqueId, localPath, downloadStatus, record.localPath(), record.downloadStatus()));
+                    return result;
                 });
     }
 
@@ -591,7 +773,8 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
         if (StrUtil.isBlank(localPath) && transferStatus == null) {
             return Future.succeededFuture(null);
         }
-        return getByUniqueId(uniqueId)
+        return flushDownloadStatus(uniqueId)
+                .compose(v -> getByUniqueId(uniqueId))
                 .compose(record -> {
                     if (record == null) {
                         return Future.succeededFuture(null);
@@ -616,6 +799,7 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                             .onFailure(err ->
                                     log.error("Failed to update file record: %s".formatted(err.getMessage()))
                             )
+                            .onComplete(r -> invalidateCache(uniqueId))
                             .map(r -> {
                                 JsonObject result = JsonObject.of();
                                 if (pathUpdated) {
@@ -636,7 +820,8 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
         if (fileId <= 0 || StrUtil.isBlank(uniqueId)) {
             return Future.succeededFuture();
         }
-        return this.getByUniqueId(uniqueId)
+        return flushDownloadStatus(uniqueId)
+                .compose(v -> this.getByUniqueId(uniqueId))
                 .compose(record -> {
                     if (record == null || record.id() == fileId) {
                         return Future.succeededFuture();
@@ -649,6 +834,7 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                             .onFailure(err ->
                                     log.error("Failed to update file record: %s".formatted(err.getMessage()))
                             )
+                            .onComplete(r -> invalidateCache(uniqueId))
                             .mapEmpty();
                 });
     }
@@ -700,6 +886,11 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                             """)
                     .execute(Map.of("mediaAlbumId", mediaAlbumId, "caption", theCaption, "reactionCount", theReactionCount))
                     .onFailure(err -> log.error("Failed to update file record: %s".formatted(err.getMessage())))
+                    .onComplete(ar -> {
+                        if (fileRecordCache != null) {
+                            fileRecordCache.invalidateByMediaAlbumId(mediaAlbumId);
+                        }
+                    })
                     .map(SqlResult::rowCount);
         });
     }
@@ -715,6 +906,7 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                         """)
                 .execute(Map.of("uniqueId", uniqueId, "tags", tags))
                 .onFailure(err -> log.error("Failed to update file record: %s".formatted(err.getMessage())))
+                .onComplete(r -> invalidateCache(uniqueId))
                 .mapEmpty();
     }
 
@@ -723,13 +915,55 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
         if (StrUtil.isBlank(uniqueId)) {
             return Future.succeededFuture();
         }
-        return SqlTemplate
-                .forUpdate(sqlClient, """
-                        DELETE FROM file_record WHERE unique_id = #{uniqueId}
-                        """)
-                .execute(Map.of("uniqueId", uniqueId))
-                .onFailure(err -> log.error("Failed to delete file record: %s".formatted(err.getMessage()))
-                )
-                .mapEmpty();
+        return flushDownloadStatus(uniqueId)
+                .compose(v -> SqlTemplate
+                        .forUpdate(sqlClient, """
+                                DELETE FROM file_record WHERE unique_id = #{uniqueId}
+                                """)
+                        .execute(Map.of("uniqueId", uniqueId))
+                        .onFailure(err -> log.error("Failed to delete file record: %s".formatted(err.getMessage()))
+                        )
+                        .onComplete(r -> invalidateCache(uniqueId))
+                        .mapEmpty());
+    }
+
+    private Future<Void> flushDownloadStatus(String uniqueId) {
+        if (downloadStatusBatcher == null) {
+            return Future.succeededFuture();
+        }
+        return downloadStatusBatcher.flush(uniqueId);
+    }
+
+    private FileRecord overlayDownloadStatus(FileRecord record) {
+        return downloadStatusBatcher == null ? record : downloadStatusBatcher.overlay(record);
+    }
+
+    private long cacheVersion() {
+        return fileRecordCache == null ? 0 : fileRecordCache.version();
+    }
+
+    private void putCache(FileRecord record, long readVersion) {
+        if (fileRecordCache != null) {
+            fileRecordCache.put(record, readVersion);
+        }
+    }
+
+    private void refreshCache(String uniqueId,
+                              int fileId,
+                              String localPath,
+                              FileRecord.DownloadStatus downloadStatus,
+                              Long completionDate) {
+        if (fileRecordCache != null) {
+            fileRecordCache.refresh(uniqueId, record -> record.withDownloadState(fileId,
+                    localPath,
+                    downloadStatus == null ? record.downloadStatus() : downloadStatus.name(),
+                    completionDate));
+        }
+    }
+
+    private void invalidateCache(String uniqueId) {
+        if (fileRecordCache != null) {
+            fileRecordCache.invalidate(uniqueId);
+        }
     }
 }
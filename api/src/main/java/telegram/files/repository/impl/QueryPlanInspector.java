@@ -0,0 +1,105 @@
+package telegram.files.repository.impl;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.Tuple;
+import telegram.files.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Logs the query plans of the main {@link FileRepositoryImpl} queries at startup, so a missing index shows up in the
+ * logs instead of as a slow {@code /files} page.
+ */
+public class QueryPlanInspector {
+
+    private static final Log log = LogFactory.get();
+
+    /**
+     * Representative queries, keyed by the repository method they come from.
+     */
+    private static final Map<String, String> QUERIES = Map.of(
+            "getByUniqueId", """
+                    SELECT * FROM file_record WHERE unique_id = '' LIMIT 1
+                    """,
+            "getFiles(chat)", """
+                    SELECT * FROM file_record WHERE type != 'thumbnail' AND chat_id = 0 ORDER BY message_id DESC LIMIT 20
+                    """,
+            "getFiles(all)", """
+                    SELECT * FROM file_record WHERE type != 'thumbnail' ORDER BY message_id DESC LIMIT 20
+                    """,
+            "countByStatus", """
+                    SELECT COUNT(*) FROM file_record WHERE telegram_id = 0 AND download_status = 'downloading' AND type != 'thumbnail'
+                    """,
+            "getCaptionByMediaAlbumId", """
+                    SELECT caption FROM file_record WHERE media_album_id = 0 LIMIT 1
+                    """
+    );
+
+    public static Future<Void> inspect(SqlClient sqlClient) {
+        List<Future<Void>> futures = new ArrayList<>();
+        QUERIES.forEach((method, sql) -> futures.add(explain(sqlClient, sql, null)
+                .map(plan -> {
+                    if (isFullScan(plan)) {
+                        log.warn("Query plan of %s uses a full table scan: %s".formatted(method, plan));
+                    } else {
+                        log.debug("Query plan of %s: %s".formatted(method, plan));
+                    }
+                    return (Void) null;
+                })
+                .recover(e -> {
+                    log.warn("Failed to explain %s: %s".formatted(method, e.getMessage()));
+                    return Future.succeededFuture();
+                })));
+        return Future.join(futures).mapEmpty();
+    }
+
+    /**
+     * The plan of the statement as one line.
+     *
+     * @param params the parameters of a prepared statement, null for a plain one
+     */
+    public static Future<String> explain(SqlClient sqlClient, String sql, Tuple params) {
+        String explain = (Config.isSqlite() ? "EXPLAIN QUERY PLAN " : "EXPLAIN ") + sql.strip();
+        return (params == null ? sqlClient.query(explain).execute() : sqlClient.preparedQuery(explain).execute(params))
+                .map(rows -> StreamSupport.stream(rows.spliterator(), false)
+                        .map(QueryPlanInspector::formatRow)
+                        .collect(Collectors.joining(" | ")));
+    }
+
+    static boolean isFullScan(String plan) {
+        if (Config.isSqlite()) {
+            // "SCAN file_record" without "USING INDEX" / "USING COVERING INDEX"
+            return plan.contains("SCAN file_record") && !plan.contains("USING");
+        } else if (Config.isPostgres()) {
+            return plan.contains("Seq Scan on file_record");
+        } else {
+            return plan.contains("type=ALL");
+        }
+    }
+
+    private static String formatRow(Row row) {
+        if (Config.isSqlite()) {
+            return row.getString("detail");
+        }
+        if (Config.isPostgres()) {
+            return StrUtil.trim(row.getString(0));
+        }
+        List<String> columns = new ArrayList<>();
+        for (int i = 0; i < row.size(); i++) {
+            Object value = row.getValue(i);
+            if (value != null) {
+                columns.add(row.getColumnName(i) + "=" + value);
+            }
+        }
+        return String.join(",", columns);
+    }
+}
@@ -0,0 +1,453 @@
+package telegram.files.repository.impl;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.*;
+import telegram.files.Config;
+import telegram.files.Metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+
+/**
+ * Traces the statements the repositories send through their {@link SqlClient}.
+ * <p>
+ * Every statement is recorded with its template, a hash of its parameters and its duration. The durations are summed
+ * per template, and timed per repository method in {@link Metrics}: the method is the code that sent the template the
+ * first time, found with one stack walk per template. A statement slower than the threshold is logged with its query
+ * plan, the plan of a template at most once per {@link #EXPLAIN_INTERVAL}, and kept in a ring buffer of the recent
+ * slow statements. Once a template was slow, and at trace level, the stack is walked for every statement so that it
+ * also names the caller of the method.
+ */
+public class SqlTracer {
+
+    private static final Log log = LogFactory.get();
+
+    public static final SqlTracer INSTANCE = new SqlTracer(Config.SQL_SLOW_QUERY_MS, Config.SQL_SLOW_QUERY_BUFFER);
+
+    private static final long EXPLAIN_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    // templates are bounded by the code, literals and IN lists are replaced
+    private static final int MAX_TEMPLATES = 1000;
+
+    private static final int TOP_TEMPLATES = 20;
+
+    private static final Pattern IN_LIST = Pattern.compile("(?i)\\bIN \\(\\?(?:, ?\\?)*\\)");
+
+    // client class -> its public interfaces, the interfaces of its proxy
+    private static final ClassValue<Class<?>[]> INTERFACES = new ClassValue<>() {
+        @Override
+        protected Class<?>[] computeValue(Class<?> type) {
+            Set<Class<?>> interfaces = new LinkedHashSet<>();
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                Arrays.stream(c.getInterfaces())
+                        .filter(i -> Modifier.isPublic(i.getModifiers()))
+                        .forEach(interfaces::add);
+            }
+            return interfaces.toArray(Class<?>[]::new);
+        }
+    };
+
+    private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+
+    private final long slowNanos;
+
+    private final SlowStatement[] slowStatements;
+
+    private int nextSlowStatement;
+
+    // template -> statistics
+    private final Map<String, TemplateStatistics> templates = new ConcurrentHashMap<>();
+
+    // template -> last time its plan was logged
+    private final Map<String, Long> explained = new ConcurrentHashMap<>();
+
+    public record SlowStatement(String template, String paramsHash, long durationMicros, String caller,
+                                boolean succeeded, long time) {
+
+        public JsonObject toJson() {
+            return JsonObject.of(
+                    "template", template,
+                    "paramsHash", paramsHash,
+                    "durationMillis", durationMicros / 1000.0,
+                    "caller", caller,
+                    "succeeded", succeeded,
+                    "time", time
+            );
+        }
+    }
+
+    private static class TemplateStatistics {
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        // the code that sent the template first, like FileRepositoryImpl.getFiles:250
+        private final String source;
+
+        private final Metrics.Timer methodDuration;
+
+        private final Metrics.Counter methodRows;
+
+        // callers are captured once a statement of the template was slow
+        private volatile boolean slow;
+
+        TemplateStatistics(StackWalker.StackFrame frame) {
+            String repository = frame == null ? "-" : StrUtil.subAfter(frame.getClassName(), ".", true);
+            String method = frame == null ? "-" : methodName(frame.getMethodName());
+            this.source = frame == null ? "-" : "%s.%s:%d".formatted(repository, method, frame.getLineNumber());
+            this.methodDuration = Metrics.INSTANCE.timer("sql_method_duration_seconds",
+                    "Duration of the statements of a repository method.", "repository", repository, "method", method);
+            this.methodRows = Metrics.INSTANCE.counter("sql_method_rows_total",
+                    "Rows returned or changed by a repository method.", "repository", repository, "method", method);
+        }
+    }
+
+    public SqlTracer(long slowMillis, int bufferSize) {
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        this.slowStatements = new SlowStatement[Math.max(1, bufferSize)];
+    }
+
+    /**
+     * Trace the statements of the client. A pool stays a pool, its statements are explained through itself.
+     */
+    public SqlClient trace(SqlClient sqlClient) {
+        if (Proxy.isProxyClass(sqlClient.getClass()) && Proxy.getInvocationHandler(sqlClient) instanceof Tracing) {
+            return sqlClient;
+        }
+        return proxy(sqlClient, sqlClient);
+    }
+
+    /**
+     * Trace the statements of a connection, they are explained through the client, which must be free to use when the
+     * connection is busy with a transaction.
+     */
+    public SqlClient trace(SqlConnection connection, SqlClient explainClient) {
+        return proxy(connection, explainClient);
+    }
+
+    /**
+     * A client with the interfaces of the delegate: the queries it creates are traced, every other call goes to the
+     * delegate. SqlTemplate asks the client for its driver, which only the implementation of the driver knows.
+     */
+    private SqlClient proxy(SqlClient delegate, SqlClient explainClient) {
+        return (SqlClient) Proxy.newProxyInstance(delegate.getClass().getClassLoader(),
+                INTERFACES.get(delegate.getClass()), new Tracing(delegate, explainClient));
+    }
+
+    /**
+     * The recent slow statements, slowest first, and the templates that took the most time.
+     */
+    public JsonObject getStatistics() {
+        List<SlowStatement> slowest;
+        synchronized (this) {
+            slowest = new ArrayList<>(Arrays.stream(slowStatements).filter(Objects::nonNull).toList());
+        }
+        slowest.sort(Comparator.comparingLong(SlowStatement::durationMicros).reversed());
+        JsonArray topTemplates = templates.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, TemplateStatistics> e) -> e.getValue().totalNanos.sum()).reversed())
+                .limit(TOP_TEMPLATES)
+                .map(e -> {
+                    long count = e.getValue().count.sum();
+                    long totalNanos = e.getValue().totalNanos.sum();
+                    return JsonObject.of(
+                            "template", e.getKey(),
+                            "count", count,
+                            "totalMillis", TimeUnit.NANOSECONDS.toMillis(totalNanos),
+                            "avgMicros", count == 0 ? 0 : totalNanos / count / 1000,
+                            "maxMillis", TimeUnit.NANOSECONDS.toMillis(e.getValue().maxNanos.get()));
+                })
+                .collect(Collectors.collectingAndThen(Collectors.toList(), JsonArray::new));
+        return JsonObject.of(
+                "thresholdMillis", TimeUnit.NANOSECONDS.toMillis(slowNanos),
+                "slowest", new JsonArray(slowest.stream().map(SlowStatement::toJson).toList()),
+                "templates", topTemplates
+        );
+    }
+
+    private <T> Future<T> execute(String sql, Object params, SqlClient explainClient, Supplier<Future<T>> statement) {
+        if (StrUtil.startWithIgnoreCase(sql.stripLeading(), "EXPLAIN")) {
+            return statement.get();
+        }
+        String template = template(sql);
+        TemplateStatistics statistics = templates.get(template);
+        if (statistics == null && templates.size() < MAX_TEMPLATES) {
+            statistics = templates.computeIfAbsent(template, k -> new TemplateStatistics(codeFrames(1).stream()
+                    .findFirst()
+                    .orElse(null)));
+        }
+        String caller = log.isTraceEnabled() || statistics != null && statistics.slow ? caller() : null;
+        TemplateStatistics templateStatistics = statistics;
+        long start = System.nanoTime();
+        return statement.get()
+                .onComplete(ar -> record(template, templateStatistics, sql, params, System.nanoTime() - start, caller,
+                        ar.succeeded() ? ar.result() : null, ar.succeeded(), explainClient));
+    }
+
+    private void record(String template, TemplateStatistics statistics, String sql, Object params, long nanos,
+                        String caller, Object result, boolean succeeded, SqlClient explainClient) {
+        if (statistics != null) {
+            statistics.count.increment();
+            statistics.totalNanos.add(nanos);
+            statistics.maxNanos.accumulate(nanos);
+            statistics.methodDuration.record(nanos);
+            if (result instanceof SqlResult<?> sqlResult) {
+                statistics.methodRows.add(sqlResult.rowCount());
+            }
+        }
+        if (caller == null) {
+            caller = statistics == null ? "-" : statistics.source;
+        }
+        String paramsHash = paramsHash(params);
+        if (log.isTraceEnabled()) {
+            log.trace("SQL %d us params: %s caller: %s: %s"
+                    .formatted(TimeUnit.NANOSECONDS.toMicros(nanos), paramsHash, caller, template));
+        }
+        if (nanos < slowNanos) {
+            return;
+        }
+        if (statistics != null) {
+            statistics.slow = true;
+        }
+        synchronized (this) {
+            slowStatements[nextSlowStatement] = new SlowStatement(template, paramsHash,
+                    TimeUnit.NANOSECONDS.toMicros(nanos), caller, succeeded, System.currentTimeMillis());
+            nextSlowStatement = (nextSlowStatement + 1) % slowStatements.length;
+        }
+        String message = "Slow SQL: %d ms params: %s caller: %s: %s"
+                .formatted(TimeUnit.NANOSECONDS.toMillis(nanos), paramsHash, caller, template);
+        if (!isExplainable(template, params)) {
+            log.warn(message);
+            return;
+        }
+        QueryPlanInspector.explain(explainClient, sql, (Tuple) params)
+                .onSuccess(plan -> log.warn("%s plan: %s".formatted(message, plan)))
+                .onFailure(e -> log.warn("%s plan failed: %s".formatted(message, e.getMessage())));
+    }
+
+    /**
+     * Single reads, updates and deletes, and the same template at most once per interval.
+     */
+    private boolean isExplainable(String template, Object params) {
+        if (params != null && !(params instanceof Tuple)) {
+            return false;
+        }
+        String keyword = StrUtil.subBefore(template, " ", false).toUpperCase();
+        if (!List.of("SELECT", "WITH", "UPDATE", "DELETE").contains(keyword)) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Long last = explained.get(template);
+        if (last != null && now - last < EXPLAIN_INTERVAL) {
+            return false;
+        }
+        if (explained.size() >= MAX_TEMPLATES) {
+            explained.clear();
+        }
+        explained.put(template, now);
+        return true;
+    }
+
+    /**
+     * The statement on one line, with its literals and IN lists replaced, so that the statements a method builds with
+     * values in their text share a template.
+     */
+    static String template(String sql) {
+        StringBuilder template = new StringBuilder(sql.length());
+        boolean space = false;
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = !template.isEmpty();
+                i++;
+                continue;
+            }
+            if (space) {
+                template.append(' ');
+                space = false;
+            }
+            if (c == '\'') {
+                // '' is a quote in the literal
+                i++;
+                while (i < sql.length() && (sql.charAt(i) != '\'' || i + 1 < sql.length() && sql.charAt(i + 1) == '\'')) {
+                    i += sql.charAt(i) == '\'' ? 2 : 1;
+                }
+                i++;
+                template.append('?');
+            } else if ((Character.isDigit(c) || c == '$' && i + 1 < sql.length() && Character.isDigit(sql.charAt(i + 1)))
+                       && (template.isEmpty() || !isWordChar(template.charAt(template.length() - 1)))) {
+                // numbers, and the $1 parameters of PostgreSQL
+                i++;
+                while (i < sql.length() && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                template.append('?');
+            } else {
+                template.append(c);
+                i++;
+            }
+        }
+        return IN_LIST.matcher(template).replaceAll("IN (...)");
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Tells statements of one template with the same parameters apart from others without logging the values.
+     */
+    static String paramsHash(Object params) {
+        if (params == null) {
+            return "-";
+        }
+        int hash = 1;
+        for (Tuple tuple : params instanceof Tuple single ? List.of(single) : castTuples(params)) {
+            for (int i = 0; i < tuple.size(); i++) {
+                hash = 31 * hash + Objects.hashCode(tuple.getValue(i));
+            }
+        }
+        return "%08x".formatted(hash);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Tuple> castTuples(Object params) {
+        return (List<Tuple>) params;
+    }
+
+    /**
+     * The first two frames of this code base outside the tracing, like
+     * {@code FileRepositoryImpl.getFiles:250 <- HttpVerticle.handleFiles:600}.
+     */
+    static String caller() {
+        return codeFrames(2).stream()
+                .map(frame -> "%s.%s:%d".formatted(StrUtil.subAfter(frame.getClassName(), ".", true),
+                        methodName(frame.getMethodName()), frame.getLineNumber()))
+                .collect(Collectors.joining(" <- "));
+    }
+
+    private static List<StackWalker.StackFrame> codeFrames(int limit) {
+        return STACK_WALKER.walk(frames -> frames
+                .filter(frame -> frame.getClassName().startsWith("telegram.files.")
+                                 && !frame.getClassName().startsWith(SqlTracer.class.getName())
+                                 && !frame.getClassName().equals(AbstractSqlRepository.class.getName()))
+                .limit(limit)
+                .toList());
+    }
+
+    private static String methodName(String methodName) {
+        // lambda$getFiles$3 -> getFiles
+        return methodName.startsWith("lambda$") ? StrUtil.subBetween(methodName, "$", "$") : methodName;
+    }
+
+    private class Tracing implements InvocationHandler {
+
+        private final SqlClient delegate;
+
+        private final SqlClient explainClient;
+
+        Tracing(SqlClient delegate, SqlClient explainClient) {
+            this.delegate = delegate;
+            this.explainClient = explainClient;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result;
+            try {
+                result = method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof PreparedQuery<?> preparedQuery && method.getName().equals("preparedQuery")) {
+                return new TracedPreparedQuery<>((PreparedQuery<RowSet<Row>>) preparedQuery, (String) args[0], explainClient);
+            }
+            if (result instanceof Query<?> query && method.getName().equals("query")) {
+                return new TracedQuery<>((Query<RowSet<Row>>) query, (String) args[0], explainClient);
+            }
+            return result;
+        }
+    }
+
+    private class TracedQuery<T> implements Query<T> {
+
+        private final Query<T> delegate;
+
+        protected final String sql;
+
+        protected final SqlClient explainClient;
+
+        TracedQuery(Query<T> delegate, String sql, SqlClient explainClient) {
+            this.delegate = delegate;
+            this.sql = sql;
+            this.explainClient = explainClient;
+        }
+
+        @Override
+        public Future<T> execute() {
+            return SqlTracer.this.execute(sql, null, explainClient, delegate::execute);
+        }
+
+        @Override
+        public <R> Query<SqlResult<R>> collecting(Collector<Row, ?, R> collector) {
+            return new TracedQuery<>(delegate.collecting(collector), sql, explainClient);
+        }
+
+        @Override
+        public <U> Query<RowSet<U>> mapping(Function<Row, U> mapper) {
+            return new TracedQuery<>(delegate.mapping(mapper), sql, explainClient);
+        }
+    }
+
+    private class TracedPreparedQuery<T> extends TracedQuery<T> implements PreparedQuery<T> {
+
+        private final PreparedQuery<T> delegate;
+
+        TracedPreparedQuery(PreparedQuery<T> delegate, String sql, SqlClient explainClient) {
+            super(delegate, sql, explainClient);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Future<T> execute(Tuple tuple) {
+            return SqlTracer.this.execute(sql, tuple, explainClient, () -> delegate.execute(tuple));
+        }
+
+        @Override
+        public Future<T> executeBatch(List<Tuple> batch) {
+            return SqlTracer.this.execute(sql, batch, explainClient, () -> delegate.executeBatch(batch));
+        }
+
+        @Override
+        public <R> PreparedQuery<SqlResult<R>> collecting(Collector<Row, ?, R> collector) {
+            return new TracedPreparedQuery<>(delegate.collecting(collector), sql, explainClient);
+        }
+
+        @Override
+        public <U> PreparedQuery<RowSet<U>> mapping(Function<Row, U> mapper) {
+            return new TracedPreparedQuery<>(delegate.mapping(mapper), sql, explainClient);
+        }
+    }
+}
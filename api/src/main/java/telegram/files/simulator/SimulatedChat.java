@@ -0,0 +1,190 @@
+package telegram.files.simulator;
+
+import cn.hutool.core.util.StrUtil;
+import org.drinkless.tdlib.TdApi;
+
+import java.nio.file.Path;
+import java.util.function.IntFunction;
+
+/**
+ * A channel of the simulator with messages 1 to {@link #messageCount}, each with one photo, video, audio or document.
+ * <p>
+ * Everything about a message is derived from its number, so it only has to be stored once its file is downloaded.
+ * File ids encode the chat, the message and whether the file is the thumbnail of the message's video.
+ */
+class SimulatedChat {
+
+    static final int MAX_CHATS = 127;
+
+    static final int MAX_MESSAGES = (1 << 23) - 1;
+
+    private static final int START_DATE = 1_700_000_000;
+
+    private static final long MIN_FILE_SIZE = 16 * 1024;
+
+    enum Kind {
+        PHOTO, VIDEO, AUDIO, DOCUMENT
+    }
+
+    final int index;
+
+    final long id;
+
+    final String title;
+
+    int messageCount;
+
+    SimulatedChat(int index, int messageCount) {
+        this.index = index;
+        this.id = -1009000000000L - index;
+        this.title = "Simulated chat %d".formatted(index + 1);
+        this.messageCount = messageCount;
+    }
+
+    /**
+     * TDLib message ids of server messages are multiples of 2^20.
+     */
+    static long messageId(int number) {
+        return (long) number << 20;
+    }
+
+    int messageNumber(long messageId) {
+        if ((messageId & ((1 << 20) - 1)) != 0) {
+            return 0;
+        }
+        long number = messageId >> 20;
+        return number > 0 && number <= messageCount ? (int) number : 0;
+    }
+
+    int fileId(int number, boolean thumbnail) {
+        return (index << 24) | (number << 1) | (thumbnail ? 1 : 0);
+    }
+
+    static int chatIndex(int fileId) {
+        return fileId >>> 24;
+    }
+
+    static int messageNumberOfFile(int fileId) {
+        return (fileId & 0xFFFFFF) >>> 1;
+    }
+
+    static boolean isThumbnail(int fileId) {
+        return (fileId & 1) == 1;
+    }
+
+    static Kind kind(int number) {
+        return Kind.values()[number % Kind.values().length];
+    }
+
+    /**
+     * The file with the id, which must belong to a message of this chat.
+     */
+    SimulatedFile newFile(int fileId, String uniqueIdPrefix, Path root, long maxFileSize) {
+        int number = messageNumberOfFile(fileId);
+        String uniqueId = "%s%x".formatted(uniqueIdPrefix, fileId);
+        if (isThumbnail(fileId)) {
+            return new SimulatedFile(fileId, uniqueId, 4 * 1024 + mix(fileId) % (16 * 1024),
+                    root.resolve("thumbnails").resolve("%d.jpg".formatted(fileId)));
+        }
+        Kind kind = kind(number);
+        long typicalSize = switch (kind) {
+            case PHOTO -> 2 * 1024 * 1024;
+            case AUDIO -> 10 * 1024 * 1024;
+            case VIDEO, DOCUMENT -> maxFileSize;
+        };
+        long size = MIN_FILE_SIZE + mix(fileId) % Math.max(1, Math.min(typicalSize, maxFileSize) - MIN_FILE_SIZE);
+        String directory = switch (kind) {
+            case PHOTO -> "photos";
+            case VIDEO -> "videos";
+            case AUDIO -> "music";
+            case DOCUMENT -> "documents";
+        };
+        return new SimulatedFile(fileId, uniqueId, size, root.resolve(directory).resolve(fileName(number, fileId)));
+    }
+
+    private String fileName(int number, int fileId) {
+        return switch (kind(number)) {
+            case PHOTO -> "%d.jpg".formatted(fileId);
+            case VIDEO -> "video_%d_%d.mp4".formatted(index + 1, number);
+            case AUDIO -> "track_%d_%d.mp3".formatted(index + 1, number);
+            case DOCUMENT -> "document_%d_%d.pdf".formatted(index + 1, number);
+        };
+    }
+
+    private static long mix(long value) {
+        long z = value * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 31)) * 0xBF58476D1CE4E5B9L;
+        return (z ^ (z >>> 29)) & Long.MAX_VALUE;
+    }
+
+    private String caption(int number) {
+        return "%s %d of %s".formatted(StrUtil.upperFirst(kind(number).name().toLowerCase()), number, title);
+    }
+
+    boolean matches(int number, String query, TdApi.SearchMessagesFilter filter) {
+        if (StrUtil.isNotBlank(query) && !caption(number).contains(query)) {
+            return false;
+        }
+        if (filter == null) {
+            return true;
+        }
+        Kind kind = kind(number);
+        return switch (filter.getConstructor()) {
+            case TdApi.SearchMessagesFilterEmpty.CONSTRUCTOR -> true;
+            case TdApi.SearchMessagesFilterPhotoAndVideo.CONSTRUCTOR -> kind == Kind.PHOTO || kind == Kind.VIDEO;
+            case TdApi.SearchMessagesFilterPhoto.CONSTRUCTOR -> kind == Kind.PHOTO;
+            case TdApi.SearchMessagesFilterVideo.CONSTRUCTOR -> kind == Kind.VIDEO;
+            case TdApi.SearchMessagesFilterAudio.CONSTRUCTOR -> kind == Kind.AUDIO;
+            case TdApi.SearchMessagesFilterDocument.CONSTRUCTOR -> kind == Kind.DOCUMENT;
+            default -> false;
+        };
+    }
+
+    TdApi.Message message(int number, IntFunction<SimulatedFile> files) {
+        TdApi.FormattedText caption = new TdApi.FormattedText(caption(number), new TdApi.TextEntity[0]);
+        TdApi.File file = files.apply(fileId(number, false)).toFile();
+        TdApi.Minithumbnail minithumbnail = new TdApi.Minithumbnail(40, 30, new byte[0]);
+        String fileName = fileName(number, file.id);
+        TdApi.MessageContent content = switch (kind(number)) {
+            case PHOTO -> new TdApi.MessagePhoto(new TdApi.Photo(false, minithumbnail,
+                    new TdApi.PhotoSize[]{new TdApi.PhotoSize("y", file, 1280, 960, new int[0])}),
+                    caption, false, false, false);
+            case VIDEO -> new TdApi.MessageVideo(new TdApi.Video(60 + number % 600, 1280, 720, fileName, "video/mp4",
+                    false, true, minithumbnail,
+                    new TdApi.Thumbnail(new TdApi.ThumbnailFormatJpeg(), 320, 180,
+                            files.apply(fileId(number, true)).toFile()),
+                    file),
+                    new TdApi.AlternativeVideo[0], null, 0, caption, false, false, false);
+            case AUDIO -> new TdApi.MessageAudio(new TdApi.Audio(120 + number % 300, "Track %d".formatted(number),
+                    title, fileName, "audio/mpeg", null, null, new TdApi.Thumbnail[0], file),
+                    caption);
+            case DOCUMENT -> new TdApi.MessageDocument(new TdApi.Document(fileName, "application/pdf", null, null, file),
+                    caption);
+        };
+
+        TdApi.Message message = new TdApi.Message();
+        message.id = messageId(number);
+        message.chatId = id;
+        message.senderId = new TdApi.MessageSenderChat(id);
+        message.isChannelPost = true;
+        message.canBeSaved = true;
+        message.date = START_DATE + number * 60;
+        message.content = content;
+        return message;
+    }
+
+    TdApi.Chat chat() {
+        TdApi.Chat chat = new TdApi.Chat();
+        chat.id = id;
+        chat.type = new TdApi.ChatTypeSupergroup(-id - 1000000000000L, true);
+        chat.title = title;
+        // the positions follow in UpdateChatPosition, like TDLib
+        chat.positions = new TdApi.ChatPosition[0];
+        chat.chatLists = new TdApi.ChatList[0];
+        return chat;
+    }
+
+    TdApi.ChatPosition position() {
+        return new TdApi.ChatPosition(new TdApi.ChatListMain(), (long) (MAX_CHATS - index) << 32, false, null);
+    }
+}
@@ -0,0 +1,113 @@
+package telegram.files.simulator;
+
+import org.drinkless.tdlib.TdApi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A remote file of the simulator and its local copy, which is written to disk as it downloads.
+ * <p>
+ * The content is derived from the unique id and the position, so a download resumed after a restart continues the
+ * same bytes and different files never share a head.
+ */
+class SimulatedFile {
+
+    private static final int CHUNK = 64 * 1024;
+
+    final int id;
+
+    final String uniqueId;
+
+    final long size;
+
+    final Path path;
+
+    private final long seed;
+
+    long downloadedSize;
+
+    boolean active;
+
+    // in the download list, for UpdateFileDownloads
+    boolean inDownloads;
+
+    SimulatedFile(int id, String uniqueId, long size, Path path) {
+        this.id = id;
+        this.uniqueId = uniqueId;
+        this.size = size;
+        this.path = path;
+        this.seed = uniqueId.hashCode() * 0x9E3779B97F4A7C15L;
+        try {
+            // a restart keeps what was downloaded, like TDLib
+            this.downloadedSize = Files.exists(path) ? Math.min(Files.size(path), size) : 0;
+        } catch (IOException e) {
+            this.downloadedSize = 0;
+        }
+    }
+
+    boolean isCompleted() {
+        return downloadedSize >= size;
+    }
+
+    /**
+     * Append up to bytes to the local copy.
+     *
+     * @return the number of bytes written
+     */
+    long download(long bytes) throws IOException {
+        long length = Math.min(bytes, size - downloadedSize);
+        if (length <= 0) {
+            return 0;
+        }
+        Files.createDirectories(path.getParent());
+        byte[] chunk = new byte[(int) Math.min(length, CHUNK)];
+        try (OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            long written = 0;
+            while (written < length) {
+                int n = (int) Math.min(chunk.length, length - written);
+                long position = downloadedSize + written;
+                for (int i = 0; i < n; i++) {
+                    chunk[i] = contentAt(position + i);
+                }
+                out.write(chunk, 0, n);
+                written += n;
+            }
+        }
+        downloadedSize += length;
+        return length;
+    }
+
+    private byte contentAt(long position) {
+        // SplitMix64 of the 8 byte block
+        long z = seed + (position >>> 3) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (byte) (z >>> ((position & 7) * 8));
+    }
+
+    void delete() throws IOException {
+        active = false;
+        inDownloads = false;
+        downloadedSize = 0;
+        Files.deleteIfExists(path);
+    }
+
+    TdApi.File toFile() {
+        boolean completed = isCompleted();
+        return new TdApi.File(id, size, size,
+                new TdApi.LocalFile(downloadedSize == 0 && !active ? "" : path.toString(),
+                        true,
+                        downloadedSize > 0,
+                        active && !completed,
+                        completed,
+                        0,
+                        downloadedSize,
+                        downloadedSize),
+                new TdApi.RemoteFile(Integer.toString(id), uniqueId, false, true, size));
+    }
+}
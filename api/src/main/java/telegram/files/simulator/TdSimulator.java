@@ -0,0 +1,470 @@
+package telegram.files.simulator;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import org.drinkless.tdlib.Client;
+import org.drinkless.tdlib.TdApi;
+import telegram.files.Config;
+import telegram.files.TdClient;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for TDLib, for load and soak tests without an account or libtdjni.
+ * <p>
+ * An account logs in as soon as it gets its parameters and sees {@link Settings#chats()} channels of synthetic media
+ * messages. It answers the requests of this application and streams the updates TDLib would send: chats while they
+ * load, {@code UpdateFile} and {@code UpdateFileDownloads} while files download and {@code UpdateNewMessage} for new
+ * messages. Downloads write real bytes under the database directory, the account's
+ * {@link Settings#downloadSpeed()} is shared by its active downloads.
+ * <p>
+ * Like the receiver thread of TDLib, one thread per account answers the requests and sends the updates, the state is
+ * only touched there.
+ */
+public class TdSimulator implements TdClient {
+
+    private static final Log log = LogFactory.get();
+
+    static final long TICK_MILLIS = 100;
+
+    private static final AtomicInteger threads = new AtomicInteger();
+
+    public record Settings(int chats, int messagesPerChat, long downloadSpeed, long maxFileSize, long newMessageInterval) {
+
+        public static Settings fromConfig() {
+            return new Settings(Config.TELEGRAM_SIMULATOR_CHATS,
+                    Config.TELEGRAM_SIMULATOR_MESSAGES,
+                    Config.TELEGRAM_SIMULATOR_DOWNLOAD_SPEED,
+                    Config.TELEGRAM_SIMULATOR_MAX_FILE_SIZE,
+                    Config.TELEGRAM_SIMULATOR_MESSAGE_INTERVAL);
+        }
+    }
+
+    private final Client.ResultHandler updateHandler;
+
+    private final Client.ExceptionHandler exceptionHandler;
+
+    private final Settings settings;
+
+    private final ScheduledExecutorService executor;
+
+    private final List<SimulatedChat> chats = new ArrayList<>();
+
+    private final Map<Integer, SimulatedFile> files = new HashMap<>();
+
+    // active downloads in the order they started
+    private final Set<SimulatedFile> downloading = new LinkedHashSet<>();
+
+    private final Map<Integer, List<Waiting>> waiting = new HashMap<>();
+
+    private Path databaseDirectory;
+
+    private long userId;
+
+    private boolean chatsLoaded;
+
+    private boolean closed;
+
+    private long receivedBytes;
+
+    private final int sinceDate = (int) (System.currentTimeMillis() / 1000);
+
+    private int nextChat;
+
+    private record Waiting(long prefixSize, Client.ResultHandler resultHandler) {
+    }
+
+    public TdSimulator(Client.ResultHandler updateHandler, Client.ExceptionHandler exceptionHandler, Settings settings) {
+        this.updateHandler = updateHandler;
+        this.exceptionHandler = exceptionHandler;
+        this.settings = settings;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("td-simulator-" + threads.incrementAndGet()).daemon().factory());
+        for (int i = 0; i < Math.min(settings.chats(), SimulatedChat.MAX_CHATS); i++) {
+            chats.add(new SimulatedChat(i, Math.min(settings.messagesPerChat(), SimulatedChat.MAX_MESSAGES)));
+        }
+        executor.execute(() -> update(new TdApi.UpdateAuthorizationState(new TdApi.AuthorizationStateWaitTdlibParameters())));
+    }
+
+    public static TdClient.Factory factory(Settings settings) {
+        return (updateHandler, exceptionHandler) -> new TdSimulator(updateHandler, exceptionHandler, settings);
+    }
+
+    @Override
+    public void send(TdApi.Function<?> query, Client.ResultHandler resultHandler) {
+        try {
+            executor.execute(() -> {
+                TdApi.Object result;
+                try {
+                    result = closed ? error(500, "Request aborted") : handle(query, resultHandler);
+                } catch (Exception e) {
+                    log.error("Simulator failed to handle %s".formatted(query.getClass().getSimpleName()), e);
+                    result = error(500, e.getMessage());
+                }
+                if (result != null) {
+                    reply(resultHandler, result);
+                }
+            });
+        } catch (RuntimeException e) {
+            // the executor is gone once the account is closed
+            reply(resultHandler, error(500, "Request aborted"));
+        }
+    }
+
+    /**
+     * @return the result, or null if it is sent later
+     */
+    private TdApi.Object handle(TdApi.Function<?> query, Client.ResultHandler resultHandler) throws IOException {
+        return switch (query) {
+            case TdApi.SetTdlibParameters parameters -> setTdlibParameters(parameters);
+            case TdApi.Close ignored -> close();
+            case TdApi.SetLogVerbosityLevel ignored -> ok();
+            case TdApi.SetLogStream ignored -> ok();
+            case TdApi.SetOption ignored -> ok();
+            case TdApi.TestNetwork ignored -> ok();
+            case TdApi.GetProxies ignored -> new TdApi.Proxies(new TdApi.Proxy[0]);
+            case TdApi.AddProxy proxy -> new TdApi.Proxy(1, proxy.server, proxy.port, 0, proxy.enable, proxy.type);
+            case TdApi.EditProxy proxy -> new TdApi.Proxy(proxy.proxyId, proxy.server, proxy.port, 0, proxy.enable, proxy.type);
+            case TdApi.DisableProxy ignored -> ok();
+            case TdApi.PingProxy ignored -> new TdApi.Seconds(0.05);
+            default -> databaseDirectory == null ? error(401, "Unauthorized") : handleAuthorized(query, resultHandler);
+        };
+    }
+
+    private TdApi.Object handleAuthorized(TdApi.Function<?> query, Client.ResultHandler resultHandler) throws IOException {
+        return switch (query) {
+            case TdApi.GetMe ignored -> getMe();
+            case TdApi.LoadChats loadChats -> loadChats(loadChats);
+            case TdApi.GetChat getChat -> chat(getChat.chatId).map(SimulatedChat::chat)
+                    .map(TdApi.Object.class::cast)
+                    .orElseGet(() -> error(400, "Chat not found"));
+            case TdApi.SearchChatMessages search -> searchChatMessages(search);
+            case TdApi.GetChatMessageCount count -> getChatMessageCount(count);
+            case TdApi.GetMessage getMessage -> message(getMessage.chatId, getMessage.messageId)
+                    .map(TdApi.Object.class::cast)
+                    .orElseGet(() -> error(404, "Not Found"));
+            case TdApi.GetMessages getMessages -> new TdApi.Messages(getMessages.messageIds.length,
+                    Arrays.stream(getMessages.messageIds)
+                            .mapToObj(messageId -> message(getMessages.chatId, messageId).orElse(null))
+                            .toArray(TdApi.Message[]::new));
+            case TdApi.GetMessageThread ignored -> error(400, "Message has no thread");
+            case TdApi.GetMessageLinkInfo ignored -> error(400, "Invalid message link");
+            case TdApi.GetFile getFile -> file(getFile.fileId)
+                    .map(file -> (TdApi.Object) file.toFile())
+                    .orElseGet(() -> error(404, "File not found"));
+            case TdApi.AddFileToDownloads add -> addFileToDownloads(add);
+            case TdApi.DownloadFile download -> downloadFile(download, resultHandler);
+            case TdApi.ToggleDownloadIsPaused toggle -> toggleDownloadIsPaused(toggle);
+            case TdApi.CancelDownloadFile cancel -> withFile(cancel.fileId, file -> {
+                stop(file);
+                updateFile(file);
+            });
+            case TdApi.RemoveFileFromDownloads remove -> withFile(remove.fileId, file -> {
+                file.inDownloads = false;
+                if (remove.deleteFromCache) {
+                    deleteFile(file);
+                }
+            });
+            case TdApi.DeleteFile delete -> withFile(delete.fileId, this::deleteFile);
+            case TdApi.GetNetworkStatistics ignored -> new TdApi.NetworkStatistics(sinceDate, new TdApi.NetworkStatisticsEntry[]{
+                    new TdApi.NetworkStatisticsEntryFile(null, new TdApi.NetworkTypeWiFi(), 0, receivedBytes)
+            });
+            default -> error(400, "Method is not supported by the simulator: %s".formatted(query.getClass().getSimpleName()));
+        };
+    }
+
+    private TdApi.Object setTdlibParameters(TdApi.SetTdlibParameters parameters) {
+        if (databaseDirectory != null) {
+            return error(400, "Unexpected setTdlibParameters");
+        }
+        databaseDirectory = Path.of(StrUtil.blankToDefault(parameters.databaseDirectory, Config.TELEGRAM_ROOT));
+        // the same directory is the same account after a restart
+        userId = 1_000_000_000L + (databaseDirectory.toAbsolutePath().toString().hashCode() & 0x7fffffffL);
+        executor.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        if (settings.newMessageInterval() > 0 && !chats.isEmpty()) {
+            executor.scheduleAtFixedRate(this::newMessage,
+                    settings.newMessageInterval(), settings.newMessageInterval(), TimeUnit.MILLISECONDS);
+        }
+        executor.execute(() -> update(new TdApi.UpdateAuthorizationState(new TdApi.AuthorizationStateReady())));
+        return ok();
+    }
+
+    private TdApi.Object close() {
+        closed = true;
+        update(new TdApi.UpdateAuthorizationState(new TdApi.AuthorizationStateClosing()));
+        executor.execute(() -> {
+            update(new TdApi.UpdateAuthorizationState(new TdApi.AuthorizationStateClosed()));
+            executor.shutdownNow();
+        });
+        return ok();
+    }
+
+    private TdApi.Object getMe() {
+        TdApi.User user = new TdApi.User();
+        user.id = userId;
+        user.firstName = "Simulated";
+        user.lastName = Long.toString(userId);
+        user.phoneNumber = "";
+        user.type = new TdApi.UserTypeRegular();
+        user.haveAccess = true;
+        return user;
+    }
+
+    private TdApi.Object loadChats(TdApi.LoadChats loadChats) {
+        if (chatsLoaded || loadChats.chatList == null || loadChats.chatList.getConstructor() != TdApi.ChatListMain.CONSTRUCTOR) {
+            return error(404, "Not Found");
+        }
+        chatsLoaded = true;
+        for (SimulatedChat chat : chats) {
+            update(new TdApi.UpdateNewChat(chat.chat()));
+            update(new TdApi.UpdateChatPosition(chat.id, chat.position()));
+        }
+        return ok();
+    }
+
+    private TdApi.Object searchChatMessages(TdApi.SearchChatMessages search) {
+        Optional<SimulatedChat> found = chat(search.chatId);
+        if (found.isEmpty()) {
+            return error(400, "Chat not found");
+        }
+        SimulatedChat chat = found.get();
+        // newest first, older than fromMessageId
+        int from = search.fromMessageId == 0 ? chat.messageCount : chat.messageNumber(search.fromMessageId) - 1;
+        int limit = Math.max(1, Math.min(search.limit, 100));
+        List<TdApi.Message> messages = new ArrayList<>();
+        for (int number = from; number > 0 && messages.size() < limit; number--) {
+            if (chat.matches(number, search.query, search.filter)) {
+                messages.add(chat.message(number, this::simulatedFile));
+            }
+        }
+        // like TDLib, the end is an empty page rather than a 0 offset
+        long nextFromMessageId = messages.isEmpty() ? 0 : messages.getLast().id;
+        return new TdApi.FoundChatMessages(count(chat, search.query, search.filter),
+                messages.toArray(TdApi.Message[]::new), nextFromMessageId);
+    }
+
+    private TdApi.Object getChatMessageCount(TdApi.GetChatMessageCount count) {
+        return chat(count.chatId)
+                .map(chat -> (TdApi.Object) new TdApi.Count(count(chat, null, count.filter)))
+                .orElseGet(() -> error(400, "Chat not found"));
+    }
+
+    private int count(SimulatedChat chat, String query, TdApi.SearchMessagesFilter filter) {
+        int count = 0;
+        for (int number = 1; number <= chat.messageCount; number++) {
+            if (chat.matches(number, query, filter)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private TdApi.Object addFileToDownloads(TdApi.AddFileToDownloads add) {
+        Optional<SimulatedFile> found = file(add.fileId);
+        if (found.isEmpty() || message(add.chatId, add.messageId).isEmpty()) {
+            return error(400, "Invalid file identifier");
+        }
+        SimulatedFile file = found.get();
+        file.inDownloads = true;
+        start(file);
+        updateFile(file);
+        return file.toFile();
+    }
+
+    private TdApi.Object downloadFile(TdApi.DownloadFile download, Client.ResultHandler resultHandler) {
+        Optional<SimulatedFile> found = file(download.fileId);
+        if (found.isEmpty()) {
+            return error(404, "File not found");
+        }
+        SimulatedFile file = found.get();
+        long prefixSize = download.limit == 0 ? file.size : Math.min(file.size, download.offset + download.limit);
+        start(file);
+        updateFile(file);
+        if (!download.synchronous || file.downloadedSize >= prefixSize) {
+            return file.toFile();
+        }
+        waiting.computeIfAbsent(file.id, k -> new ArrayList<>()).add(new Waiting(prefixSize, resultHandler));
+        return null;
+    }
+
+    private TdApi.Object toggleDownloadIsPaused(TdApi.ToggleDownloadIsPaused toggle) throws IOException {
+        return withFile(toggle.fileId, file -> {
+            if (toggle.isPaused) {
+                stop(file);
+            } else {
+                start(file);
+            }
+            updateFile(file);
+        });
+    }
+
+    private interface FileAction {
+        void accept(SimulatedFile file) throws IOException;
+    }
+
+    private TdApi.Object withFile(int fileId, FileAction action) throws IOException {
+        Optional<SimulatedFile> file = file(fileId);
+        if (file.isEmpty()) {
+            return error(404, "File not found");
+        }
+        action.accept(file.get());
+        return ok();
+    }
+
+    private void start(SimulatedFile file) {
+        if (!file.isCompleted()) {
+            file.active = true;
+            downloading.add(file);
+        }
+    }
+
+    private void stop(SimulatedFile file) {
+        file.active = false;
+        downloading.remove(file);
+        answerWaiting(file, true);
+    }
+
+    private void deleteFile(SimulatedFile file) throws IOException {
+        stop(file);
+        file.delete();
+        updateFile(file);
+    }
+
+    private void tick() {
+        if (closed) {
+            return;
+        }
+        if (!downloading.isEmpty()) {
+            long share = Math.max(1, settings.downloadSpeed() * TICK_MILLIS / 1000 / downloading.size());
+            Iterator<SimulatedFile> iterator = downloading.iterator();
+            while (iterator.hasNext()) {
+                SimulatedFile file = iterator.next();
+                try {
+                    receivedBytes += file.download(share);
+                } catch (IOException e) {
+                    log.error("Simulator failed to write %s: %s".formatted(file.path, e.getMessage()));
+                    file.active = false;
+                }
+                if (file.isCompleted() || !file.active) {
+                    file.active = false;
+                    iterator.remove();
+                }
+                updateFile(file);
+                answerWaiting(file, !file.active);
+            }
+        }
+
+        long totalSize = 0;
+        long downloadedSize = 0;
+        int totalCount = 0;
+        for (SimulatedFile file : files.values()) {
+            if (file.inDownloads) {
+                totalSize += file.size;
+                downloadedSize += file.downloadedSize;
+                totalCount++;
+            }
+        }
+        if (totalCount > 0) {
+            update(new TdApi.UpdateFileDownloads(totalSize, totalCount, downloadedSize));
+        }
+    }
+
+    private void answerWaiting(SimulatedFile file, boolean stopped) {
+        List<Waiting> waits = waiting.get(file.id);
+        if (waits == null) {
+            return;
+        }
+        waits.removeIf(wait -> {
+            if (file.downloadedSize >= wait.prefixSize()) {
+                reply(wait.resultHandler(), file.toFile());
+                return true;
+            }
+            if (stopped) {
+                reply(wait.resultHandler(), error(400, "Download was canceled"));
+                return true;
+            }
+            return false;
+        });
+        if (waits.isEmpty()) {
+            waiting.remove(file.id);
+        }
+    }
+
+    private void newMessage() {
+        if (closed) {
+            return;
+        }
+        SimulatedChat chat = chats.get(nextChat++ % chats.size());
+        if (chat.messageCount >= SimulatedChat.MAX_MESSAGES) {
+            return;
+        }
+        chat.messageCount++;
+        update(new TdApi.UpdateNewMessage(chat.message(chat.messageCount, this::simulatedFile)));
+    }
+
+    private Optional<SimulatedChat> chat(long chatId) {
+        return chats.stream().filter(chat -> chat.id == chatId).findFirst();
+    }
+
+    private Optional<TdApi.Message> message(long chatId, long messageId) {
+        return chat(chatId).flatMap(chat -> {
+            int number = chat.messageNumber(messageId);
+            return number == 0 ? Optional.empty() : Optional.of(chat.message(number, this::simulatedFile));
+        });
+    }
+
+    private Optional<SimulatedFile> file(int fileId) {
+        int index = SimulatedChat.chatIndex(fileId);
+        int number = SimulatedChat.messageNumberOfFile(fileId);
+        if (index >= chats.size() || number == 0 || number > chats.get(index).messageCount
+            || SimulatedChat.isThumbnail(fileId) && SimulatedChat.kind(number) != SimulatedChat.Kind.VIDEO) {
+            return Optional.empty();
+        }
+        return Optional.of(file(fileId, chats.get(index)));
+    }
+
+    private SimulatedFile simulatedFile(int fileId) {
+        return file(fileId, chats.get(SimulatedChat.chatIndex(fileId)));
+    }
+
+    private SimulatedFile file(int fileId, SimulatedChat chat) {
+        return files.computeIfAbsent(fileId, id -> chat.newFile(id, "sim%x_".formatted(userId), databaseDirectory,
+                settings.maxFileSize()));
+    }
+
+    private void updateFile(SimulatedFile file) {
+        update(new TdApi.UpdateFile(file.toFile()));
+    }
+
+    private void update(TdApi.Object update) {
+        updateHandler.onResult(update);
+    }
+
+    private void reply(Client.ResultHandler resultHandler, TdApi.Object result) {
+        if (resultHandler == null) {
+            return;
+        }
+        try {
+            resultHandler.onResult(result);
+        } catch (Throwable cause) {
+            if (exceptionHandler != null) {
+                exceptionHandler.onException(cause);
+            }
+        }
+    }
+
+    private static TdApi.Ok ok() {
+        return new TdApi.Ok();
+    }
+
+    private static TdApi.Error error(int code, String message) {
+        return new TdApi.Error(code, message);
+    }
+}
@@ -162,6 +162,28 @@ class AvgSpeedTest {
                 "Speed should be calculated correctly with large numbers");
     }
 
+    @Test
+    void testManyPoints() {
+        AvgSpeed avgSpeed = new AvgSpeed(100, 6);
+        long baseTime = System.currentTimeMillis();
+
+        // 100 bytes/sec, a point every 100 ms, more points than the initial ring holds
+        for (int i = 1; i <= 3000; i++) {
+            avgSpeed.update(10L * i, baseTime + 100L * i);
+        }
+
+        AvgSpeed.SpeedStats stats = avgSpeed.getSpeedStats();
+        assertEquals(100, stats.avgSpeed(), 1.0);
+        assertEquals(100, stats.medianSpeed(), 1.0);
+        assertEquals(100, stats.minSpeed(), 1.0);
+        assertEquals(100, stats.maxSpeed(), 1.0);
+
+        // all points leave the interval
+        avgSpeed.update(0L, baseTime + 100L * 3000 + TEST_INTERVAL * 1000L + 1);
+        assertEquals(0, avgSpeed.getSpeed());
+        assertEquals(0, avgSpeed.getMaxSpeed());
+    }
+
     @Test
     void shouldShowDifferentSpeedsOverTime() {
         // Given
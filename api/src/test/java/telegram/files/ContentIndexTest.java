@@ -0,0 +1,76 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import telegram.files.repository.FileRecord;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentIndexTest {
+
+    private static FileRecord completed(Path localPath) {
+        return completed("existing", localPath);
+    }
+
+    private static FileRecord completed(String uniqueId, Path localPath) {
+        return new FileRecord(1, uniqueId, 1, 1, 1, 1, 1, false, 3, 0, "video", "video/mp4", "video.mp4", null, null, null, null,
+                localPath.toString(), FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, 1L, null, 0, 0, 0);
+    }
+
+    @Test
+    void testIsEnabled() {
+        assertTrue(new ContentIndex(true, 10).isEnabled(10));
+        assertFalse(new ContentIndex(true, 10).isEnabled(9));
+        assertFalse(new ContentIndex(false, 10).isEnabled(10));
+    }
+
+    @Test
+    void testLinkNextToProbe(@TempDir Path tempDir) throws Exception {
+        Path existing = Files.write(Files.createDirectories(tempDir.resolve("downloads")).resolve("video.mp4"), new byte[]{1, 2, 3});
+        Path probeDirectory = Files.createDirectories(tempDir.resolve("videos"));
+        Files.write(probeDirectory.resolve("new.mp4"), new byte[]{1, 2, 3});
+
+        ContentIndex index = new ContentIndex(true, 1);
+        ContentIndex.Duplicate duplicate = new ContentIndex.Duplicate(completed(existing), "head", probeDirectory.resolve("probe_1").toString());
+
+        Path linked = index.link(duplicate, "new.mp4");
+        assertEquals(probeDirectory.resolve("new-1.mp4"), linked);
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(linked));
+        assertTrue(Files.exists(existing));
+        assertEquals(1, index.getStatistics().getLong("linked") + index.getStatistics().getLong("copied"));
+    }
+
+    @Test
+    void testLinkWithoutExtension(@TempDir Path tempDir) throws Exception {
+        Path existing = Files.write(tempDir.resolve("existing"), new byte[]{1, 2, 3});
+        Path probeDirectory = Files.createDirectories(tempDir.resolve("documents"));
+        Files.write(probeDirectory.resolve("README"), new byte[]{1, 2, 3});
+
+        ContentIndex index = new ContentIndex(true, 1);
+        ContentIndex.Duplicate duplicate = new ContentIndex.Duplicate(completed(existing), "head", probeDirectory.resolve("probe_1").toString());
+
+        assertEquals(probeDirectory.resolve("README-1"), index.link(duplicate, "README"));
+    }
+
+    @Test
+    void testSameHeadDifferentTail(@TempDir Path tempDir) throws Exception {
+        byte[] content = new byte[300 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        byte[] otherTail = content.clone();
+        otherTail[otherTail.length - 1] ^= 1;
+        Path probe = Files.write(tempDir.resolve("probe"), content);
+        FileRecord differentTail = completed("different", Files.write(tempDir.resolve("different"), otherTail));
+        FileRecord same = completed("same", Files.write(tempDir.resolve("same"), content));
+
+        ContentIndex index = new ContentIndex(true, 1);
+        assertNull(MessyUtils.await(index.findSameSample(List.of(differentTail), probe, content.length)));
+        assertEquals(1, index.getStatistics().getLong("sampleMismatches"));
+        assertEquals("same", MessyUtils.await(index.findSameSample(List.of(differentTail, same), probe, content.length)).uniqueId());
+    }
+}
@@ -55,6 +55,23 @@ public class DataVerticleMigrationTest {
                 })));
     }
 
+    @Test
+    @DisplayName("Test new database index initialization")
+    void testNewDatabaseIndexInitialization(Vertx vertx, VertxTestContext testContext) {
+        initializeEmptyDatabase(vertx, testContext)
+                .compose(v -> DataVerticle.pool.query(getIndexesQuery()).execute())
+                .onComplete(testContext.succeeding(result -> testContext.verify(() -> {
+                    Set<String> indexNames = IterUtil.toList(result).stream()
+                            .map(row -> row.getString("name"))
+                            .collect(Collectors.toSet());
+                    Assertions.assertTrue(indexNames.contains("idx_file_record_unique_id"));
+                    Assertions.assertTrue(indexNames.contains("idx_file_record_chat_message"));
+                    Assertions.assertTrue(indexNames.contains("idx_file_record_telegram_status"));
+                    Assertions.assertTrue(indexNames.contains("idx_file_record_media_album_id"));
+                    testContext.completeNow();
+                })));
+    }
+
     @Test
     @DisplayName("Test legacy database migration (pre-0.1.7, no version)")
     void testLegacyDatabaseMigration(Vertx vertx, VertxTestContext testContext) {
@@ -105,6 +122,22 @@ public class DataVerticleMigrationTest {
                 })));
     }
 
+    @Test
+    @DisplayName("Test index creation for an existing database")
+    void testOldVersionIndexCreation(Vertx vertx, VertxTestContext testContext) {
+        initializeOldVersionDatabase(vertx)
+                .compose(v -> vertx.deployVerticle(new DataVerticle()))
+                .compose(v -> DataVerticle.pool.query(getIndexesQuery()).execute())
+                .onComplete(testContext.succeeding(result -> testContext.verify(() -> {
+                    Set<String> indexNames = IterUtil.toList(result).stream()
+                            .map(row -> row.getString("name"))
+                            .collect(Collectors.toSet());
+                    // media_album_id is added by a migration, its index after it
+                    Assertions.assertTrue(indexNames.contains("idx_file_record_media_album_id"));
+                    testContext.completeNow();
+                })));
+    }
+
     private Future<Void> initializeEmptyDatabase(Vertx vertx, VertxTestContext testContext) {
         return vertx.deployVerticle(new DataVerticle())
                 .compose(id -> {
@@ -217,22 +250,39 @@ public class DataVerticleMigrationTest {
         return getColumnsQuery;
     }
 
+    private String getIndexesQuery() {
+        if (Config.isPostgres()) {
+            return """
+                    SELECT indexname as name FROM pg_indexes WHERE tablename = 'file_record'
+                    """;
+        } else if (Config.isMysql()) {
+            return """
+                    SELECT index_name as name FROM information_schema.statistics
+                    WHERE table_schema = DATABASE() AND table_name = 'file_record'
+                    """;
+        } else {
+            return """
+                    SELECT name FROM sqlite_master WHERE type = 'index' AND tbl_name = 'file_record'
+                    """;
+        }
+    }
+
     private String getTablesQuery() {
         String getTablesQuery;
         if (Config.isPostgres()) {
             getTablesQuery = """
                     SELECT table_name FROM information_schema.tables
-                    WHERE table_schema = 'public' AND table_name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record')
+                    WHERE table_schema = 'public' AND table_name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record', 'file_hash', 'file_content')
                     """;
         } else if (Config.isMysql()) {
             getTablesQuery = """
                     SELECT table_name FROM information_schema.tables
-                    WHERE table_schema = DATABASE() AND table_name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record')
+                    WHERE table_schema = DATABASE() AND table_name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record', 'file_hash', 'file_content')
                     """;
         } else {
             getTablesQuery = """
                     SELECT name FROM sqlite_master
-                    WHERE type='table' AND name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record')
+                    WHERE type='table' AND name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record', 'file_hash', 'file_content')
                     """;
         }
         return getTablesQuery;
@@ -6,15 +6,21 @@ import cn.hutool.log.Log;
 import cn.hutool.log.LogFactory;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
 import io.vertx.junit5.VertxExtension;
 import io.vertx.junit5.VertxTestContext;
 import io.vertx.sqlclient.SqlClient;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.jooq.lambda.tuple.Tuple2;
+import telegram.files.repository.FileContentRecord;
+import telegram.files.repository.FileHashRecord;
 import telegram.files.repository.FileRecord;
 import telegram.files.repository.SettingKey;
 import telegram.files.repository.TelegramRecord;
 
+import java.util.List;
+
 @ExtendWith(VertxExtension.class)
 public class DataVerticleTest {
 
@@ -148,6 +154,99 @@ public class DataVerticleTest {
                 })));
     }
 
+    @Test
+    @DisplayName("Test batch create file records")
+    void createAllIfNotExistTest(Vertx vertx, VertxTestContext testContext) {
+        FileRecord existing = new FileRecord(
+                1, "unique_id_1", 1, 1, 1, 1, 1, false, 1, 0, "photo", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
+        );
+        FileRecord fileRecord2 = new FileRecord(
+                2, "unique_id_2", 1, 1, 2, 1, 1, false, 1, 0, "photo", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", null, "extra", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
+        );
+        FileRecord fileRecord3 = new FileRecord(
+                3, "unique_id_3", 1, 1, 3, 0, 1, false, 1, 0, "video", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption3", "extra", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
+        );
+        DataVerticle.fileRepository.create(existing)
+                .compose(r -> DataVerticle.fileRepository.createAllIfNotExist(List.of(existing, fileRecord2, fileRecord3, fileRecord2)))
+                .compose(count -> {
+                    testContext.verify(() -> Assertions.assertEquals(2, count));
+                    return DataVerticle.fileRepository.getByUniqueId(fileRecord2.uniqueId());
+                })
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertNotNull(r);
+                    Assertions.assertEquals("caption", r.caption(), "Album caption should be filled in for new records");
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test get transferable files by keyset pages")
+    void getTransferableFilesTest(Vertx vertx, VertxTestContext testContext) {
+        FileRecord fileRecord1 = new FileRecord(
+                1, "unique_id_1", 1, 1, 1, 0, 1, false, 1, 0, "photo", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", "local_path", FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
+        );
+        FileRecord fileRecord2 = new FileRecord(
+                2, "unique_id_2", 1, 1, 2, 0, 1, false, 1, 0, "photo", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", "local_path", FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
+        );
+        FileRecord fileRecord3 = new FileRecord(
+                3, "unique_id_3", 1, 1, 2, 0, 1, false, 1, 0, "video", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", "local_path", FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
+        );
+        FileRecord transferred = new FileRecord(
+                4, "unique_id_4", 1, 1, 3, 0, 1, false, 1, 0, "video", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", "local_path", FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.completed.name(), 0, null, null, 0, 0, 0
+        );
+        DataVerticle.fileRepository.createAllIfNotExist(List.of(fileRecord1, fileRecord2, fileRecord3, transferred))
+                .compose(r -> DataVerticle.fileRepository.getTransferableFiles(1, 1, 0, null, 2))
+                .compose(page -> {
+                    testContext.verify(() -> Assertions.assertEquals(List.of("unique_id_1", "unique_id_2"),
+                            page.stream().map(FileRecord::uniqueId).toList()));
+                    FileRecord last = page.getLast();
+                    return DataVerticle.fileRepository.getTransferableFiles(1, 1, last.messageId(), last.uniqueId(), 2);
+                })
+                .onComplete(testContext.succeeding(page -> testContext.verify(() -> {
+                    Assertions.assertEquals(List.of("unique_id_3"), page.stream().map(FileRecord::uniqueId).toList(),
+                            "The next page should continue within the same message and skip transferred files");
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test replace file hash")
+    void fileHashTest(Vertx vertx, VertxTestContext testContext) {
+        DataVerticle.fileHashRepository.createOrUpdate(new FileHashRecord("/destination/file.mp4", 1, 1, "hash1"))
+                .compose(r -> DataVerticle.fileHashRepository.createOrUpdate(new FileHashRecord("/destination/file.mp4", 2, 2, "hash2")))
+                .compose(r -> DataVerticle.fileHashRepository.getByPath("/destination/file.mp4"))
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(new FileHashRecord("/destination/file.mp4", 2, 2, "hash2"), r);
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test get content candidates by size")
+    void contentCandidatesTest(Vertx vertx, VertxTestContext testContext) {
+        FileRecord completed = new FileRecord(
+                1, "completed", 1, 1, 1, 1, 1, false, 100, 0, "video", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", "/downloads/completed.mp4", FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, 1L, null, 0, 0, 0
+        );
+        FileRecord idle = new FileRecord(
+                2, "idle", 1, 1, 2, 1, 1, false, 100, 0, "video", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
+        );
+        DataVerticle.fileRepository.create(completed)
+                .compose(r -> DataVerticle.fileRepository.create(idle))
+                .compose(r -> DataVerticle.fileRepository.createContent(new FileContentRecord("completed", 100, "old")))
+                .compose(r -> DataVerticle.fileRepository.createContent(new FileContentRecord("completed", 100, "head")))
+                .compose(r -> DataVerticle.fileRepository.createContent(new FileContentRecord("idle", 100, "head")))
+                .compose(r -> Future.all(DataVerticle.fileRepository.getContentCandidates(100),
+                        DataVerticle.fileRepository.getContentCandidates(101)))
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    List<Tuple2<FileRecord, String>> candidates = r.resultAt(0);
+                    Assertions.assertEquals(1, candidates.size());
+                    Assertions.assertEquals("completed", candidates.getFirst().v1.uniqueId());
+                    Assertions.assertEquals("head", candidates.getFirst().v2);
+                    Assertions.assertTrue(r.<List<?>>resultAt(1).isEmpty());
+                    testContext.completeNow();
+                })));
+    }
+
     @Test
     @DisplayName("Test update file download status")
     void updateFileDownloadStatusTest(Vertx vertx, VertxTestContext testContext) {
@@ -175,6 +274,53 @@ public class DataVerticleTest {
                 })));
     }
 
+    @Test
+    @DisplayName("Test coalesce file download status updates")
+    void coalesceFileDownloadStatusTest(Vertx vertx, VertxTestContext testContext) {
+        FileRecord fileRecord = new FileRecord(
+                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, "type", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
+        );
+        DataVerticle.fileRepository.create(fileRecord)
+                .compose(r -> {
+                    Future<JsonObject> downloading = DataVerticle.fileRepository.updateDownloadStatus(r, 2, null, FileRecord.DownloadStatus.downloading, null);
+                    Future<JsonObject> paused = DataVerticle.fileRepository.getByUniqueId(r.uniqueId())
+                            .compose(pending -> {
+                                testContext.verify(() -> Assertions.assertEquals(FileRecord.DownloadStatus.downloading.name(), pending.downloadStatus()));
+                                return DataVerticle.fileRepository.updateDownloadStatus(pending, 2, null, FileRecord.DownloadStatus.paused, null);
+                            });
+                    Future<JsonObject> completed = paused
+                            .compose(v -> DataVerticle.fileRepository.updateDownloadStatus(2, r.uniqueId(), "local_path", FileRecord.DownloadStatus.completed, 1L));
+                    return Future.all(downloading, paused, completed);
+                })
+                .compose(r -> DataVerticle.fileRepository.getByPrimaryKey(2, fileRecord.uniqueId()))
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(FileRecord.DownloadStatus.completed.name(), r.downloadStatus());
+                    Assertions.assertEquals("local_path", r.localPath());
+                    Assertions.assertEquals(1L, r.completionDate());
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test reconcile download slots")
+    void reconcileDownloadSlotsTest(Vertx vertx, VertxTestContext testContext) {
+        FileRecord fileRecord = new FileRecord(
+                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, "video", "mime_type", "file_name", "thumbnail", "thumbnailUniqueId", "caption", "extra", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0
+        );
+        DataVerticle.fileRepository.create(fileRecord)
+                .compose(r -> DataVerticle.fileRepository.updateDownloadStatus(r, 2, null, FileRecord.DownloadStatus.downloading, null))
+                .compose(r -> DownloadSlots.INSTANCE.reconcile(fileRecord.telegramId()))
+                .compose(r -> {
+                    testContext.verify(() -> Assertions.assertEquals(1, DownloadSlots.INSTANCE.downloading(fileRecord.telegramId())));
+                    return DataVerticle.fileRepository.updateDownloadStatus(2, fileRecord.uniqueId(), "local_path", FileRecord.DownloadStatus.completed, 1L);
+                })
+                .compose(r -> DownloadSlots.INSTANCE.reconcile(fileRecord.telegramId()))
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(0, DownloadSlots.INSTANCE.downloading(fileRecord.telegramId()));
+                    testContext.completeNow();
+                })));
+    }
+
     @Test
     @DisplayName("Test update file transfer status")
     void updateFileTransferStatusTest(Vertx vertx, VertxTestContext testContext) {
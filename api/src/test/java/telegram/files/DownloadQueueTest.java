@@ -0,0 +1,78 @@
+package telegram.files;
+
+import org.drinkless.tdlib.TdApi;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadQueueTest {
+
+    private static TdApi.Message document(long chatId, long messageId, long size) {
+        TdApi.File file = new TdApi.File();
+        file.id = (int) messageId;
+        file.size = size;
+        TdApi.Document document = new TdApi.Document();
+        document.document = file;
+        TdApi.MessageDocument content = new TdApi.MessageDocument();
+        content.document = document;
+        TdApi.Message message = new TdApi.Message();
+        message.chatId = chatId;
+        message.id = messageId;
+        message.content = content;
+        return message;
+    }
+
+    private static List<Long> messageIds(List<DownloadQueue.Item> items) {
+        return items.stream().map(item -> item.message().id).toList();
+    }
+
+    @Test
+    void testLiveBeforeHistory() {
+        DownloadQueue queue = new DownloadQueue(Map.of(), 0);
+        queue.add(1, document(1, 1, 100), true);
+        queue.add(1, document(1, 2, 100), true);
+        queue.add(1, document(2, 3, 100), false);
+
+        assertEquals(List.of(3L, 1L, 2L), messageIds(queue.poll(1, 3)));
+        assertEquals(0, queue.size(1));
+        assertFalse(queue.hasHistorical(1));
+    }
+
+    @Test
+    void testChatFairness() {
+        DownloadQueue queue = new DownloadQueue(Map.of(), 0);
+        queue.add(1, document(1, 1, 100), true);
+        queue.add(1, document(1, 2, 100), true);
+        queue.add(1, document(1, 3, 100), true);
+        queue.add(1, document(2, 4, 100), true);
+        queue.add(1, document(2, 5, 100), true);
+
+        assertEquals(List.of(1L, 4L, 2L, 5L, 3L), messageIds(queue.poll(1, 5)));
+    }
+
+    @Test
+    void testSizeWeight() {
+        DownloadQueue queue = new DownloadQueue(Map.of(), 1);
+        queue.add(1, document(1, 1, 1_000_000), true);
+        queue.add(1, document(1, 2, 1_000), true);
+
+        assertEquals(List.of(2L, 1L), messageIds(queue.poll(1, 2)));
+    }
+
+    @Test
+    void testRemoveChatAndStatistics() {
+        DownloadQueue queue = new DownloadQueue(DownloadQueue.parseWeights("photo:2, file:1"), 0);
+        queue.add(1, document(1, 1, 100), true);
+        queue.add(1, document(2, 2, 100), false);
+        queue.removeChat(1, 1);
+
+        assertEquals(1, queue.size(1));
+        assertFalse(queue.hasHistorical(1));
+        queue.poll(1, 1);
+        assertEquals(1L, queue.getStatistics().getJsonObject("1").getLong("dispatched"));
+        assertEquals(0, queue.getStatistics().getJsonObject("1").getInteger("depth"));
+    }
+}
@@ -0,0 +1,119 @@
+package telegram.files;
+
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import org.drinkless.tdlib.TdApi;
+import org.junit.jupiter.api.Test;
+import telegram.files.repository.FileRecord;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class EventFanoutTest {
+
+    private static ServerWebSocket webSocket(AtomicBoolean full) {
+        ServerWebSocket ws = mock(ServerWebSocket.class);
+        when(ws.writeQueueFull()).thenAnswer(invocation -> full.get());
+        return ws;
+    }
+
+    private static EventPayload fileEvent(int fileId) {
+        TdApi.File file = new TdApi.File();
+        file.id = fileId;
+        return EventPayload.build(EventPayload.TYPE_FILE, new TdApi.UpdateFile(file));
+    }
+
+    @Test
+    void testCoalesceKey() {
+        assertEquals("file:1:7", EventFanout.coalesceKey(1L, fileEvent(7)));
+        assertEquals("downloads:1", EventFanout.coalesceKey(1L, EventPayload.build(EventPayload.TYPE_FILE_DOWNLOAD, new TdApi.UpdateFileDownloads())));
+        assertNull(EventFanout.coalesceKey(1L, EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject())));
+    }
+
+    @Test
+    void testEncodePayload() {
+        JsonObject encoded = new JsonObject(Json.encode(EventPayload.build(EventPayload.TYPE_FILE_STATUS,
+                JsonObject.of("uniqueId", "u", "downloadStatus", FileRecord.DownloadStatus.completed))));
+        assertEquals(EventPayload.TYPE_FILE_STATUS, encoded.getInteger("type"));
+        assertEquals(JsonObject.of("uniqueId", "u", "downloadStatus", "completed"), encoded.getJsonObject("data"));
+        assertEquals(7, new JsonObject(Json.encode(fileEvent(7))).getJsonObject("data").getJsonObject("file").getInteger("id"));
+    }
+
+    @Test
+    void testPublishToBoundAndUnboundSessions() {
+        AtomicBoolean full = new AtomicBoolean();
+        ServerWebSocket bound = webSocket(full);
+        ServerWebSocket other = webSocket(full);
+        ServerWebSocket unbound = webSocket(full);
+        Object account = new Object();
+
+        EventFanout fanout = new EventFanout();
+        fanout.connect("bound", bound, false);
+        fanout.connect("other", other, false);
+        fanout.connect("unbound", unbound, true);
+        fanout.bind("bound", account);
+        fanout.bind("other", new Object());
+        fanout.bind("unbound", account);
+
+        fanout.publish(account, null, "event");
+        verify(bound).writeTextMessage("event");
+        verify(unbound, times(1)).writeTextMessage("event");
+        verify(other, never()).writeTextMessage(anyString());
+
+        fanout.disconnect("bound");
+        fanout.publish(account, null, "after");
+        verify(bound, never()).writeTextMessage("after");
+        verify(unbound).writeTextMessage("after");
+    }
+
+    @Test
+    void testCoalesceWhileQueueFull() {
+        AtomicBoolean full = new AtomicBoolean(true);
+        ServerWebSocket ws = webSocket(full);
+        Object account = new Object();
+        EventFanout fanout = new EventFanout();
+        fanout.connect("session", ws, false);
+        fanout.bind("session", account);
+
+        fanout.publish(account, "file:1:1", "progress-1");
+        fanout.publish(account, null, "status");
+        fanout.publish(account, "file:1:1", "progress-2");
+        assertEquals(2, fanout.getPendingSize("session"));
+        verify(ws, never()).writeTextMessage(anyString());
+
+        full.set(false);
+        fanout.publish(account, null, "next");
+        var order = inOrder(ws);
+        order.verify(ws).writeTextMessage("progress-2");
+        order.verify(ws).writeTextMessage("status");
+        order.verify(ws).writeTextMessage("next");
+        verify(ws, never()).writeTextMessage("progress-1");
+        assertEquals(0, fanout.getPendingSize("session"));
+    }
+
+    @Test
+    void testDropProgressFirstWhenBehind() {
+        AtomicBoolean full = new AtomicBoolean(true);
+        ServerWebSocket ws = webSocket(full);
+        Object account = new Object();
+        EventFanout fanout = new EventFanout();
+        fanout.connect("session", ws, false);
+        fanout.bind("session", account);
+
+        fanout.publish(account, "file:1:1", "progress");
+        for (int i = 0; i < EventFanout.MAX_PENDING; i++) {
+            fanout.publish(account, null, "status-" + i);
+        }
+        assertEquals(EventFanout.MAX_PENDING, fanout.getPendingSize("session"));
+
+        full.set(false);
+        fanout.publish(account, null, "last");
+        verify(ws, never()).writeTextMessage("progress");
+        verify(ws, never()).writeTextMessage("status-0");
+        verify(ws).writeTextMessage("status-1");
+        verify(ws).writeTextMessage("last");
+    }
+}
@@ -0,0 +1,52 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileHasherTest {
+
+    private static byte[] content(int size, int seed) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + seed);
+        }
+        return content;
+    }
+
+    @Test
+    void testHashAcrossChunks(@TempDir Path tempDir) throws Exception {
+        byte[] content = content(3 * 1024 * 1024 + 11, 0);
+        Path file = Files.write(tempDir.resolve("file.bin"), content);
+
+        String expected = HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(content));
+        assertEquals(expected, FileHasher.hash(file));
+        assertEquals(expected, FileHasher.INSTANCE.hashAsync(file).join());
+    }
+
+    @Test
+    void testSameContent(@TempDir Path tempDir) throws IOException {
+        byte[] content = content(512 * 1024, 0);
+        Path file = Files.write(tempDir.resolve("file.bin"), content);
+        Path same = Files.write(tempDir.resolve("same.bin"), content);
+
+        // only the middle differs, so the head and tail sample matches and the full hash decides
+        byte[] middle = content.clone();
+        middle[256 * 1024] ^= 1;
+        Path differentMiddle = Files.write(tempDir.resolve("middle.bin"), middle);
+        Path differentSize = Files.write(tempDir.resolve("size.bin"), content(512 * 1024 + 1, 0));
+
+        FileHasher hasher = new FileHasher(1);
+        assertTrue(hasher.isSameContent(file, same));
+        assertEquals(FileHasher.sampleHash(file, content.length), FileHasher.sampleHash(differentMiddle, content.length));
+        assertFalse(hasher.isSameContent(file, differentMiddle));
+        assertFalse(hasher.isSameContent(file, differentSize));
+    }
+}
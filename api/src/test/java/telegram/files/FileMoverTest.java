@@ -0,0 +1,55 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileMoverTest {
+
+    @Test
+    void testMoveOnSameFileSystem(@TempDir Path tempDir) throws IOException {
+        Path source = Files.writeString(tempDir.resolve("source.txt"), "test content");
+        Path target = tempDir.resolve("a").resolve("b").resolve("target.txt");
+
+        FileMover.Moved moved = FileMover.move(source, target, false);
+
+        assertFalse(moved.copied());
+        assertEquals(12, moved.bytes());
+        assertTrue(moved.bytesPerSecond() > 0);
+        assertFalse(Files.exists(source));
+        assertEquals("test content", Files.readString(target));
+    }
+
+    @Test
+    void testMoveWithoutOverwrite(@TempDir Path tempDir) throws IOException {
+        Path source = Files.writeString(tempDir.resolve("source.txt"), "new content");
+        Path target = Files.writeString(tempDir.resolve("target.txt"), "existing content");
+
+        assertThrows(FileAlreadyExistsException.class, () -> FileMover.move(source, target, false));
+        assertTrue(Files.exists(source));
+
+        FileMover.move(source, target, true);
+        assertEquals("new content", Files.readString(target));
+    }
+
+    @Test
+    void testStreamedCopy(@TempDir Path tempDir) throws IOException {
+        byte[] content = new byte[3 * 1024 * 1024 + 7];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Path source = Files.write(tempDir.resolve("source.bin"), content);
+        Path target = Files.writeString(tempDir.resolve("target.bin"), "existing content");
+
+        FileMover.copy(source, target);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertFalse(Files.exists(tempDir.resolve("target.bin.part")), "The partial file should be renamed over the target");
+    }
+}
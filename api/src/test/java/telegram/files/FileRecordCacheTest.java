@@ -0,0 +1,90 @@
+package telegram.files;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.impl.FileRecordCache;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileRecordCacheTest {
+    private FileRecordCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new FileRecordCache(2);
+    }
+
+    private static FileRecord record(String uniqueId, long messageId, long mediaAlbumId) {
+        return new FileRecord(1, uniqueId, 1, 1, messageId, mediaAlbumId, 1, false, 1, 0, "photo", "mime_type", "file_name", null, null, null, null, null,
+                FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null, null, 0, 0, 0);
+    }
+
+    @Test
+    void testHitAndMiss() {
+        assertNull(cache.get("a"));
+        cache.put(record("a", 1, 0), cache.version());
+        assertNotNull(cache.get("a"));
+
+        assertEquals(1L, cache.getStatistics().getLong("hits"));
+        assertEquals(1L, cache.getStatistics().getLong("misses"));
+    }
+
+    @Test
+    void testEvictLeastRecentlyUsed() {
+        cache.put(record("a", 1, 0), cache.version());
+        cache.put(record("b", 2, 0), cache.version());
+        cache.get("a");
+        cache.put(record("c", 3, 0), cache.version());
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1L, cache.getStatistics().getLong("evictions"));
+    }
+
+    @Test
+    void testStaleReadIsNotCached() {
+        long readVersion = cache.version();
+        cache.invalidate("a");
+        cache.put(record("a", 1, 0), readVersion);
+
+        assertNull(cache.get("a"), "Record read before an invalidation should not be cached");
+    }
+
+    @Test
+    void testWriteOfOtherRecordDoesNotBlockCaching() {
+        long readVersion = cache.version();
+        cache.refresh("b", r -> r);
+        cache.put(record("a", 1, 0), readVersion);
+        assertNotNull(cache.get("a"));
+
+        cache.invalidateByMediaAlbumId(10);
+        cache.put(record("c", 3, 10), readVersion);
+        assertNull(cache.get("c"), "Record read before its album was written should not be cached");
+
+        cache.clear();
+        cache.put(record("a", 1, 0), readVersion);
+        assertNull(cache.get("a"), "Record read before a clear should not be cached");
+    }
+
+    @Test
+    void testRefresh() {
+        cache.put(record("a", 1, 0), cache.version());
+        cache.refresh("a", r -> r.withDownloadState(2, "path", FileRecord.DownloadStatus.completed.name(), 1L));
+
+        FileRecord refreshed = cache.get("a");
+        assertEquals(2, refreshed.id());
+        assertEquals("path", refreshed.localPath());
+        assertTrue(refreshed.isDownloadStatus(FileRecord.DownloadStatus.completed));
+    }
+
+    @Test
+    void testInvalidateByMediaAlbumId() {
+        cache.put(record("a", 1, 10), cache.version());
+        cache.put(record("b", 2, 20), cache.version());
+        cache.invalidateByMediaAlbumId(10);
+
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+    }
+}
@@ -0,0 +1,35 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.junit5.Checkpoint;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import telegram.files.repository.FileRecord;
+
+@ExtendWith(VertxExtension.class)
+class FileStatusEventTest {
+
+    @Test
+    void testPublishToStatusAddresses(Vertx vertx, VertxTestContext testContext) {
+        LocalCodec.register(vertx, FileStatusEvent.class);
+        Checkpoint changed = testContext.checkpoint(3);
+        Checkpoint downloadCompleted = testContext.checkpoint();
+        Checkpoint transferCompleted = testContext.checkpoint();
+        vertx.eventBus().<FileStatusEvent>consumer(EventEnum.FILE_STATUS_CHANGED.address(), message -> changed.flag());
+        vertx.eventBus().<FileStatusEvent>consumer(EventEnum.FILE_DOWNLOAD_COMPLETED.address(), message -> testContext.verify(() -> {
+            Assertions.assertEquals("completed", message.body().uniqueId());
+            downloadCompleted.flag();
+        }));
+        vertx.eventBus().<FileStatusEvent>consumer(EventEnum.FILE_TRANSFER_COMPLETED.address(), message -> testContext.verify(() -> {
+            Assertions.assertEquals("transferred", message.body().uniqueId());
+            transferCompleted.flag();
+        }));
+
+        FileStatusEvent.download(1, 1, "downloading", FileRecord.DownloadStatus.downloading, null).publish(vertx.eventBus());
+        FileStatusEvent.download(1, 2, "completed", FileRecord.DownloadStatus.completed, "/a").publish(vertx.eventBus());
+        FileStatusEvent.transfer(1, 3, "transferred", FileRecord.TransferStatus.completed, "/b").publish(vertx.eventBus());
+    }
+}
@@ -0,0 +1,80 @@
+package telegram.files;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import org.drinkless.tdlib.TdApi;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryScannerTest {
+
+    @Test
+    void testBoundedConcurrency() {
+        HistoryScanner scanner = new HistoryScanner("test", 2, 10_000);
+        List<Promise<HistoryScanner.Step>> pages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            scanner.submit(new HistoryScanner.Task("chat" + i, 1, () -> {
+                Promise<HistoryScanner.Step> page = Promise.promise();
+                pages.add(page);
+                return page.future();
+            }));
+        }
+
+        assertEquals(2, scanner.running(1));
+        assertEquals(1, scanner.pending(1));
+
+        pages.getFirst().complete(HistoryScanner.Step.DONE);
+        assertEquals(2, scanner.running(1));
+        assertEquals(0, scanner.pending(1));
+        assertEquals(3, pages.size());
+    }
+
+    @Test
+    void testResubmitWhileRunningIsIgnored() {
+        HistoryScanner scanner = new HistoryScanner("test", 2, 10_000);
+        AtomicInteger pages = new AtomicInteger();
+        Promise<HistoryScanner.Step> page = Promise.promise();
+        HistoryScanner.Task task = new HistoryScanner.Task("chat", 2, () -> {
+            pages.incrementAndGet();
+            return page.future();
+        });
+        scanner.submit(task);
+        scanner.submit(task);
+
+        assertEquals(1, scanner.running(2));
+        assertEquals(0, scanner.pending(2));
+        assertEquals(1, pages.get());
+    }
+
+    @Test
+    void testPagesUntilDone() {
+        HistoryScanner scanner = new HistoryScanner("test", 1, 10_000);
+        AtomicInteger cursor = new AtomicInteger();
+        scanner.submit(new HistoryScanner.Task("chat", 3, () -> Future.succeededFuture(
+                cursor.incrementAndGet() < 5 ? HistoryScanner.Step.NEXT : HistoryScanner.Step.DONE)));
+
+        assertEquals(5, cursor.get());
+        assertEquals(0, scanner.running(3));
+    }
+
+    @Test
+    void testFloodWaitYields() {
+        HistoryScanner scanner = new HistoryScanner("test", 1, 10_000);
+        AtomicInteger pages = new AtomicInteger();
+        HistoryScanner.Task task = new HistoryScanner.Task("chat", 4, () -> pages.incrementAndGet() == 1
+                ? Future.failedFuture(new TelegramRunException(new TdApi.Error(429, "Too Many Requests: retry after 30")))
+                : Future.succeededFuture(HistoryScanner.Step.DONE));
+        scanner.submit(task);
+
+        assertEquals(1, pages.get());
+        assertEquals(0, scanner.running(4));
+        // the limiter of the account holds back the pages during the wait, the scanner keeps no state of its own
+        scanner.submit(task);
+        assertEquals(2, pages.get());
+    }
+}
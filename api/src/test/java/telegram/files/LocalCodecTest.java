@@ -0,0 +1,24 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+@ExtendWith(VertxExtension.class)
+class LocalCodecTest {
+
+    @Test
+    void testConsumerGetsSentObject(Vertx vertx, VertxTestContext testContext) {
+        LocalCodec.register(vertx, TelegramEvent.class);
+        TelegramEvent event = new TelegramEvent(1L, EventPayload.build(EventPayload.TYPE_FILE_STATUS, JsonObject.of("uniqueId", "u")));
+        vertx.eventBus().<TelegramEvent>consumer("local-codec-test", message -> testContext.verify(() -> {
+            Assertions.assertSame(event, message.body());
+            testContext.completeNow();
+        }));
+        vertx.eventBus().publish("local-codec-test", event);
+    }
+}
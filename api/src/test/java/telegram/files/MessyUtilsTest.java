@@ -1,5 +1,7 @@
 package telegram.files;
 
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -8,6 +10,8 @@ import java.io.File;
 import java.io.FileWriter;
 import java.nio.file.Files;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -79,6 +83,23 @@ class MessyUtilsTest {
                 "MD5 comparison should return false if one of the files is missing!");
     }
 
+    @Test
+    void testMapConcurrently() {
+        List<Promise<Integer>> inFlight = new ArrayList<>();
+        Future<List<Integer>> future = MessyUtils.mapConcurrently(List.of(1, 2, 3, 4, 5), 2, i -> {
+            Promise<Integer> promise = Promise.promise();
+            inFlight.add(promise);
+            return promise.future().map(r -> i * 10);
+        });
+        assertEquals(2, inFlight.size(), "At most 2 items should be in flight");
+
+        for (int i = 0; i < inFlight.size(); i++) {
+            inFlight.get(i).complete(0);
+        }
+        assertTrue(future.succeeded());
+        assertEquals(List.of(10, 20, 30, 40, 50), future.result());
+    }
+
     private String calculateExpectedMD5(File file) throws Exception {
         MessageDigest md = MessageDigest.getInstance("MD5");
         byte[] fileBytes = Files.readAllBytes(file.toPath());
@@ -0,0 +1,111 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.metrics.MetricsOptions;
+import io.vertx.jdbcclient.JDBCConnectOptions;
+import io.vertx.jdbcclient.JDBCPool;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.PoolOptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testScrape() {
+        Metrics metrics = new Metrics();
+        metrics.counter("requests_total", "Requests.", "path", "/files").add(3);
+        metrics.counter("requests_total", "Requests.", "path", "/files").increment();
+        metrics.counter("requests_total", "Requests.", "path", "a \"b\"").increment();
+        metrics.gauge("queue_depth", "Queue depth.", () -> 7);
+        metrics.gauge("free_slots", "Free slots.", "telegram_id", () -> Map.of(1L, 2));
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# TYPE requests_total counter\n"));
+        assertTrue(text.contains("requests_total{path=\"/files\"} 4\n"));
+        assertTrue(text.contains("requests_total{path=\"a \\\"b\\\"\"} 1\n"));
+        assertTrue(text.contains("queue_depth 7\n"));
+        assertTrue(text.contains("free_slots{telegram_id=\"1\"} 2\n"));
+        // sorted by name
+        assertTrue(text.indexOf("free_slots") < text.indexOf("queue_depth"));
+    }
+
+    @Test
+    void testTimer() {
+        Metrics metrics = new Metrics();
+        Metrics.Timer timer = metrics.timer("request_duration_seconds", "Duration.", "function", "GetFile");
+        timer.record(TimeUnit.MICROSECONDS.toNanos(500));
+        timer.record(TimeUnit.MILLISECONDS.toNanos(20));
+        timer.record(TimeUnit.SECONDS.toNanos(60));
+        assertEquals(3, timer.count());
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# TYPE request_duration_seconds histogram\n"));
+        assertTrue(text.contains("request_duration_seconds_bucket{function=\"GetFile\",le=\"0.001\"} 1\n"));
+        assertTrue(text.contains("request_duration_seconds_bucket{function=\"GetFile\",le=\"0.025\"} 2\n"));
+        assertTrue(text.contains("request_duration_seconds_bucket{function=\"GetFile\",le=\"30.0\"} 2\n"));
+        assertTrue(text.contains("request_duration_seconds_bucket{function=\"GetFile\",le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("request_duration_seconds_count{function=\"GetFile\"} 3\n"));
+        assertTrue(text.contains("request_duration_seconds_sum{function=\"GetFile\"} 60.0205\n"));
+    }
+
+    @Test
+    void testTypeConflict() {
+        Metrics metrics = new Metrics();
+        metrics.counter("files", "Files.");
+        assertThrows(IllegalArgumentException.class, () -> metrics.timer("files", "Files."));
+        assertThrows(IllegalArgumentException.class, () -> metrics.counter("files", "Files.", "type"));
+    }
+
+    @Test
+    void testPoolMetrics() {
+        Metrics metrics = new Metrics();
+        Vertx vertx = Vertx.builder()
+                .with(new VertxOptions().setMetricsOptions(new MetricsOptions().setEnabled(true)))
+                .withMetrics(options -> metrics.vertxMetrics())
+                .build();
+        try {
+            Pool pool = JDBCPool.pool(vertx,
+                    new JDBCConnectOptions().setJdbcUrl("jdbc:sqlite:" + tempDir.resolve("metrics.db")),
+                    new PoolOptions().setMaxSize(2).setName("pool-test"));
+            for (int i = 0; i < 3; i++) {
+                MessyUtils.await(pool.query("SELECT 1").execute());
+            }
+            MessyUtils.await(pool.close());
+
+            String text = metrics.scrape();
+            assertTrue(text.contains("sql_pool_wait_seconds_count{pool=\"pool-test\"} 3\n"), text);
+            assertTrue(text.contains("sql_pool_in_use{pool=\"pool-test\"} 0\n"), text);
+            assertTrue(text.contains("sql_pool_max_size{pool=\"pool-test\"} 2\n"), text);
+        } finally {
+            MessyUtils.await(vertx.close());
+        }
+    }
+
+    @Test
+    void testEventLoopProbe() {
+        Metrics metrics = new Metrics();
+        Vertx vertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(4));
+        try {
+            MessyUtils.await(metrics.startEventLoopProbe(vertx, 4));
+
+            // one timer per loop, created by the probe on its loop
+            String text = metrics.scrape();
+            for (int i = 0; i < 4; i++) {
+                assertTrue(text.contains("vertx_event_loop_lag_seconds_count{loop=\"vert.x-eventloop-thread-%d\"}".formatted(i)), text);
+            }
+        } finally {
+            MessyUtils.await(vertx.close());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package telegram.files;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import org.drinkless.tdlib.TdApi;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestCacheTest {
+
+    @Test
+    void testKey() {
+        assertEquals("file:1", RequestCache.key(new TdApi.GetFile(1)));
+        assertEquals("message:1:2", RequestCache.key(new TdApi.GetMessage(1, 2)));
+        assertNull(RequestCache.key(new TdApi.DownloadFile(1, 1, 0, 0, false)));
+        assertFalse(RequestCache.isCacheable(new TdApi.GetFile(1)));
+        assertTrue(RequestCache.isCacheable(new TdApi.GetChat(1)));
+    }
+
+    @Test
+    void testShareInFlightRequest() {
+        RequestCache cache = new RequestCache(0);
+        AtomicInteger sent = new AtomicInteger();
+        Promise<String> response = Promise.promise();
+
+        Future<String> first = cache.get("file:1", false, () -> {
+            sent.incrementAndGet();
+            return response.future();
+        });
+        Future<String> second = cache.get("file:1", false, () -> {
+            sent.incrementAndGet();
+            return Future.succeededFuture("other");
+        });
+        assertEquals(1, sent.get());
+        response.complete("file");
+        assertEquals("file", first.result());
+        assertEquals("file", second.result());
+
+        // completed requests are sent again
+        cache.get("file:1", false, () -> {
+            sent.incrementAndGet();
+            return Future.succeededFuture("file");
+        });
+        assertEquals(2, sent.get());
+        assertEquals(1, cache.getStatistics().getLong("shared"));
+    }
+
+    @Test
+    void testCacheResultUntilExpired() throws InterruptedException {
+        RequestCache cache = new RequestCache(50);
+        AtomicInteger sent = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("message", cache.get("message:1:1", true, () -> {
+                sent.incrementAndGet();
+                return Future.succeededFuture("message");
+            }).result());
+        }
+        assertEquals(1, sent.get());
+
+        Thread.sleep(60);
+        cache.get("message:1:1", true, () -> {
+            sent.incrementAndGet();
+            return Future.succeededFuture("message");
+        });
+        assertEquals(2, sent.get());
+
+        // failures are not cached
+        cache.get("message:1:2", true, () -> Future.failedFuture("error"));
+        assertTrue(cache.get("message:1:2", true, () -> Future.succeededFuture("message")).succeeded());
+    }
+}
@@ -0,0 +1,99 @@
+package telegram.files;
+
+import org.drinkless.tdlib.TdApi;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static telegram.files.RequestLimiter.Priority.BACKGROUND;
+import static telegram.files.RequestLimiter.Priority.USER;
+import static telegram.files.RequestLimiter.RequestClass.*;
+
+class RequestLimiterTest {
+
+    @Test
+    void testRequestClass() {
+        assertEquals(HISTORY, RequestLimiter.RequestClass.of(new TdApi.SearchChatMessages()));
+        assertEquals(MESSAGE, RequestLimiter.RequestClass.of(new TdApi.GetMessage(1, 1)));
+        assertEquals(OTHER, RequestLimiter.RequestClass.of(new TdApi.GetFile(1)));
+    }
+
+    @Test
+    void testUserBeforeBackground() throws InterruptedException {
+        RequestLimiter limiter = new RequestLimiter(10);
+        List<String> sent = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(14);
+        // empty the bucket
+        for (int i = 0; i < 10; i++) {
+            limiter.submit(HISTORY, BACKGROUND, () -> done.countDown());
+        }
+        limiter.submit(HISTORY, BACKGROUND, () -> {
+            sent.add("background");
+            done.countDown();
+        });
+        limiter.submit(MESSAGE, USER, () -> {
+            sent.add("user");
+            done.countDown();
+        });
+        // not limited, sent right away even though others wait
+        limiter.submit(OTHER, BACKGROUND, () -> {
+            sent.add("other");
+            done.countDown();
+        });
+        limiter.submit(HISTORY, USER, () -> {
+            sent.add("user");
+            done.countDown();
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("other", "user", "user", "background"), sent);
+        assertEquals(3, limiter.getStatistics().getLong("throttled"));
+    }
+
+    @Test
+    void testFloodWaitPausesOnlyItsClass() throws InterruptedException {
+        RequestLimiter limiter = new RequestLimiter(0);
+        limiter.onFloodWait(HISTORY, 1);
+        List<String> sent = new CopyOnWriteArrayList<>();
+        CountDownLatch history = new CountDownLatch(1);
+        limiter.submit(HISTORY, USER, () -> {
+            sent.add("history");
+            history.countDown();
+        });
+        limiter.submit(MESSAGE, USER, () -> sent.add("message"));
+
+        assertEquals(List.of("message"), sent);
+        assertTrue(limiter.getStatistics().getJsonObject("pausedSeconds").containsKey("HISTORY"));
+        assertTrue(history.await(3, TimeUnit.SECONDS));
+        assertEquals(List.of("message", "history"), sent);
+    }
+
+    @Test
+    void testParseRetryAfter() {
+        assertEquals(30, RequestLimiter.parseRetryAfter(new TelegramRunException(new TdApi.Error(429, "Too Many Requests: retry after 30"))));
+        assertEquals(-1, RequestLimiter.parseRetryAfter(new TelegramRunException(new TdApi.Error(400, "Bad Request"))));
+    }
+
+    @Test
+    void testResendAfterFloodWait() {
+        AtomicInteger sends = new AtomicInteger();
+        TelegramClient client = new TelegramClient((updateHandler, exceptionHandler) -> (query, resultHandler) ->
+                resultHandler.onResult(sends.incrementAndGet() == 1
+                        ? new TdApi.Error(429, "Too Many Requests: retry after 1")
+                        : new TdApi.Message()));
+        client.initialize(update -> {
+        }, e -> {
+        }, e -> {
+        });
+
+        TdApi.Message message = MessyUtils.await(client.execute(new TdApi.GetMessage(1, 1)));
+        assertNotNull(message);
+        assertEquals(2, sends.get());
+        assertEquals(1, client.getRequestStatistics().getJsonObject("limiter").getLong("floodWaits"));
+    }
+}
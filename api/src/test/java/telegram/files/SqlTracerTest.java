@@ -0,0 +1,138 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.jdbcclient.JDBCConnectOptions;
+import io.vertx.jdbcclient.JDBCPool;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.PoolOptions;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.Tuple;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import telegram.files.repository.impl.SqlTracer;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SqlTracerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Vertx vertx;
+
+    private Pool pool;
+
+    @BeforeEach
+    void setUp() {
+        vertx = Vertx.vertx();
+        pool = JDBCPool.pool(vertx,
+                new JDBCConnectOptions().setJdbcUrl("jdbc:sqlite:" + tempDir.resolve("trace.db")),
+                new PoolOptions().setMaxSize(1));
+        MessyUtils.await(pool.query("CREATE TABLE item (id INTEGER PRIMARY KEY, name TEXT)").execute());
+    }
+
+    @AfterEach
+    void tearDown() {
+        MessyUtils.await(pool.close());
+        MessyUtils.await(vertx.close());
+    }
+
+    @Test
+    void testRecordStatements() {
+        SqlTracer tracer = new SqlTracer(60_000, 10);
+        SqlClient client = tracer.trace(pool);
+        assertInstanceOf(Pool.class, client);
+
+        MessyUtils.await(client.preparedQuery("""
+                INSERT INTO item (id, name)
+                VALUES (?, ?)
+                """).executeBatch(List.of(Tuple.of(1, "a"), Tuple.of(2, "b"))));
+        for (int i = 0; i < 3; i++) {
+            MessyUtils.await(SqlTemplate.forQuery(client, "SELECT name FROM item WHERE id = #{id}")
+                    .mapTo(row -> row.getString(0))
+                    .execute(Map.of("id", 1)));
+        }
+
+        JsonObject statistics = tracer.getStatistics();
+        assertEquals(0, statistics.getJsonArray("slowest").size());
+        JsonArray templates = statistics.getJsonArray("templates");
+        assertEquals(2, templates.size());
+        JsonObject select = templates.stream()
+                .map(JsonObject.class::cast)
+                .filter(template -> template.getString("template").startsWith("SELECT"))
+                .findFirst()
+                .orElseThrow();
+        assertEquals(3, select.getLong("count"));
+        assertTrue(templates.stream()
+                .map(JsonObject.class::cast)
+                .anyMatch(template -> template.getString("template").equals("INSERT INTO item (id, name) VALUES (?, ?)")));
+        // timed per method that sent the template
+        assertTrue(Metrics.INSTANCE.scrape().contains(
+                "sql_method_duration_seconds_count{repository=\"SqlTracerTest\",method=\"testRecordStatements\"} 4\n"));
+    }
+
+    @Test
+    void testShareTemplateOfLiterals() {
+        SqlTracer tracer = new SqlTracer(60_000, 10);
+        SqlClient client = tracer.trace(pool);
+        MessyUtils.await(client.query("SELECT name FROM item WHERE id IN (1, 2) AND name LIKE '%a%'").execute());
+        MessyUtils.await(client.query("SELECT name FROM item WHERE id IN (3) AND name LIKE 'it''s'").execute());
+        MessyUtils.await(client.preparedQuery("SELECT name FROM item WHERE id IN (?, ?, ?)").execute(Tuple.of(1, 2, 3)));
+
+        JsonArray templates = tracer.getStatistics().getJsonArray("templates");
+        assertEquals(2, templates.size());
+        assertTrue(templates.stream()
+                .map(JsonObject.class::cast)
+                .anyMatch(template -> template.getString("template").equals("SELECT name FROM item WHERE id IN (...) AND name LIKE ?")
+                                      && template.getLong("count") == 2));
+        assertTrue(templates.stream()
+                .map(JsonObject.class::cast)
+                .anyMatch(template -> template.getString("template").equals("SELECT name FROM item WHERE id IN (...)")));
+    }
+
+    @Test
+    void testKeepRecentSlowStatements() {
+        SqlTracer tracer = new SqlTracer(0, 2);
+        SqlClient client = tracer.trace(pool);
+        for (int i = 0; i < 3; i++) {
+            MessyUtils.await(client.preparedQuery("SELECT name FROM item WHERE id = ?").execute(Tuple.of(i)));
+        }
+
+        JsonArray slowest = tracer.getStatistics().getJsonArray("slowest");
+        assertEquals(2, slowest.size());
+        JsonObject statement = slowest.getJsonObject(0);
+        assertEquals("SELECT name FROM item WHERE id = ?", statement.getString("template"));
+        assertTrue(statement.getString("caller").startsWith("SqlTracerTest.testKeepRecentSlowStatements:"));
+        assertTrue(statement.getBoolean("succeeded"));
+        assertTrue(slowest.getJsonObject(0).getDouble("durationMillis") >= slowest.getJsonObject(1).getDouble("durationMillis"));
+        // the buffer holds the last two, the same parameters hash the same
+        MessyUtils.await(client.preparedQuery("SELECT name FROM item WHERE id = ?").execute(Tuple.of(2)));
+        assertEquals(1, tracer.getStatistics().getJsonArray("slowest").stream()
+                .map(JsonObject.class::cast)
+                .map(s -> s.getString("paramsHash"))
+                .distinct()
+                .count());
+    }
+
+    @Test
+    void testTraceTransaction() {
+        SqlTracer tracer = new SqlTracer(0, 10);
+        Pool traced = (Pool) tracer.trace(pool);
+        MessyUtils.await(traced.withConnection(conn -> tracer.trace(conn, traced)
+                .preparedQuery("INSERT INTO item (id, name) VALUES (?, ?)")
+                .execute(Tuple.of(3, "c"))));
+
+        assertEquals(1, tracer.getStatistics().getJsonArray("slowest").size());
+        assertEquals("c", MessyUtils.await(pool.query("SELECT name FROM item WHERE id = 3").execute())
+                .iterator().next().getString(0));
+    }
+}
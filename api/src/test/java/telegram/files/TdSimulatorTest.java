@@ -0,0 +1,130 @@
+package telegram.files;
+
+import org.drinkless.tdlib.TdApi;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import telegram.files.simulator.TdSimulator;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TdSimulatorTest {
+
+    @TempDir
+    Path databaseDirectory;
+
+    private final List<TdApi.Object> updates = new CopyOnWriteArrayList<>();
+
+    private TelegramClient client;
+
+    @BeforeEach
+    void setUp() {
+        client = new TelegramClient(TdSimulator.factory(new TdSimulator.Settings(2, 100, 4 * 1024 * 1024, 256 * 1024, 0)));
+        client.initialize(updates::add, null, null);
+        TdApi.SetTdlibParameters parameters = new TdApi.SetTdlibParameters();
+        parameters.databaseDirectory = databaseDirectory.toString();
+        MessyUtils.await(client.execute(parameters));
+    }
+
+    @AfterEach
+    void tearDown() {
+        MessyUtils.await(client.execute(new TdApi.Close()));
+    }
+
+    @Test
+    void testAuthorizationAndChats() throws InterruptedException {
+        awaitUpdate(update -> update instanceof TdApi.UpdateAuthorizationState state
+                            && state.authorizationState instanceof TdApi.AuthorizationStateReady);
+        assertTrue(updates.getFirst() instanceof TdApi.UpdateAuthorizationState state
+                   && state.authorizationState instanceof TdApi.AuthorizationStateWaitTdlibParameters);
+
+        MessyUtils.await(client.execute(new TdApi.LoadChats(new TdApi.ChatListMain(), 100)));
+        awaitUpdate(update -> updates.stream().filter(u -> u instanceof TdApi.UpdateChatPosition).count() == 2);
+        assertEquals(2, updates.stream().filter(update -> update instanceof TdApi.UpdateNewChat).count());
+        assertThrows(Exception.class, () -> MessyUtils.await(client.execute(new TdApi.LoadChats(new TdApi.ChatListMain(), 100))));
+    }
+
+    @Test
+    void testSearchChatMessages() throws InterruptedException {
+        TdApi.Chat chat = loadChat();
+        TdApi.SearchChatMessages search = new TdApi.SearchChatMessages();
+        search.chatId = chat.id;
+        search.limit = 10;
+        search.filter = new TdApi.SearchMessagesFilterVideo();
+
+        TdApi.FoundChatMessages first = MessyUtils.await(client.execute(search));
+        assertEquals(25, first.totalCount);
+        assertEquals(10, first.messages.length);
+        assertTrue(Arrays.stream(first.messages).allMatch(message -> message.content instanceof TdApi.MessageVideo));
+        assertTrue(first.messages[0].id > first.messages[9].id);
+
+        search.fromMessageId = first.nextFromMessageId;
+        search.limit = 100;
+        TdApi.FoundChatMessages rest = MessyUtils.await(client.execute(search));
+        assertEquals(15, rest.messages.length);
+        assertTrue(rest.messages[0].id < first.messages[9].id);
+
+        search.fromMessageId = rest.nextFromMessageId;
+        TdApi.FoundChatMessages end = MessyUtils.await(client.execute(search));
+        assertEquals(0, end.messages.length);
+        assertEquals(0, end.nextFromMessageId);
+    }
+
+    @Test
+    void testDownload() throws Exception {
+        TdApi.Chat chat = loadChat();
+        // every fourth message is a document, starting with the third
+        TdApi.Message message = MessyUtils.await(client.execute(new TdApi.GetMessage(chat.id, 3L << 20)));
+        TdApi.File file = ((TdApi.MessageDocument) message.content).document.document;
+
+        // a synchronous download answers once the prefix is there
+        TdApi.File prefix = MessyUtils.await(client.execute(new TdApi.DownloadFile(file.id, 32, 0, 1024, true)));
+        assertTrue(prefix.local.downloadedPrefixSize >= 1024);
+
+        TdApi.File added = MessyUtils.await(client.execute(new TdApi.AddFileToDownloads(file.id, chat.id, message.id, 1)));
+        assertEquals(file.id, added.id);
+        TdApi.UpdateFile completed = (TdApi.UpdateFile) awaitUpdate(update -> update instanceof TdApi.UpdateFile updateFile
+                                                                              && updateFile.file.id == file.id
+                                                                              && updateFile.file.local.isDownloadingCompleted);
+        assertEquals(file.size, Files.size(Path.of(completed.file.local.path)));
+        assertTrue(completed.file.local.path.startsWith(databaseDirectory.toString()));
+        awaitUpdate(update -> update instanceof TdApi.UpdateFileDownloads downloads
+                              && downloads.totalCount == 1 && downloads.downloadedSize == file.size);
+
+        TdApi.NetworkStatistics statistics = MessyUtils.await(client.execute(new TdApi.GetNetworkStatistics()));
+        assertEquals(file.size, ((TdApi.NetworkStatisticsEntryFile) statistics.entries[0]).receivedBytes);
+    }
+
+    @Test
+    void testNotSupported() {
+        assertThrows(Exception.class, () -> MessyUtils.await(client.execute(new TdApi.GetChatHistory())));
+    }
+
+    private TdApi.Chat loadChat() throws InterruptedException {
+        MessyUtils.await(client.execute(new TdApi.LoadChats(new TdApi.ChatListMain(), 100)));
+        TdApi.UpdateNewChat newChat = (TdApi.UpdateNewChat) awaitUpdate(update -> update instanceof TdApi.UpdateNewChat);
+        return MessyUtils.await(client.execute(new TdApi.GetChat(newChat.chat.id)));
+    }
+
+    private TdApi.Object awaitUpdate(Predicate<TdApi.Object> predicate) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            for (TdApi.Object update : updates) {
+                if (predicate.test(update)) {
+                    return update;
+                }
+            }
+            Thread.sleep(20);
+        }
+        return fail("Update not received");
+    }
+}
@@ -0,0 +1,33 @@
+package telegram.files;
+
+import org.drinkless.tdlib.TdApi;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TelegramUpdateHandlerTest {
+
+    @Test
+    void testRouteToExactlyOneHandler() {
+        List<String> calls = new ArrayList<>();
+        TelegramUpdateHandler handler = new TelegramUpdateHandler();
+        handler.setOnFileUpdated(update -> calls.add("file"));
+        handler.setOnFileDownloadsUpdated(update -> calls.add("downloads"));
+        handler.setOnMessageReceived(message -> calls.add("message:" + message.id));
+        handler.setOnChatUpdated(update -> calls.add("chat"));
+
+        TdApi.Message message = new TdApi.Message();
+        message.id = 7;
+        handler.onResult(new TdApi.UpdateFile(new TdApi.File()));
+        handler.onResult(new TdApi.UpdateNewMessage(message));
+        handler.onResult(new TdApi.UpdateChatTitle(1, "title"));
+        handler.onResult(new TdApi.UpdateFileDownload());
+
+        assertEquals(List.of("file", "message:7", "chat"), calls);
+        assertEquals(1, handler.getStatistics().getLong("UpdateNewMessage"));
+        assertEquals(1, handler.getStatistics().getLong("UpdateFileDownload"));
+    }
+}
@@ -0,0 +1,67 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Test;
+import telegram.files.TransferQueue.WaitingTransferFile;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferQueueTest {
+
+    private static List<String> uniqueIds(List<WaitingTransferFile> files) {
+        return files.stream().map(WaitingTransferFile::uniqueId).toList();
+    }
+
+    @Test
+    void testFifoAndDedup() {
+        TransferQueue queue = new TransferQueue();
+        assertTrue(queue.add(new WaitingTransferFile(1, 1, "a")));
+        assertTrue(queue.add(new WaitingTransferFile(1, 1, "b")));
+        assertFalse(queue.add(new WaitingTransferFile(1, 1, "a")));
+        assertTrue(queue.add(new WaitingTransferFile(1, 2, "c")));
+
+        assertEquals(3, queue.size());
+        assertEquals(List.of("a", "b", "c"), uniqueIds(queue.poll(file -> true, () -> false)));
+        assertTrue(queue.isEmpty());
+        assertTrue(queue.add(new WaitingTransferFile(1, 1, "a")), "A polled file can be added again");
+    }
+
+    @Test
+    void testAddFirstAndPollFilter() {
+        TransferQueue queue = new TransferQueue();
+        queue.add(new WaitingTransferFile(1, 1, "a"));
+        queue.add(new WaitingTransferFile(1, 2, "b"));
+        queue.add(new WaitingTransferFile(1, 1, "c"));
+        queue.addFirst(new WaitingTransferFile(1, 1, "d"));
+
+        assertEquals(List.of("d", "a", "c"), uniqueIds(queue.poll(file -> file.chatId() == 1, () -> false)));
+        assertEquals(List.of("b"), uniqueIds(queue.poll(file -> true, () -> false)));
+    }
+
+    @Test
+    void testPollStop() {
+        TransferQueue queue = new TransferQueue();
+        queue.add(new WaitingTransferFile(1, 1, "a"));
+        queue.add(new WaitingTransferFile(1, 1, "b"));
+        queue.add(new WaitingTransferFile(1, 1, "c"));
+        AtomicInteger accepted = new AtomicInteger();
+
+        List<WaitingTransferFile> polled = queue.poll(file -> accepted.incrementAndGet() > 0, () -> accepted.get() >= 2);
+        assertEquals(List.of("a", "b"), uniqueIds(polled));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    void testRemoveTransfer() {
+        TransferQueue queue = new TransferQueue();
+        queue.add(new WaitingTransferFile(1, 1, "a"));
+        queue.add(new WaitingTransferFile(1, 2, "b"));
+        queue.add(new WaitingTransferFile(1, 1, "c"));
+
+        assertEquals(2, queue.removeTransfer("1:1"));
+        assertEquals(0, queue.removeTransfer("1:1"));
+        assertEquals(List.of("b"), uniqueIds(queue.poll(file -> true, () -> false)));
+    }
+}
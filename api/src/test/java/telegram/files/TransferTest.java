@@ -132,6 +132,20 @@ class TransferTest {
         ));
     }
 
+    @Test
+    void testTransferDirectoryAndFileSystem(@TempDir Path tempDir) {
+        mockWaitingTransfer(tempDir, "source.txt");
+
+        assertEquals(Path.of(transfer.destination, "456", "789").toString(), transfer.getTransferDirectory(mockFileRecord));
+
+        // a destination that does not exist yet resolves to the file system of its nearest existing ancestor
+        SettingAutoRecords.TransferRule transferRule = new SettingAutoRecords.TransferRule();
+        transferRule.destination = tempDir.resolve("not").resolve("created").toString();
+        transferRule.transferPolicy = TransferPolicy.GROUP_BY_TYPE;
+        Transfer pendingTransfer = Transfer.create(transferRule);
+        assertEquals(transfer.getFileSystem(), pendingTransfer.getFileSystem());
+    }
+
     private String mockWaitingTransfer(Path tempDir, String fileName) {
         String sourcePath = tempDir.resolve(fileName).toString();
         FileUtil.writeUtf8String("test content", sourcePath);
@@ -0,0 +1,78 @@
+package telegram.files;
+
+import org.drinkless.tdlib.TdApi;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpdateDispatcherTest {
+
+    private static TdApi.UpdateFile updateFile(int fileId) {
+        TdApi.File file = new TdApi.File();
+        file.id = fileId;
+        return new TdApi.UpdateFile(file);
+    }
+
+    @Test
+    void testHandleInOrderOffCallerThread() throws InterruptedException {
+        int count = 1000;
+        List<Integer> handled = new CopyOnWriteArrayList<>();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        Thread caller = Thread.currentThread();
+        UpdateDispatcher dispatcher = new UpdateDispatcher(update -> {
+            int fileId = ((TdApi.UpdateFile) update).file.id;
+            assertNotSame(caller, Thread.currentThread());
+            if (fileId % 100 == 0) {
+                throw new IllegalStateException("handler failed");
+            }
+            handled.add(fileId);
+        }, errors::add);
+
+        for (int i = 1; i <= count; i++) {
+            dispatcher.onResult(updateFile(i));
+        }
+        // runs once every update before it has been handled and counted
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.runAfterQueued(done::countDown);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        List<Integer> expected = IntStream.rangeClosed(1, count).filter(i -> i % 100 != 0).boxed().toList();
+        assertEquals(expected, handled);
+        assertEquals(10, errors.size());
+        assertEquals(0, dispatcher.getDepth());
+        assertEquals(count, dispatcher.getStatistics().getLong("handled"));
+    }
+
+    @Test
+    void testRunAfterQueuedUpdates() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        UpdateDispatcher dispatcher = new UpdateDispatcher(update -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            order.add("update-" + ((TdApi.UpdateFile) update).file.id);
+        }, null);
+
+        dispatcher.onResult(updateFile(1));
+        dispatcher.onResult(updateFile(2));
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.runAfterQueued(() -> {
+            order.add("task");
+            done.countDown();
+        });
+        dispatcher.onResult(updateFile(3));
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of("update-1", "update-2", "task"), order.subList(0, 3));
+    }
+}